@@ -0,0 +1,180 @@
+package xiazhenjie.lrucache.waterfall;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+
+import xiazhenjie.lrucache.cache.MemoryCache;
+
+/**
+ * @ClassName BitmapPool
+ * @Description 可复用Bitmap的池子,解码时通过BitmapFactory.Options.inBitmap复用其中的像素内存
+ *
+ * 说明:
+ * 1 按Bitmap实际占用的字节数(getAllocationByteCount)分桶.
+ *   从API19开始,只要被复用的Bitmap不小于新图片所需的字节数就可以用于inBitmap,
+ *   所以取的时候找不小于所需字节数的最小的桶即可.
+ * 2 池子和内存缓存共用一份字节预算:池子最多只能占用预算中内存缓存没有用掉的部分.
+ *   内存缓存变大时调用trim()把池子中最久没被用到的Bitmap回收掉.
+ * 3 只有可变(isMutable)且未回收的Bitmap才能放进池子.
+ *   放进来之前调用方必须保证该Bitmap已经不在任何ImageView上显示,也不在内存缓存中.
+ */
+public class BitmapPool {
+    // 被复用的Bitmap最多比所需的大几倍,避免用很大的Bitmap装很小的图片
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    // 按占用字节数分桶
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mBuckets = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+    // 按放入的先后顺序记录所有Bitmap,用于淘汰
+    private final LinkedHashMap<Bitmap, Integer> mOrder = new LinkedHashMap<Bitmap, Integer>();
+    // 池子与内存缓存共用的字节预算
+    private long mSharedBudget;
+    // 与池子共用预算的内存缓存
+    private final MemoryCache<?, ?> mMemoryCache;
+    // 池子中Bitmap的总字节数
+    private long mSize;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mPutCount;
+    private long mEvictionCount;
+    private long mReusedBytes;
+
+    public BitmapPool(long sharedBudget, MemoryCache<?, ?> memoryCache) {
+        mSharedBudget = sharedBudget;
+        mMemoryCache = memoryCache;
+    }
+
+    /**
+     * 取出一个能容纳width*height大小图片的Bitmap,若没有则返回null.
+     * 取出的Bitmap内容是旧图片的,只能作为inBitmap使用
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int requiredBytes = width * height * getBytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = mBuckets.ceilingEntry(requiredBytes);
+        if (entry == null || entry.getKey() > (long) requiredBytes * MAX_SIZE_MULTIPLE) {
+            mMissCount++;
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().pollLast();
+        if (entry.getValue().isEmpty()) {
+            mBuckets.remove(entry.getKey());
+        }
+        mOrder.remove(bitmap);
+        mSize -= entry.getKey();
+        mHitCount++;
+        mReusedBytes += entry.getKey();
+        return bitmap;
+    }
+
+    /**
+     * 把不再使用的Bitmap放入池子.
+     * 不可变的或者放不下的Bitmap会直接回收
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable()) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        synchronized (this) {
+            if (mOrder.containsKey(bitmap)) {
+                return;
+            }
+            if (bytes > getMaxSize()) {
+                bitmap.recycle();
+                return;
+            }
+            ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+            if (bucket == null) {
+                bucket = new ArrayDeque<Bitmap>();
+                mBuckets.put(bytes, bucket);
+            }
+            bucket.addLast(bitmap);
+            mOrder.put(bitmap, bytes);
+            mSize += bytes;
+            mPutCount++;
+        }
+        trim();
+    }
+
+    /**
+     * 回收最久没有被用到的Bitmap,直到池子不超出预算中内存缓存没有用掉的部分
+     */
+    public synchronized void trim() {
+        long maxSize = getMaxSize();
+        Iterator<Map.Entry<Bitmap, Integer>> iterator = mOrder.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<Bitmap, Integer> eldest = iterator.next();
+            iterator.remove();
+            Bitmap bitmap = eldest.getKey();
+            int bytes = eldest.getValue();
+            ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(bytes);
+            }
+            mSize -= bytes;
+            mEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * 调整池子与内存缓存共用的字节预算
+     */
+    public void setSharedBudget(long sharedBudget) {
+        synchronized (this) {
+            mSharedBudget = sharedBudget;
+        }
+        trim();
+    }
+
+    /**
+     * 池子当前最多可以占用的字节数
+     */
+    public synchronized long getMaxSize() {
+        return Math.max(0, mSharedBudget - mMemoryCache.size());
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getReusedBytes() {
+        return mReusedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = mHitCount + mMissCount;
+        int hitPercent = requests != 0 ? (int) (100 * mHitCount / requests) : 0;
+        return "BitmapPool[size=" + mSize + ",maxSize=" + getMaxSize() + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",hitRate=" + hitPercent + "%,puts=" + mPutCount
+                + ",evictions=" + mEvictionCount + ",reusedBytes=" + mReusedBytes + "]";
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
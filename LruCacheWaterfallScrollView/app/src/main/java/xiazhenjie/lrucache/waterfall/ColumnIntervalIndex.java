@@ -0,0 +1,203 @@
+package xiazhenjie.lrucache.waterfall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @ClassName ColumnIntervalIndex
+ * @Description 瀑布流每一列中图片上下边位置的有序索引,用二分查找求出可见的图片以及进入,离开视口的图片
+ *
+ * 说明:
+ * 1 图片总是追加到某一列的底部,所以每一列中图片的上边和下边都是递增的,追加时直接放到数组末尾即可.
+ * 2 可见区域[viewportTop, viewportBottom)在每一列中对应一段连续的下标,
+ *   用二分查找求出:第一个下边大于viewportTop的图片,到第一个上边不小于viewportBottom的图片之前.
+ * 3 记住上一次每一列的可见下标段,与新的下标段相减就得到进入和离开视口的图片,
+ *   所以每次只需处理可见性发生变化的图片,耗时与视口中的图片数成正比,与图片总数无关.
+ * 4 追加时若图片在上一次的视口中,就并入可见下标段,由调用方在追加时显示它;
+ *   否则它算作不可见,等以后进入视口时再出现在entering中.
+ *
+ * 只在主线程中使用
+ */
+final class ColumnIntervalIndex<T> {
+
+    /**
+     * 一次setViewport()的结果
+     */
+    static final class Change<T> {
+        // 进入视口的图片
+        final List<T> entering;
+        // 离开视口的图片
+        final List<T> leaving;
+
+        Change(List<T> entering, List<T> leaving) {
+            this.entering = entering;
+            this.leaving = leaving;
+        }
+    }
+
+    private final Column<T>[] mColumns;
+    // 上一次的视口
+    private int mViewportTop;
+    private int mViewportBottom;
+
+    @SuppressWarnings("unchecked")
+    ColumnIntervalIndex(int columnCount) {
+        mColumns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            mColumns[i] = new Column<T>();
+        }
+    }
+
+    /**
+     * 把图片追加到column列的底部.
+     * top必须不小于该列最后一张图片的下边
+     * @return 图片是否在上一次setViewport()的视口中
+     */
+    boolean add(int column, int top, int bottom, T item) {
+        Column<T> c = mColumns[column];
+        if (c.size > 0 && top < c.bottoms[c.size - 1]) {
+            throw new IllegalArgumentException("top " + top + " is above the bottom of column " + column);
+        }
+        int index = c.add(top, bottom, item);
+        if (bottom > mViewportTop && top < mViewportBottom && (c.to == index || c.from == c.to)) {
+            if (c.from == c.to) {
+                c.from = index;
+            }
+            c.to = index + 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 移动视口,返回进入和离开视口的图片
+     */
+    Change<T> setViewport(int viewportTop, int viewportBottom) {
+        mViewportTop = viewportTop;
+        mViewportBottom = viewportBottom;
+        List<T> entering = new ArrayList<T>();
+        List<T> leaving = new ArrayList<T>();
+        for (Column<T> c : mColumns) {
+            int from = c.firstBelow(viewportTop);
+            int to = c.firstAtOrBelow(viewportBottom, from);
+            // 旧的下标段减去新的是离开的,新的减去旧的是进入的
+            addRangeMinus(c, c.from, c.to, from, to, leaving);
+            addRangeMinus(c, from, to, c.from, c.to, entering);
+            c.from = from;
+            c.to = to;
+        }
+        return new Change<T>(entering, leaving);
+    }
+
+    /**
+     * 上一次setViewport()后可见的图片
+     */
+    List<T> visible() {
+        List<T> result = new ArrayList<T>();
+        for (Column<T> c : mColumns) {
+            result.addAll(c.items.subList(c.from, c.to));
+        }
+        return result;
+    }
+
+    /**
+     * 上一次setViewport()后column列中可见的图片,从上到下排列
+     */
+    List<T> visibleInColumn(int column) {
+        Column<T> c = mColumns[column];
+        return c.items.subList(c.from, c.to);
+    }
+
+    /**
+     * 与[top, bottom)有交集的图片
+     */
+    List<T> itemsBetween(int top, int bottom) {
+        if (bottom <= top) {
+            return Collections.emptyList();
+        }
+        List<T> result = new ArrayList<T>();
+        for (Column<T> c : mColumns) {
+            int from = c.firstBelow(top);
+            int to = c.firstAtOrBelow(bottom, from);
+            result.addAll(c.items.subList(from, to));
+        }
+        return result;
+    }
+
+    int size() {
+        int size = 0;
+        for (Column<T> c : mColumns) {
+            size += c.size;
+        }
+        return size;
+    }
+
+    /**
+     * 把[from, to)中不在[exceptFrom, exceptTo)中的图片加入result
+     */
+    private static <T> void addRangeMinus(Column<T> c, int from, int to, int exceptFrom, int exceptTo,
+            List<T> result) {
+        for (int i = from; i < to; i++) {
+            if (i < exceptFrom || i >= exceptTo) {
+                result.add(c.items.get(i));
+            }
+        }
+    }
+
+    private static final class Column<T> {
+        int[] tops = new int[16];
+        int[] bottoms = new int[16];
+        final List<T> items = new ArrayList<T>();
+        int size;
+        // 上一次的可见下标段[from, to)
+        int from;
+        int to;
+
+        int add(int top, int bottom, T item) {
+            if (size == tops.length) {
+                tops = Arrays.copyOf(tops, size * 2);
+                bottoms = Arrays.copyOf(bottoms, size * 2);
+            }
+            tops[size] = top;
+            bottoms[size] = bottom;
+            items.add(item);
+            return size++;
+        }
+
+        /**
+         * 第一个下边大于y的下标
+         */
+        int firstBelow(int y) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (bottoms[mid] > y) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * start之后第一个上边不小于y的下标
+         */
+        int firstAtOrBelow(int y, int start) {
+            int low = start;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (tops[mid] >= y) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+}
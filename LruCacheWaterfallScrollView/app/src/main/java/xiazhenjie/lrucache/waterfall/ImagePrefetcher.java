@@ -0,0 +1,299 @@
+package xiazhenjie.lrucache.waterfall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import xiazhenjie.lrucache.cache.LoadScheduler;
+import xiazhenjie.lrucache.cache.ImageHandle;
+import xiazhenjie.lrucache.cache.SingleFlightLoader;
+
+/**
+ * @ClassName ImagePrefetcher
+ * @Description 按滑动速度和方向,提前把视口前方的图片加载到内存缓存中
+ *
+ * 说明:
+ * 1 每次滑动时记录位置和时间,用指数平均算出滑动速度.
+ *   预取的范围是速度乘以LOOKAHEAD_MILLIS,最少半屏,最多两屏.滑得越快看得越远.
+ * 2 范围内已经布局好的图片若不在内存缓存中,就通过LruCacheImageLoader加载一次.
+ *   这些图片之前都显示过,所以图片一般在本地缓存中,这一步就是把它从本地缓存解码到内存缓存.
+ *   还没有布局的下一页图片由WaterfallScrollView提前加载下一页完成,
+ *   加载下一页本身就是先下载到本地缓存再解码到内存缓存.
+ * 3 预取的优先级低于屏幕上的图片:
+ *   预取请求的距离是真实距离再加上PRIORITY_PENALTY,同一时间最多有MAX_IN_FLIGHT个预取请求,
+ *   所以下载和解码线程池总有空闲线程留给屏幕上的图片.
+ * 4 预取到但还没显示的图片总字节数不超过字节预算,超过后暂停预取.
+ * 5 统计:预取完成的图片中后来被显示的比例(命中率),
+ *   以及还没显示就被内存缓存淘汰的图片个数和字节数(浪费).
+ *
+ * 只在主线程中使用
+ */
+public class ImagePrefetcher {
+    // 按这么长时间内会滑过的距离决定预取范围
+    private static final long LOOKAHEAD_MILLIS = 1000;
+    // 同一时间最多的预取请求数
+    private static final int MAX_IN_FLIGHT = 2;
+    // 每次最多预取的图片数
+    private static final int MAX_ITEMS_AHEAD = 12;
+    // 预取请求的距离惩罚,单位像素
+    private static final int PRIORITY_PENALTY = 256;
+    // 计算速度时新样本所占的比重
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+    // 默认的字节预算
+    public static final long DEFAULT_BYTE_BUDGET = 8 * 1024 * 1024;
+
+    private final LruCacheImageLoader mLruCacheImageLoader;
+    // 字节预算
+    private long mByteBudget = DEFAULT_BYTE_BUDGET;
+    // 视口高度
+    private int mViewportHeight;
+    // 图片解码的宽度,与屏幕上的图片一致,这样预取的图片才能被直接显示
+    private int mImageWidth;
+
+    // 上一次滑动的位置和时间
+    private int mLastScrollY;
+    private long mLastScrollTime;
+    // 滑动速度,单位像素/毫秒,向下为正
+    private float mVelocity;
+
+    // 正在预取的url及其请求
+    private final Map<String, SingleFlightLoader<String, ImageHandle<Bitmap>>.Request> mInFlight =
+            new HashMap<String, SingleFlightLoader<String, ImageHandle<Bitmap>>.Request>();
+    // 预取完成但还没被显示的url及其字节数
+    private final Map<String, Integer> mPrefetched = new HashMap<String, Integer>();
+    // mPrefetched中所有图片的字节数
+    private long mPrefetchedBytes;
+
+    private long mIssuedCount;
+    private long mCompletedCount;
+    private long mHitCount;
+    private long mHitBytes;
+    private long mWastedCount;
+    private long mWastedBytes;
+
+    public ImagePrefetcher(LruCacheImageLoader lruCacheImageLoader) {
+        mLruCacheImageLoader = lruCacheImageLoader;
+    }
+
+    /**
+     * 设置字节预算:预取到但还没显示的图片最多占用的字节数
+     */
+    public void setByteBudget(long byteBudget) {
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * 设置图片解码的宽度,即瀑布流每一列的宽度
+     */
+    public void setImageWidth(int imageWidth) {
+        mImageWidth = imageWidth;
+    }
+
+    /**
+     * 滑动时调用,更新滑动速度
+     */
+    public void onScroll(int scrollY, int viewportHeight) {
+        long now = SystemClock.uptimeMillis();
+        mViewportHeight = viewportHeight;
+        long elapsed = now - mLastScrollTime;
+        if (mLastScrollTime != 0 && elapsed > 0) {
+            float velocity = (scrollY - mLastScrollY) / (float) elapsed;
+            mVelocity = mVelocity * (1 - VELOCITY_SMOOTHING) + velocity * VELOCITY_SMOOTHING;
+        }
+        mLastScrollY = scrollY;
+        mLastScrollTime = now;
+    }
+
+    /**
+     * 停止滑动后速度归零,预取范围回到最小值
+     */
+    public void onScrollStopped() {
+        mVelocity = 0;
+        mLastScrollTime = 0;
+    }
+
+    /**
+     * 当前的预取范围,单位像素
+     */
+    public int getLookahead() {
+        int lookahead = (int) Math.abs(mVelocity * LOOKAHEAD_MILLIS);
+        return Math.max(mViewportHeight / 2, Math.min(lookahead, mViewportHeight * 2));
+    }
+
+    /**
+     * 是否正在向上滑动
+     */
+    public boolean isScrollingUp() {
+        return mVelocity < 0;
+    }
+
+    /**
+     * 预取视口前方的图片.
+     * @param itemIndex 瀑布流中所有已经布局好的图片的位置索引
+     * @param viewportTop 视口顶端的位置
+     */
+    void prefetch(ColumnIntervalIndex<WaterfallItem> itemIndex, int viewportTop) {
+        collectWaste();
+        int viewportBottom = viewportTop + mViewportHeight;
+        int lookahead = getLookahead();
+        int aheadTop;
+        int aheadBottom;
+        if (isScrollingUp()) {
+            aheadTop = viewportTop - lookahead;
+            aheadBottom = viewportTop;
+        } else {
+            aheadTop = viewportBottom;
+            aheadBottom = viewportBottom + lookahead;
+        }
+
+        // 找出预取范围内的图片,按离视口由近到远排列
+        List<WaterfallItem> targets = new ArrayList<WaterfallItem>();
+        List<Integer> distances = new ArrayList<Integer>();
+        for (WaterfallItem item : itemIndex.itemsBetween(aheadTop, aheadBottom)) {
+            int distance = LoadScheduler.distance(item.top, item.bottom, viewportTop, viewportBottom);
+            int index = 0;
+            while (index < distances.size() && distances.get(index) <= distance) {
+                index++;
+            }
+            targets.add(index, item);
+            distances.add(index, distance);
+        }
+        if (targets.size() > MAX_ITEMS_AHEAD) {
+            targets = targets.subList(0, MAX_ITEMS_AHEAD);
+        }
+        List<String> urls = new ArrayList<String>(targets.size());
+        for (WaterfallItem item : targets) {
+            urls.add(item.imageUrl);
+        }
+
+        // 取消已经不在预取范围内的请求
+        for (Iterator<Map.Entry<String, SingleFlightLoader<String, ImageHandle<Bitmap>>.Request>> iterator =
+                     mInFlight.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, SingleFlightLoader<String, ImageHandle<Bitmap>>.Request> entry = iterator.next();
+            if (!urls.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+
+        for (int i = 0; i < urls.size() && mInFlight.size() < MAX_IN_FLIGHT; i++) {
+            if (mPrefetchedBytes >= mByteBudget) {
+                break;
+            }
+            String url = urls.get(i);
+            if (mInFlight.containsKey(url) || mPrefetched.containsKey(url)
+                    || mLruCacheImageLoader.isBitmapInMemory(LruCacheImageLoader.getMemoryCacheKey(url, mImageWidth))) {
+                continue;
+            }
+            WaterfallItem item = targets.get(i);
+            PrefetchListener listener = new PrefetchListener(url, item.top, item.bottom);
+            mInFlight.put(url, mLruCacheImageLoader.loadBitmapAsync(url, mImageWidth, listener));
+            mIssuedCount++;
+        }
+    }
+
+    /**
+     * url对应的图片被显示到屏幕上时调用,若它是预取来的则记一次命中
+     */
+    public void onDisplayed(String url) {
+        Integer bytes = mPrefetched.remove(url);
+        if (bytes != null) {
+            mPrefetchedBytes -= bytes;
+            mHitCount++;
+            mHitBytes += bytes;
+        }
+    }
+
+    /**
+     * 取消所有预取请求
+     */
+    public void cancelAll() {
+        for (SingleFlightLoader<String, ImageHandle<Bitmap>>.Request request : mInFlight.values()) {
+            request.cancel();
+        }
+        mInFlight.clear();
+    }
+
+    /**
+     * 预取完成但还没显示就被内存缓存淘汰的图片记为浪费
+     */
+    private void collectWaste() {
+        for (Iterator<Map.Entry<String, Integer>> iterator = mPrefetched.entrySet().iterator();
+             iterator.hasNext(); ) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            String key = LruCacheImageLoader.getMemoryCacheKey(entry.getKey(), mImageWidth);
+            if (!mLruCacheImageLoader.isBitmapInMemory(key)) {
+                iterator.remove();
+                mPrefetchedBytes -= entry.getValue();
+                mWastedCount++;
+                mWastedBytes += entry.getValue();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    public long getWastedBytes() {
+        return mWastedBytes;
+    }
+
+    /**
+     * 预取完成的图片中后来被显示的比例
+     */
+    public float getHitRate() {
+        return mCompletedCount != 0 ? mHitCount / (float) mCompletedCount : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ImagePrefetcher[issued=" + mIssuedCount + ",completed=" + mCompletedCount
+                + ",hits=" + mHitCount + ",hitRate=" + (int) (100 * getHitRate()) + "%,hitBytes=" + mHitBytes
+                + ",pendingBytes=" + mPrefetchedBytes + ",budget=" + mByteBudget
+                + ",wasted=" + mWastedCount + ",wastedBytes=" + mWastedBytes + "]";
+    }
+
+    /**
+     * 预取请求的回调.
+     * 它不显示图片,所以不复制句柄;图片已在加载时放进了内存缓存
+     */
+    private class PrefetchListener implements SingleFlightLoader.Listener<ImageHandle<Bitmap>>, LoadScheduler.Prioritized {
+        private final String mUrl;
+        // 预取目标的上下边在ScrollView中的位置
+        private final int mTop;
+        private final int mBottom;
+
+        PrefetchListener(String url, int top, int bottom) {
+            mUrl = url;
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        /**
+         * 在加载线程中调用.距离加上一个惩罚值,排在同样远的屏幕上图片之后
+         */
+        @Override
+        public int distanceTo(int viewportTop, int viewportBottom) {
+            return LoadScheduler.distance(mTop, mBottom, viewportTop, viewportBottom) + PRIORITY_PENALTY;
+        }
+
+        @Override
+        public void onLoaded(ImageHandle<Bitmap> bitmap) {
+            if (mInFlight.remove(mUrl) == null) {
+                return;
+            }
+            if (bitmap != null) {
+                mCompletedCount++;
+                int bytes = (int) bitmap.getByteCount();
+                mPrefetched.put(mUrl, bytes);
+                mPrefetchedBytes += bytes;
+            }
+        }
+    }
+}
@@ -3,13 +3,27 @@ package xiazhenjie.lrucache.waterfall;
 
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.util.LruCache;
+import android.os.Handler;
+import android.os.Looper;
+
+import xiazhenjie.lrucache.cache.CacheBudgetController;
+import xiazhenjie.lrucache.cache.CacheLocation;
+import xiazhenjie.lrucache.cache.EvictionPolicies;
+import xiazhenjie.lrucache.cache.ImageCodec;
+import xiazhenjie.lrucache.cache.ImageHandle;
+import xiazhenjie.lrucache.cache.ImagePipeline;
+import xiazhenjie.lrucache.cache.PipelineMetrics;
+import xiazhenjie.lrucache.cache.SingleFlightLoader;
 
 /**
  * @ClassName LruCacheImageLoader
@@ -17,44 +31,128 @@ import android.util.LruCache;
  * @Author xiazhenjie
  * @Date 2022/9/8 17:31
  * @Version 1.0
+ *
+ * 加载图片的流程(内存缓存,堆外缓存,本地缓存,下载,解码,生成缩略图)都在与平台无关的cache模块的ImagePipeline中,
+ * 可以在普通的JVM上测试.这里只提供Android相关的部分:
+ * Bitmap的解码和压缩(BitmapCodec),本地缓存的目录,在主线程中回调,以及与内存缓存共用预算的BitmapPool
+ *
+ * 内存缓存和本地缓存的大小只是上限:
+ * 系统内存紧张(onTrimMemory/onLowMemory)或堆快满时内存缓存逐步缩小,存储空间不足时本地缓存缩小,
+ * 缓解后再恢复,由CacheBudgetController决定.BitmapPool的预算跟着内存缓存的预算变化
  */
 public class LruCacheImageLoader {
 
     private static LruCacheImageLoader mLruCacheImageLoader;
 
-    private static LruCache<String, Bitmap> mLruCache;
+    private static ImagePipeline<Bitmap> mImagePipeline;
 
-    private static DiskLruCache mDiskLruCache;
+    // 可复用Bitmap的池子,与内存缓存共用一份字节预算
+    private static BitmapPool mBitmapPool;
 
     private Context mContext;
 
-    //DiskLruCache中对于图片的最大缓存值.
+    // 注册在Application上的内存紧张回调,关闭时注销
+    private MemoryPressureCallbacks mMemoryPressureCallbacks;
+
+    //DiskLruCache中对于图片的最大缓存值.存储空间不足时会临时缩小
     private int maxSize = 20 * 1024 * 1024;
 
+    //内存缓存和磁盘缓存各自使用的淘汰策略.
+    //W-TinyLFU让快速滑动时一闪而过的图片不会把反复出现的缩略图挤出缓存
+    public static final EvictionPolicies MEMORY_EVICTION_POLICY = EvictionPolicies.W_TINY_LFU;
+    public static final EvictionPolicies DISK_EVICTION_POLICY = EvictionPolicies.SLRU;
+
+    // 读本地缓存,下载,解码分别在各自的线程池中执行,离屏幕近的图片先执行
+    private static final int DISK_THREADS = 2;
+    private static final int NETWORK_THREADS = 4;
+    private static final int DECODE_THREADS = 2;
+    //等待中的任务离屏幕超过几屏的高度就丢弃
+    private static final int EVICT_SCREENS = 3;
+
+    // 缩略图按JPEG保存时的压缩质量
+    private static final int THUMBNAIL_QUALITY = 90;
+
     private LruCacheImageLoader(Context context){
         mContext=context;
 
-        //初始化LruCache.
-        //设定LruCache的缓存为可用内存的六分之一
+        //设定内存缓存最大为可用内存的六分之一
         int maxMemory = (int) Runtime.getRuntime().maxMemory();
         int size = maxMemory / 6;
-        mLruCache = new LruCache<String, Bitmap>(size){
+        ImagePipeline.Options options = new ImagePipeline.Options();
+        options.memoryCacheSize = size;
+        options.diskCacheSize = maxSize;
+        options.appVersion = Utils.getAppVersionCode(mContext);
+        options.memoryEvictionPolicy = MEMORY_EVICTION_POLICY;
+        options.diskEvictionPolicy = DISK_EVICTION_POLICY;
+        options.diskThreads = DISK_THREADS;
+        options.networkThreads = NETWORK_THREADS;
+        options.decodeThreads = DECODE_THREADS;
+        options.evictDistance = context.getResources().getDisplayMetrics().heightPixels * EVICT_SCREENS;
+
+        // 回调都在主线程中执行
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mImagePipeline = new ImagePipeline<Bitmap>(new BitmapCodec(),
+                new CacheLocation() {
+                    @Override
+                    public File getDirectory(String name) {
+                        return Utils.getDiskLruCacheDir(mContext, name);
+                    }
+                },
+                new Executor() {
+                    @Override
+                    public void execute(Runnable runnable) {
+                        mainHandler.post(runnable);
+                    }
+                },
+                options);
+        mBitmapPool = new BitmapPool(size, mImagePipeline.getMemoryCache());
+        CacheBudgetController budgetController = mImagePipeline.getBudgetController();
+        budgetController.setListener(new CacheBudgetController.Listener() {
             @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
-                return bitmap.getByteCount();
+            public void onMemoryBudgetChanged(long budget) {
+                mBitmapPool.setSharedBudget(budget);
             }
-        };
+        });
+        mMemoryPressureCallbacks = new MemoryPressureCallbacks(budgetController);
+        mContext.getApplicationContext().registerComponentCallbacks(mMemoryPressureCallbacks);
+    }
 
-        // 初始化DiskLruCache
-        try {
-            File dirFile = Utils.getDiskLruCacheDir(context, "image");
-            if (!dirFile.exists()) {
-                dirFile.mkdirs();
+    /**
+     * 把系统报告的内存紧张程度转告CacheBudgetController.
+     * 注册在Application上,对所有界面都有效
+     */
+    private static class MemoryPressureCallbacks implements ComponentCallbacks2 {
+        private final CacheBudgetController mBudgetController;
+
+        MemoryPressureCallbacks(CacheBudgetController budgetController) {
+            mBudgetController = budgetController;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            CacheBudgetController.MemoryPressure pressure;
+            if (level >= TRIM_MEMORY_BACKGROUND) {
+                // 进程在后台且排在被杀的前面,图片都能重新加载,全部让出
+                pressure = CacheBudgetController.MemoryPressure.COMPLETE;
+            } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL && level != TRIM_MEMORY_UI_HIDDEN) {
+                pressure = CacheBudgetController.MemoryPressure.CRITICAL;
+            } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                // 包括UI_HIDDEN:界面不可见了,留一半等用户回来
+                pressure = CacheBudgetController.MemoryPressure.LOW;
+            } else {
+                pressure = CacheBudgetController.MemoryPressure.MODERATE;
             }
-            mDiskLruCache = DiskLruCache.open(dirFile,Utils.getAppVersionCode(mContext), 1, maxSize);
-        } catch (Exception e) {
+            mBudgetController.onMemoryPressure(pressure);
         }
 
+        @Override
+        public void onLowMemory() {
+            mBudgetController.onMemoryPressure(CacheBudgetController.MemoryPressure.COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
     }
 
     public static LruCacheImageLoader getLruCacheImageLoaderInstance(Context context){
@@ -65,84 +163,243 @@ public class LruCacheImageLoader {
     }
 
     /**
-     * 从LruCache中获取图片,若不存在返回null
+     * 关闭ImagePipeline:排队中的加载直接失败,正在进行的加载和缩略图写完后关闭本地缓存.
+     * 要等正在进行的下载结束,所以在后台线程中关闭,不阻塞主线程.
+     * 退出瀑布流界面时调用,之后再调用getLruCacheImageLoaderInstance()会重新创建
      */
-    public Bitmap getBitmapFromLruCache(String key){
-        return mLruCache.get(key);
+    public static void close(){
+        if (mLruCacheImageLoader == null) {
+            return;
+        }
+        mLruCacheImageLoader.mContext.getApplicationContext()
+                .unregisterComponentCallbacks(mLruCacheImageLoader.mMemoryPressureCallbacks);
+        mLruCacheImageLoader = null;
+        final ImagePipeline<Bitmap> imagePipeline = mImagePipeline;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    imagePipeline.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ImageLoader-close").start();
     }
 
     /**
-     * 往LruCache中添加图片.
-     * 当然要首先判断LruCache中是否已经存在该图片,若不存在再添加
+     * 宽为width的imageUrl图片在内存缓存中的key.
+     * 同一张图片按不同宽度解码出的Bitmap大小不同,所以宽度也是key的一部分;width<=0表示原尺寸
+     */
+    public static String getMemoryCacheKey(String imageUrl, int width){
+        return ImagePipeline.getMemoryCacheKey(imageUrl, width);
+    }
+
+    /**
+     * 宽为width的imageUrl图片在本地缓存中的key.
+     * width<=0时是原图的key,否则是缩略图的key.
+     * 原图和每种宽度的缩略图都是本地缓存中独立的条目,各自按淘汰策略淘汰
+     */
+    public static String getDiskCacheKey(String imageUrl, int width){
+        return ImagePipeline.getDiskCacheKey(imageUrl, width);
+    }
+
+    /**
+     * 图片是否在LruCache中.只是查看,不算作一次访问,不影响淘汰顺序
+     */
+    public boolean isBitmapInMemory(String key){
+        return mImagePipeline.isImageInMemory(key);
+    }
+
+    /**
+     * 从LruCache中取出图片的一个新句柄,若不存在返回null.
+     * 显示图片时持有句柄(绑定),不再显示时close()(解除绑定);内存缓存也持有自己的句柄,淘汰时关闭.
+     * 最后一个句柄关闭时图片才放入池子供下次解码复用,所以显示中的图片不会被复用,
+     * 已经没人显示的图片也不会被留着不放
+     */
+    public ImageHandle<Bitmap> acquireBitmap(String key){
+        return mImagePipeline.acquireImage(key);
+    }
+
+    public BitmapPool getBitmapPool(){
+        return mBitmapPool;
+    }
+
+    /**
+     * 往LruCache中添加图片,之后bitmap归内存缓存所有.
+     * 当然要首先判断LruCache中是否已经存在该图片,若不存在再添加,否则bitmap直接放入池子
      */
     public void addBitmapToLruCache(String key,Bitmap bitmap){
-        if (getBitmapFromLruCache(key)==null) {
-            mLruCache.put(key, bitmap);
-        }
+        mImagePipeline.addImageToMemoryCache(key, bitmap);
+        // 内存缓存变大后,池子能用的预算随之变小
+        mBitmapPool.trim();
     }
 
     /**
-     * 依据key获取其对应的Snapshot
-     * @param key
-     * @return
+     * 获取加载图片的各项指标的快照:各级缓存的命中,未命中和淘汰次数,读本地缓存,下载和解码的耗时分布,
+     * 正在进行的任务数,下载和写入本地缓存的字节数等.
+     * 两个快照相减(since)即是这段时间(例如一次滑动)内的数据,toJson()可以输出到日志或上传
      */
-    public DiskLruCache.Snapshot getSnapShotByKey(String key){
-        DiskLruCache.Snapshot snapshot=null;
-        try {
-            snapshot=mDiskLruCache.get(key);
-        } catch (Exception e) {
-        }
+    public PipelineMetrics.Snapshot getMetricsSnapshot(){
+        return mImagePipeline.getMetrics().snapshot();
+    }
 
-        return snapshot;
+    /**
+     * 开始把内存缓存的访问记录到file中.
+     * 每次命中以及每次未命中后的添加各记一行,可用EvictionSimulator回放比较各淘汰策略的命中率
+     */
+    public void startTraceRecording(File file) throws IOException {
+        mImagePipeline.startTraceRecording(file);
+    }
 
+    /**
+     * 停止记录访问轨迹
+     */
+    public void stopTraceRecording() throws IOException {
+        mImagePipeline.stopTraceRecording();
     }
 
     /**
-     * 依据key获取其对应的Editor
-     * @param key
-     * @return
+     * 异步加载imageUrl对应的图片,按宽度width缩放后(width<=0时为原尺寸)在主线程回调listener.
+     * 图片在内存缓存中的key为getMemoryCacheKey(imageUrl, width).
+     * 同一url同一宽度同时只会有一个加载任务,后来的请求直接挂到该任务上.
+     * 回调时传入的句柄在回调返回后就会关闭,listener要显示图片时需先duplicate()出自己的句柄
+     * listener若实现了LoadScheduler.Prioritized,则按它离屏幕的距离安排加载顺序.
+     * 加载的各个步骤见ImagePipeline
+     * @return 可用于取消(只是不再回调listener)的请求
      */
-    public DiskLruCache.Editor getEditorByKey(String key){
-        DiskLruCache.Editor editor=null;
-        try {
-            editor=mDiskLruCache.edit(key);
-        } catch (Exception e) {
-        }
-        return editor;
+    public SingleFlightLoader<String, ImageHandle<Bitmap>>.Request loadBitmapAsync(String imageUrl, int width,
+            SingleFlightLoader.Listener<ImageHandle<Bitmap>> listener){
+        return mImagePipeline.loadImageAsync(imageUrl, width, listener);
+    }
+
+    /**
+     * loadBitmapAsync()的listener若实现了该接口,从网络下载图片时还会在主线程收到下载过程中的进展,
+     * 可以在图片下载完之前先占好位置或者显示一张模糊的预览图
+     */
+    public interface ProgressListener extends ImagePipeline.ProgressListener<Bitmap> {
+    }
+
+    /**
+     * 屏幕可见区域移动时调用,等待中的加载任务按离新区域的距离重新排序,太远的直接丢弃
+     * @param top 可见区域顶端在瀑布流中的位置
+     * @param bottom 可见区域底端在瀑布流中的位置
+     */
+    public void setViewport(int top, int bottom){
+        mImagePipeline.setViewport(top, bottom);
     }
 
+    /**
+     * 将DiskLruCache的日志强制写入文件系统.
+     * 日志平时由后台线程按批写入,只在需要确保持久化时才调用该方法
+     */
     public void flushDiskLruCache(){
         try {
-            mDiskLruCache.flush();
+            mImagePipeline.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 从本地缓存中的原图解码出原尺寸的图片,不存在时返回null.
+     * 大图总是从原图解码,不使用缩略图
+     */
     public static Bitmap getBitmapFromDiskLruCache(String url){
-        Bitmap bitmap=null;
-        DiskLruCache.Snapshot snapshot=null;
-        String key=null;
-        FileInputStream fileInputStream=null;
+        return mImagePipeline.decodeOriginalFromDisk(url);
+    }
+
+    /**
+     * 打开本地缓存中的原图用于分块解码,并解码出适合viewWidth*viewHeight的控件的底图.
+     * 原图不在本地缓存中,或其格式不支持分块解码时返回null
+     */
+    public static TiledImage openTiledImage(String url, int viewWidth, int viewHeight){
+        ImagePipeline.Original original = mImagePipeline.openOriginal(url);
+        if (original == null) {
+            return null;
+        }
         try {
-            key=Utils.getStringByMD5(url);
-            snapshot=mDiskLruCache.get(key);
-            fileInputStream = (FileInputStream) snapshot.getInputStream(0);
-            bitmap=BitmapFactory.decodeStream(fileInputStream);
-        } catch (Exception e) {
-            System.out.println(""+e.toString());
-        }finally{
-            if (fileInputStream!=null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+            return TiledImage.open(original, viewWidth, viewHeight);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * ImagePipeline中Bitmap的解码和压缩.
+     * 解码时复用池子中的Bitmap,减少滑动时的GC
+     */
+    private static class BitmapCodec implements ImageCodec<Bitmap> {
+
+        @Override
+        public Bitmap decode(FileDescriptor fd, int width) {
+            // 内存缓存变大后,池子能用的预算随之变小.从池子中取之前先收缩到预算以内
+            mBitmapPool.trim();
+            return Utils.decodeSampledBitmapFromFileDescriptor(fd, width, mBitmapPool);
+        }
+
+        @Override
+        public Bitmap decode(byte[] data, int length, int width) {
+            mBitmapPool.trim();
+            return Utils.decodeSampledBitmapFromByteArray(data, length, width, mBitmapPool);
+        }
+
+        /**
+         * 预览图只显示一会儿,不从池子中取.每一步只解码一张,由等待的监听者共用,没有ImageView显示它后由recycle()放回池子
+         */
+        @Override
+        public Bitmap decodePreview(byte[] data, int length, int width) {
+            return Utils.decodeSampledBitmapFromByteArray(data, length, width, null);
+        }
+
+        @Override
+        public boolean decodeBounds(byte[] data, int length, int[] size) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, length, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return false;
             }
+            size[0] = options.outWidth;
+            size[1] = options.outHeight;
+            return true;
         }
 
-        return bitmap;
-    }
+        @Override
+        public boolean isProgressive(byte[] data, int length) {
+            return Utils.isProgressiveJpeg(data, length);
+        }
+
+        /**
+         * 有透明度的图片用PNG保存,其余用JPEG保存
+         */
+        @Override
+        public boolean encode(Bitmap bitmap, OutputStream out) {
+            Bitmap.CompressFormat format = bitmap.hasAlpha()
+                    ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            return bitmap.compress(format, THUMBNAIL_QUALITY, out);
+        }
 
-}
\ No newline at end of file
+        @Override
+        public int getWidth(Bitmap bitmap) {
+            return bitmap.getWidth();
+        }
+
+        /**
+         * 按实际分配的内存计算:复用池中较大的inBitmap解码出的小图,占用的仍是整块内存
+         */
+        @Override
+        public long getByteCount(Bitmap bitmap) {
+            return bitmap.getAllocationByteCount();
+        }
+
+        /**
+         * 最后一个句柄关闭(被内存缓存淘汰且没有人在显示)的Bitmap放入池子,供下次解码复用
+         */
+        @Override
+        public void recycle(Bitmap bitmap) {
+            mBitmapPool.put(bitmap);
+        }
+    }
+}
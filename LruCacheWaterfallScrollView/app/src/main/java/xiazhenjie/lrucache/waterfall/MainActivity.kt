@@ -8,4 +8,12 @@ class MainActivity : AppCompatActivity() {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
     }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        // 退出应用时停止加载图片的线程并关闭本地缓存;旋转屏幕等重建时不关闭
+        if (isFinishing) {
+            LruCacheImageLoader.close()
+        }
+    }
 }
\ No newline at end of file
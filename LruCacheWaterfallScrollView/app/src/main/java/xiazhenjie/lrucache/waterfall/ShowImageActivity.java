@@ -2,21 +2,42 @@ package xiazhenjie.lrucache.waterfall;
 
 
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
 import android.view.Window;
 
+import xiazhenjie.lrucache.cache.ImageHandle;
+
 /**
  * @ClassName ShowImageActivity
  * @Description TODO
  * @Author xiazhenjie
  * @Date 2022/9/8 17:33
  * @Version 1.0
+ *
+ * 打开大图分两步,点击后立刻就有画面:
+ * 1 瀑布流中这张图的缩略图还在内存缓存中时,先把它放大显示出来
+ * 2 在后台打开原图(分块解码的底图只有屏幕大小),完成后在主线程中替换掉缩略图.
+ *   替换前后图片在屏幕上的位置和大小不变,期间已经做了的拖动和缩放也保留
  */
 public class ShowImageActivity extends Activity {
+    // 在后台打开原图,所有查看大图的界面共用
+    private static final ExecutorService sOpenImageExecutor = Executors.newSingleThreadExecutor();
+
+    private LruCacheImageLoader mLruCacheImageLoader;
+    // 瀑布流中的缩略图的句柄,显示期间持有,不会被复用
+    private ImageHandle<Bitmap> mThumbnail=null;
     private Bitmap mBitmap=null;
+    private TiledImage mTiledImage=null;
     private ZoomImageView mZoomImageView;
+    private final Handler mHandler=new Handler(Looper.getMainLooper());
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -26,25 +47,91 @@ public class ShowImageActivity extends Activity {
     }
 
 
+    /**
+     * 先显示内存缓存中的缩略图,再在后台打开原图.
+     * 优先分块解码原图:只解码屏幕大小的底图,放大后再解码可见区域内的块.
+     * 格式不支持分块解码时才解码整张原图
+     */
     private void init(){
         mZoomImageView=(ZoomImageView) findViewById(R.id.zoomImageView);
-        String imageUrl=getIntent().getStringExtra("imageUrl");
-        mBitmap=LruCacheImageLoader.getBitmapFromDiskLruCache(imageUrl);
-        if (mBitmap!=null) {
-            mZoomImageView.setBitmap(mBitmap);
+        mLruCacheImageLoader=LruCacheImageLoader.getLruCacheImageLoaderInstance(this);
+        final String imageUrl=getIntent().getStringExtra("imageUrl");
+        int thumbnailWidth=getIntent().getIntExtra("thumbnailWidth", 0);
+        if (thumbnailWidth>0) {
+            // 持有句柄期间即使被内存缓存淘汰也不会被复用
+            mThumbnail=mLruCacheImageLoader.acquireBitmap(
+                    LruCacheImageLoader.getMemoryCacheKey(imageUrl, thumbnailWidth));
+            if (mThumbnail!=null) {
+                mZoomImageView.setPreviewBitmap(mThumbnail.get());
+            }
+        }
+        DisplayMetrics displayMetrics=getResources().getDisplayMetrics();
+        final int screenWidth=displayMetrics.widthPixels;
+        final int screenHeight=displayMetrics.heightPixels;
+        sOpenImageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TiledImage tiledImage=LruCacheImageLoader.openTiledImage(imageUrl, screenWidth, screenHeight);
+                final Bitmap bitmap=tiledImage==null ? LruCacheImageLoader.getBitmapFromDiskLruCache(imageUrl) : null;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onImageOpened(tiledImage, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 原图打开后在主线程中替换缩略图.
+     * 都为null时说明本地缓存中已没有原图,只能继续显示缩略图
+     */
+    private void onImageOpened(TiledImage tiledImage, Bitmap bitmap){
+        if (isDestroyed()) {
+            if (tiledImage!=null) {
+                tiledImage.recycle();
+            }
+            if (bitmap!=null) {
+                mLruCacheImageLoader.getBitmapPool().put(bitmap);
+            }
+            return;
+        }
+        if (tiledImage!=null) {
+            mTiledImage=tiledImage;
+            mZoomImageView.setTiledImage(tiledImage);
+        } else if (bitmap!=null) {
+            mBitmap=bitmap;
+            mZoomImageView.setBitmap(bitmap);
+        } else {
+            return;
+        }
+        releaseThumbnail();
+    }
+
+    private void releaseThumbnail(){
+        if (mThumbnail!=null) {
+            mThumbnail.close();
+            mThumbnail=null;
         }
     }
 
 
     /**
-     * 回收Bitmap避免内存溢出
+     * 释放Bitmap避免内存溢出.
+     * 缩略图只是关闭句柄,由内存缓存决定何时复用;
+     * 整张解码的原图不在内存缓存中,放入池子供之后的解码复用
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        releaseThumbnail();
+        if (mTiledImage!=null) {
+            mTiledImage.recycle();
+        }
         if (mBitmap!=null) {
-            mBitmap.recycle();
+            mLruCacheImageLoader.getBitmapPool().put(mBitmap);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,365 @@
+package xiazhenjie.lrucache.waterfall;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import xiazhenjie.lrucache.cache.EvictionPolicies;
+import xiazhenjie.lrucache.cache.ImagePipeline;
+import xiazhenjie.lrucache.cache.MemoryCache;
+
+/**
+ * @ClassName TiledImage
+ * @Description 分块解码显示的大图
+ *
+ * 大图整张解码很容易OOM,放大后每帧绘制整张图也会掉帧.所以:
+ * 1 打开时只解码一张与屏幕差不多大的低分辨率底图,任何时候都先画底图
+ * 2 放大到底图不够清晰时,用BitmapRegionDecoder只解码可见区域内的块(tile).
+ *   块的采样率(inSampleSize)按当前的缩放比例选取,放大得越多采样率越小,块越清晰
+ * 3 解码好的块放在按字节计算大小的缓存中,被淘汰的整块Bitmap留给之后的块复用(inBitmap)
+ * 4 块在后台线程中逐个解码,开始解码之前若已离开可见区域或缩放级别已改变,则取消
+ *
+ * 坐标都是原图中的像素坐标,Matrix把原图坐标映射到控件坐标.
+ * 除了后台的解码,所有方法都要在主线程中调用
+ */
+public class TiledImage {
+
+    // 每块解码后的边长
+    private static final int TILE_SIZE = 256;
+    // 块缓存能放下几屏的块
+    private static final int TILE_CACHE_SCREENS = 3;
+    // 最多留几块Bitmap等待复用
+    private static final int MAX_REUSABLE_TILES = 8;
+
+    /**
+     * 有块解码完成时在主线程回调,通常在这里重绘控件
+     */
+    public interface Listener {
+        void onTileDecoded();
+    }
+
+    private final ImagePipeline.Original mOriginal;
+    private final BitmapRegionDecoder mDecoder;
+    // 原图的宽高
+    private final int mWidth;
+    private final int mHeight;
+    // 底图及其采样率
+    private final Bitmap mBaseLayer;
+    private final int mBaseSampleSize;
+
+    private final MemoryCache<Long, Bitmap> mTileCache;
+    // 等待解码的块
+    private final HashMap<Long, TileTask> mPendingTasks = new HashMap<Long, TileTask>();
+    // 被淘汰的整块Bitmap,解码线程和主线程都会访问
+    private final ArrayDeque<Bitmap> mReusableTiles = new ArrayDeque<Bitmap>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TiledImage-decode");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Listener mListener;
+    private boolean isRecycled;
+
+    // 绘制时复用的对象,避免每帧创建
+    private final float[] mMatrixValues = new float[9];
+    private final Matrix mInverseMatrix = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mBaseRect = new RectF();
+    private final Rect mTileRect = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * 打开本地缓存中的原图,并解码出不小于viewWidth*viewHeight的控件所需的底图.
+     * 无论成功与否,original都交由TiledImage负责关闭
+     * @throws IOException 图片格式不支持分块解码(例如GIF)或无法解码
+     */
+    public static TiledImage open(ImagePipeline.Original original, int viewWidth, int viewHeight)
+            throws IOException {
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(original.getFileDescriptor(), false);
+            return new TiledImage(original, decoder, viewWidth, viewHeight);
+        } catch (IOException e) {
+            original.close();
+            throw e;
+        }
+    }
+
+    private TiledImage(ImagePipeline.Original original, BitmapRegionDecoder decoder, int viewWidth,
+            int viewHeight) throws IOException {
+        mOriginal = original;
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        // 底图至少要有整张图缩小到刚好放进控件时的清晰度
+        float fitScale = Math.min(viewWidth / (float) mWidth, viewHeight / (float) mHeight);
+        mBaseSampleSize = sampleSizeFor(fitScale);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = mBaseSampleSize;
+        mBaseLayer = decoder.decodeRegion(new Rect(0, 0, mWidth, mHeight), options);
+        if (mBaseLayer == null) {
+            decoder.recycle();
+            throw new IOException("cannot decode " + mWidth + "x" + mHeight + " image");
+        }
+        long screenBytes = Math.max((long) viewWidth * viewHeight, TILE_SIZE * TILE_SIZE) * 4;
+        long tileCacheSize = screenBytes * TILE_CACHE_SCREENS;
+        mTileCache = new MemoryCache<Long, Bitmap>(tileCacheSize,
+                EvictionPolicies.LRU.<Long>create(tileCacheSize)) {
+            @Override
+            protected long sizeOf(Long key, Bitmap tile) {
+                return tile.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldTile, Bitmap newTile) {
+                recycleTile(oldTile);
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 按matrix绘制图片:先画底图,底图不够清晰时再画可见区域内已解码的块,并安排解码还缺的块.
+     * 已不可见或不是当前缩放级别的块,若还没开始解码则取消
+     * @param viewWidth 控件的宽,用于计算可见区域
+     * @param viewHeight 控件的高
+     */
+    public void draw(Canvas canvas, Matrix matrix, int viewWidth, int viewHeight) {
+        if (isRecycled) {
+            return;
+        }
+        canvas.save();
+        canvas.concat(matrix);
+        mBaseRect.set(0, 0, mWidth, mHeight);
+        canvas.drawBitmap(mBaseLayer, null, mBaseRect, mPaint);
+        matrix.getValues(mMatrixValues);
+        int sampleSize = sampleSizeFor(mMatrixValues[Matrix.MSCALE_X]);
+        if (sampleSize < mBaseSampleSize && matrix.invert(mInverseMatrix)) {
+            mVisibleRect.set(0, 0, viewWidth, viewHeight);
+            mInverseMatrix.mapRect(mVisibleRect);
+            drawTiles(canvas, sampleSize);
+        } else {
+            cancelTasksOutside(0, -1, 0, -1, 0);
+        }
+        canvas.restore();
+    }
+
+    private void drawTiles(Canvas canvas, int sampleSize) {
+        // 一块覆盖原图中的边长
+        int tileSpan = TILE_SIZE * sampleSize;
+        int firstColumn = Math.max(0, (int) (mVisibleRect.left / tileSpan));
+        int lastColumn = Math.min((mWidth - 1) / tileSpan, (int) (mVisibleRect.right / tileSpan));
+        int firstRow = Math.max(0, (int) (mVisibleRect.top / tileSpan));
+        int lastRow = Math.min((mHeight - 1) / tileSpan, (int) (mVisibleRect.bottom / tileSpan));
+        cancelTasksOutside(firstRow, lastRow, firstColumn, lastColumn, sampleSize);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                long key = tileKey(sampleSize, row, column);
+                Bitmap tile = mTileCache.get(key);
+                if (tile != null) {
+                    setTileRect(mTileRect, sampleSize, row, column);
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else if (!mPendingTasks.containsKey(key)) {
+                    TileTask task = new TileTask(key, sampleSize, row, column);
+                    mPendingTasks.put(key, task);
+                    mExecutor.execute(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * 取消不在[firstRow,lastRow]*[firstColumn,lastColumn]之内或采样率不是sampleSize的块.
+     * 已经开始解码的块不受影响,解码完成后直接丢弃
+     */
+    private void cancelTasksOutside(int firstRow, int lastRow, int firstColumn, int lastColumn, int sampleSize) {
+        for (Iterator<TileTask> i = mPendingTasks.values().iterator(); i.hasNext(); ) {
+            TileTask task = i.next();
+            if (task.sampleSize != sampleSize || task.row < firstRow || task.row > lastRow
+                    || task.column < firstColumn || task.column > lastColumn) {
+                task.isCancelled = true;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * 释放所有Bitmap并关闭原图.之后不能再绘制
+     */
+    public void recycle() {
+        if (isRecycled) {
+            return;
+        }
+        isRecycled = true;
+        cancelTasksOutside(0, -1, 0, -1, 0);
+        mTileCache.evictAll();
+        synchronized (mReusableTiles) {
+            for (Bitmap tile : mReusableTiles) {
+                tile.recycle();
+            }
+            mReusableTiles.clear();
+        }
+        mBaseLayer.recycle();
+        // 在解码线程中关闭,不必在主线程等待正在解码的块
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.recycle();
+                mOriginal.close();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 在解码线程中解码一块,取消或失败时返回null
+     */
+    private Bitmap decodeTile(TileTask task) {
+        Rect region = new Rect();
+        setTileRect(region, task.sampleSize, task.row, task.column);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = task.sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        // 只有整块解码出来正好是TILE_SIZE*TILE_SIZE,边缘的块较小,不复用
+        int tileSpan = TILE_SIZE * task.sampleSize;
+        Bitmap inBitmap = null;
+        if (region.width() == tileSpan && region.height() == tileSpan) {
+            synchronized (mReusableTiles) {
+                inBitmap = mReusableTiles.poll();
+            }
+        }
+        options.inBitmap = inBitmap;
+        try {
+            try {
+                return mDecoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                if (inBitmap == null) {
+                    throw e;
+                }
+                inBitmap.recycle();
+                options.inBitmap = null;
+                return mDecoder.decodeRegion(region, options);
+            }
+        } catch (IllegalStateException e) {
+            // 解码器已被回收
+            return null;
+        }
+    }
+
+    /**
+     * 在主线程中接收解码完的块.期间被取消或已回收的块直接丢弃
+     */
+    private void onTileDecoded(TileTask task, Bitmap tile) {
+        if (mPendingTasks.get(task.key) != task) {
+            if (tile != null) {
+                recycleTile(tile);
+            }
+            return;
+        }
+        mPendingTasks.remove(task.key);
+        if (tile != null) {
+            mTileCache.put(task.key, tile);
+            if (mListener != null) {
+                mListener.onTileDecoded();
+            }
+        }
+    }
+
+    /**
+     * 整块的Bitmap留着复用,其余的回收
+     */
+    private void recycleTile(Bitmap tile) {
+        if (!isRecycled && tile.getWidth() == TILE_SIZE && tile.getHeight() == TILE_SIZE && tile.isMutable()) {
+            synchronized (mReusableTiles) {
+                if (mReusableTiles.size() < MAX_REUSABLE_TILES) {
+                    mReusableTiles.push(tile);
+                    return;
+                }
+            }
+        }
+        tile.recycle();
+    }
+
+    /**
+     * 第row行第column列的块在原图中的范围
+     */
+    private void setTileRect(Rect rect, int sampleSize, int row, int column) {
+        int tileSpan = TILE_SIZE * sampleSize;
+        rect.set(column * tileSpan, row * tileSpan,
+                Math.min(mWidth, (column + 1) * tileSpan), Math.min(mHeight, (row + 1) * tileSpan));
+    }
+
+    private static long tileKey(int sampleSize, int row, int column) {
+        return ((long) sampleSize << 48) | ((long) row << 24) | column;
+    }
+
+    /**
+     * 以scale(控件像素/原图像素)显示时可用的最大的2的幂采样率,采样后的清晰度不低于显示所需
+     */
+    private static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (sampleSize < (1 << 16) && sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private final class TileTask implements Runnable {
+        final long key;
+        final int sampleSize;
+        final int row;
+        final int column;
+        volatile boolean isCancelled;
+
+        TileTask(long key, int sampleSize, int row, int column) {
+            this.key = key;
+            this.sampleSize = sampleSize;
+            this.row = row;
+            this.column = column;
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled) {
+                return;
+            }
+            final Bitmap tile = decodeTile(this);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onTileDecoded(TileTask.this, tile);
+                }
+            });
+        }
+    }
+}
@@ -7,11 +7,8 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -22,6 +19,8 @@ import android.graphics.BitmapFactory.Options;
 import android.os.Environment;
 import android.util.Log;
 
+import xiazhenjie.lrucache.cache.CacheKeys;
+
 /**
  * @ClassName Utils
  * @Description TODO
@@ -71,6 +70,134 @@ public class Utils {
         return null;
     }
 
+    /**
+     * 从文件描述符解码宽为requestWidth的图片,并尽量复用BitmapPool中的Bitmap.
+     * requestWidth<=0或图片本身不够宽时按原尺寸解码
+     *
+     * 注意事项:
+     * 1 先只解码边界(inJustDecodeBounds)拿到图片宽高,才能算出缩放比例,以及从池子中挑出大小合适的Bitmap.
+     *   decodeFileDescriptor()不会改变文件描述符的读取位置,所以可以对同一个描述符解码两次
+     * 2 先用2的幂的inSampleSize让解码器少读像素(采样后宽仍不小于requestWidth),
+     *   再用inDensity/inTargetDensity把采样后的宽精确缩放到requestWidth,
+     *   这样内存中的图片正好是要显示的大小,不必在显示时再缩放
+     * 3 inMutable=true,这样解码出来的Bitmap以后也可以放回池子被复用
+     * 4 若池子里的Bitmap不能用于inBitmap,BitmapFactory会抛出IllegalArgumentException,
+     *   此时把它放回池子并不复用Bitmap再解码一次
+     */
+    public static Bitmap decodeSampledBitmapFromFileDescriptor(FileDescriptor fileDescriptor, int requestWidth,
+            BitmapPool bitmapPool){
+        return decodeSampledBitmap(fileDescriptor, null, 0, requestWidth, bitmapPool);
+    }
+
+    /**
+     * 从data的前length个字节中解码宽为requestWidth的图片,并尽量复用BitmapPool中的Bitmap.
+     * 与decodeSampledBitmapFromFileDescriptor()相同,只是图片已在内存中,不需要再读文件
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int length, int requestWidth,
+            BitmapPool bitmapPool){
+        return decodeSampledBitmap(null, data, length, requestWidth, bitmapPool);
+    }
+
+    /**
+     * fileDescriptor不为null时从文件描述符解码,否则从data的前length个字节解码
+     */
+    private static Bitmap decodeSampledBitmap(FileDescriptor fileDescriptor, byte[] data, int length,
+            int requestWidth, BitmapPool bitmapPool){
+        Options options=new Options();
+        options.inJustDecodeBounds=true;
+        decode(fileDescriptor, data, length, options);
+        if (options.outWidth<=0 || options.outHeight<=0) {
+            return null;
+        }
+        int targetWidth=options.outWidth;
+        int targetHeight=options.outHeight;
+        options.inSampleSize=1;
+        boolean scaled=false;
+        if (requestWidth>0 && options.outWidth>requestWidth) {
+            options.inSampleSize=calculatePowerOfTwoInSampleSize(options.outWidth, requestWidth);
+            int sampledWidth=options.outWidth/options.inSampleSize;
+            if (sampledWidth>requestWidth) {
+                scaled=true;
+                options.inScaled=true;
+                options.inDensity=sampledWidth;
+                options.inTargetDensity=requestWidth;
+            }
+            targetWidth=requestWidth;
+            targetHeight=Math.max(1, Math.round(options.outHeight*(float) requestWidth/options.outWidth));
+        }
+        options.inJustDecodeBounds=false;
+        options.inMutable=true;
+        options.inPreferredConfig=Bitmap.Config.ARGB_8888;
+        Bitmap inBitmap=null;
+        if (bitmapPool!=null) {
+            inBitmap=bitmapPool.get(targetWidth, targetHeight, options.inPreferredConfig);
+            options.inBitmap=inBitmap;
+        }
+        Bitmap bitmap;
+        try {
+            bitmap=decode(fileDescriptor, data, length, options);
+        } catch (IllegalArgumentException e) {
+            if (inBitmap==null) {
+                throw e;
+            }
+            bitmapPool.put(inBitmap);
+            options.inBitmap=null;
+            bitmap=decode(fileDescriptor, data, length, options);
+        }
+        if (bitmap!=null && scaled) {
+            // inDensity只是用来缩放的,不让它影响显示时的尺寸
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return bitmap;
+    }
+
+    private static Bitmap decode(FileDescriptor fileDescriptor, byte[] data, int length, Options options){
+        if (fileDescriptor!=null) {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, length, options);
+    }
+
+    /**
+     * data的前length个字节是否是渐进式JPEG的开头.
+     * 从SOI之后逐个跳过JPEG的段,直到遇到帧开始(SOF)段:SOF2是渐进式,其余SOF是基线或其他方式.
+     * 数据不够读到SOF段时返回false
+     */
+    public static boolean isProgressiveJpeg(byte[] data, int length){
+        if (length<4 || (data[0]&0xFF)!=0xFF || (data[1]&0xFF)!=0xD8) {
+            return false;
+        }
+        int offset=2;
+        while (offset+4<=length) {
+            if ((data[offset]&0xFF)!=0xFF) {
+                return false;
+            }
+            int marker=data[offset+1]&0xFF;
+            if (marker==0xFF) {
+                // 段之间可以有填充的0xFF
+                offset++;
+                continue;
+            }
+            if (marker>=0xC0 && marker<=0xCF && marker!=0xC4 && marker!=0xC8 && marker!=0xCC) {
+                return marker==0xC2 || marker==0xC6 || marker==0xCA || marker==0xCE;
+            }
+            int segmentLength=((data[offset+2]&0xFF)<<8) | (data[offset+3]&0xFF);
+            offset+=2+segmentLength;
+        }
+        return false;
+    }
+
+    /**
+     * 计算2的幂的缩放比例,使缩放后的宽仍不小于requestWidth
+     */
+    public static int calculatePowerOfTwoInSampleSize(int outWidth, int requestWidth){
+        int inSampleSize=1;
+        while (outWidth/(inSampleSize*2)>=requestWidth) {
+            inSampleSize*=2;
+        }
+        return inSampleSize;
+    }
+
     /**
      * 计算图片的缩放比例
      */
@@ -202,89 +329,11 @@ public class Utils {
 
     /**
      * 将字符串用MD5编码.
-     * 比如在该示例中将url进行MD5编码
+     * 比如在该示例中将url进行MD5编码.
+     * 结果固定为32个十六进制字符;旧版本每个字节去掉了前导0,旧的key见CacheKeys.legacyMd5Key()
      */
     public static String getStringByMD5(String string) {
-        String md5String = null;
-        try {
-            // Create MD5 Hash
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            messageDigest.update(string.getBytes());
-            byte messageDigestByteArray[] = messageDigest.digest();
-            if (messageDigestByteArray == null || messageDigestByteArray.length == 0) {
-                return md5String;
-            }
-
-            // Create hexadecimal String
-            StringBuffer hexadecimalStringBuffer = new StringBuffer();
-            int length = messageDigestByteArray.length;
-            for (int i = 0; i < length; i++) {
-                hexadecimalStringBuffer.append(Integer.toHexString(0xFF & messageDigestByteArray[i]));
-            }
-            md5String = hexadecimalStringBuffer.toString();
-            return md5String;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        return md5String;
-    }
-
-
-    /**
-     * 从网络获取图片且保存至SD卡中的缓存
-     */
-    public static boolean getBitmapFromNetWorkAndSaveToDiskLruCache(String imageUrl,OutputStream outputStream){
-        boolean isSuccessfull = false;
-        URL url=null;
-        HttpURLConnection httpURLConnection=null;
-        BufferedOutputStream bufferedOutputStream=null;
-        InputStream inputStream=null;
-        BufferedInputStream bufferedInputStream=null;
-        try {
-            url = new URL(imageUrl);
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            // 设置它的请求方式
-            httpURLConnection.setRequestMethod("GET");
-            // 设置它的请求超时时间
-            httpURLConnection.setConnectTimeout(5000);
-            // 设置超时读取时间
-            httpURLConnection.setReadTimeout(3000);
-
-            if (httpURLConnection.getResponseCode()==200) {
-                bufferedOutputStream=new BufferedOutputStream(outputStream);
-                inputStream=httpURLConnection.getInputStream();
-                bufferedInputStream=new BufferedInputStream(inputStream);
-                int len=0;
-                byte [] buffer=new byte[1024];
-                while((len=bufferedInputStream.read(buffer))!=-1){
-                    bufferedOutputStream.write(buffer, 0, len);
-                    bufferedOutputStream.flush();
-                }
-                isSuccessfull=true;
-            } else {
-                System.out.println("图片请求失败");
-            }
-        } catch (Exception e) {
-            System.out.println("e="+e.toString());
-        }finally{
-            try {
-                if (bufferedOutputStream!=null) {
-                    bufferedOutputStream.close();
-                }
-                if (inputStream!=null) {
-                    inputStream.close();
-                }
-                if (bufferedInputStream!=null) {
-                    bufferedInputStream.close();
-                }
-                if (httpURLConnection!=null) {
-                    httpURLConnection.disconnect();
-                }
-            } catch (Exception e) {
-                System.out.println("e="+e.toString());
-            }
-        }
-        return isSuccessfull;
+        return CacheKeys.md5(string);
     }
 
 }
\ No newline at end of file
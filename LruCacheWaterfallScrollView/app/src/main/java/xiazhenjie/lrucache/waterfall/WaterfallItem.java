@@ -0,0 +1,31 @@
+package xiazhenjie.lrucache.waterfall;
+
+import android.widget.ImageView;
+
+/**
+ * @ClassName WaterfallItem
+ * @Description 瀑布流中的一张图片:它的url,所在的列以及上下边在ScrollView中的位置
+ *
+ * 位置在加入瀑布流时按最矮的列算好,之后不再改变.
+ * 复用ImageView时只有视口附近的图片才绑定了ImageView,其余的imageView为null,
+ * 所以滑过几千张图片后占用的也只是这些很小的对象.
+ */
+final class WaterfallItem {
+    final String imageUrl;
+    final int column;
+    final int top;
+    final int bottom;
+    // 当前绑定的ImageView,没有绑定时为null
+    ImageView imageView;
+
+    WaterfallItem(String imageUrl, int column, int top, int bottom) {
+        this.imageUrl = imageUrl;
+        this.column = column;
+        this.top = top;
+        this.bottom = bottom;
+    }
+
+    int getHeight() {
+        return bottom - top;
+    }
+}
@@ -1,23 +1,18 @@
 package xiazhenjie.lrucache.waterfall;
 
 
-import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.HashSet;
-import xiazhenjie.lrucache.waterfall.DiskLruCache;
-import xiazhenjie.lrucache.waterfall.DiskLruCache.Snapshot;
+import java.util.List;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
@@ -26,6 +21,12 @@ import android.widget.ImageView.ScaleType;
 import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.Toast;
+
+import xiazhenjie.lrucache.cache.LoadScheduler;
+import xiazhenjie.lrucache.cache.PipelineMetrics;
+import xiazhenjie.lrucache.cache.ImageHandle;
+import xiazhenjie.lrucache.cache.SingleFlightLoader;
+
 /**
  * Demo功能:
  * 加载网络图片实现图片瀑布流效果(参见截图)
@@ -45,6 +46,13 @@ import android.widget.Toast;
  *   3.4 在添加图片后对ScrollView中所有ImageView进行检查.
  *       对于不在屏幕上显示的ImageView将其所加载的网络图片替换成本地一张小图片.
  * 4 为了加载速度和内存的有效使用,示例中采用了LruCache以及DiskLruCache
+ * 5 复用ImageView(默认开启,见setRecycleImageViews()):
+ *   每张图片只记录为一个WaterfallItem(url,所在列,上下边位置),位置仍按最矮的列算好.
+ *   只有视口上下各半屏范围内的图片才从mRecycledImageViews中取一个ImageView绑定上去,
+ *   移出范围的ImageView解除绑定后放回mRecycledImageViews.
+ *   每一列的LinearLayout中只有:顶部占位View,绑定了的ImageView,底部占位View.
+ *   两个占位View的高度撑起没有绑定ImageView的部分,所以ScrollView的内容高度和滑动位置都不变.
+ *   这样滑过几千张图片后,ImageView的个数和布局,测量的开销都不再增长.
  *
  *
  * 错误总结:
@@ -79,14 +87,27 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
     private int thirdColumnHeight;
     // 第三列的布局
     private LinearLayout mThirdLinearLayout;
+    // 是否复用ImageView,只给视口附近的图片绑定ImageView
+    private boolean isRecycleImageViews = true;
+    // 每一列顶部和底部的占位View,撑起没有绑定ImageView的部分
+    private View[] mTopSpacers;
+    private View[] mBottomSpacers;
+    // 解除绑定后可以复用的ImageView
+    private ArrayDeque<ImageView> mRecycledImageViews;
+    // 所有ImageView共用的点击事件
+    private OnClickListener mImageViewOnClickListener;
     // 是否已经进入该界面
     private boolean isFirstEnterThisScrollView = false;
     // LruCache
     private LruCacheImageLoader mLruCacheImageLoader;
-    // 记录所有正在下载或等待下载的异步任务
-    private HashSet<LoadImageAsyncTask> mLoadImageAsyncTaskHashSet;
-    // 记录ScrollView中的所有ImageView
-    private ArrayList<ImageView> mAllImageViewArrayList;
+    // 记录加载下一页时所有正在下载或等待下载的请求
+    private HashSet<SingleFlightLoader<String, ImageHandle<Bitmap>>.Request> mPageLoadRequestHashSet;
+    // 按滑动速度预取视口前方的图片
+    private ImagePrefetcher mImagePrefetcher;
+    // 上一次预取时的滑动位置
+    private int lastPrefetchScrollY = -1;
+    // 按列记录瀑布流中所有图片的上下边位置
+    private ColumnIntervalIndex<WaterfallItem> mItemIndex;
     // 该WaterfallScrollView控件的高度
     private int waterfallScrollViewHeight;
     // ScrollView顶端已经向上滑出屏幕长度
@@ -97,6 +118,9 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
     // Context
     private Context mContext;
     private final int REFRESH = 9527;
+    private static final String TAG = "WaterfallScrollView";
+    // 上一次停止滚动时加载图片的各项指标,用于计算每次滑动期间的数据
+    private PipelineMetrics.Snapshot mLastMetrics;
 
     public WaterfallScrollView(Context context) {
         super(context);
@@ -123,9 +147,21 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
     private void init(Context context){
         mContext = context;
         this.setOnTouchListener(this);
-        mAllImageViewArrayList = new ArrayList<ImageView>();
-        mLoadImageAsyncTaskHashSet = new HashSet<LoadImageAsyncTask>();
+        mItemIndex = new ColumnIntervalIndex<WaterfallItem>(3);
+        mRecycledImageViews = new ArrayDeque<ImageView>();
+        mImageViewOnClickListener = new OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent intent = new Intent(mContext,ShowImageActivity.class);
+                intent.putExtra("imageUrl", (String) view.getTag(R.string.IMAGE_URL_TAG));
+                // 大图界面先用内存缓存中这个宽度的缩略图占位
+                intent.putExtra("thumbnailWidth", everyColumnWidth);
+                mContext.startActivity(intent);
+            }
+        };
+        mPageLoadRequestHashSet = new HashSet<SingleFlightLoader<String, ImageHandle<Bitmap>>.Request>();
         mLruCacheImageLoader = LruCacheImageLoader.getLruCacheImageLoaderInstance(mContext);
+        mImagePrefetcher = new ImagePrefetcher(mLruCacheImageLoader);
 
         mHandler = new Handler(Looper.myLooper()){
             @Override
@@ -138,12 +174,15 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
                     if (lastScrollY == scrollY) {
                         // 当滚动到最底部,并且当前没有正在下载的任务时,开始加载下一页的图片
                         int scrollViewMeasuredHeight = waterfallScrollView.getChildAt(0).getMeasuredHeight();
-                        boolean isAsyncTaskHashSetEmpty = mLoadImageAsyncTaskHashSet.isEmpty();
-                        if (waterfallScrollViewHeight + scrollY >= scrollViewMeasuredHeight && isAsyncTaskHashSetEmpty) {
+                        boolean isPageLoadRequestHashSetEmpty = mPageLoadRequestHashSet.isEmpty();
+                        if (waterfallScrollViewHeight + scrollY >= scrollViewMeasuredHeight && isPageLoadRequestHashSetEmpty) {
                             waterfallScrollView.loadNextPageImages();
                         }
                         //检查所有ImageView的可见性
-                        checkAllImageViewVisibility();
+                        checkAllImageViewVisibility(true);
+                        mImagePrefetcher.onScrollStopped();
+                        prefetch();
+                        logScrollMetrics();
                     } else {
                         lastScrollY = scrollY;
                         Message message = new Message();
@@ -172,10 +211,109 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
             mSecondLinearLayout=(LinearLayout) findViewById(R.id.secondLinearLayout);
             mThirdLinearLayout=(LinearLayout) findViewById(R.id.thirdLinearLayout);
             everyColumnWidth=mFirstLinearLayout.getWidth();
+            // 图片直接解码成列宽,预取的图片也要同样的宽度才能被显示
+            mImagePrefetcher.setImageWidth(everyColumnWidth);
+            if (isRecycleImageViews) {
+                mTopSpacers = new View[3];
+                mBottomSpacers = new View[3];
+                for (int column = 0; column < 3; column++) {
+                    mTopSpacers[column] = new View(mContext);
+                    mTopSpacers[column].setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 0));
+                    mBottomSpacers[column] = new View(mContext);
+                    mBottomSpacers[column].setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 0));
+                    layoutColumn(column);
+                }
+            }
+            mLruCacheImageLoader.setViewport(getScrollY(), getScrollY() + waterfallScrollViewHeight);
+            // 先确定视口,之后加入的图片才知道自己是否可见
+            checkAllImageViewVisibility(false);
             loadNextPageImages();
         }
     }
 
+    /**
+     * 滑动时把可见区域告诉LruCacheImageLoader,让离屏幕近的图片先加载
+     */
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        if (mLruCacheImageLoader != null) {
+            mLruCacheImageLoader.setViewport(t, t + waterfallScrollViewHeight);
+        }
+        // 复用ImageView时滑动中就要绑定进入范围的图片,但要等停止滑动后才去加载
+        if (isRecycleImageViews && isFirstEnterThisScrollView) {
+            checkAllImageViewVisibility(false);
+        }
+        if (mImagePrefetcher != null && waterfallScrollViewHeight > 0) {
+            mImagePrefetcher.onScroll(t, waterfallScrollViewHeight);
+            // 每滑过四分之一屏预取一次
+            if (Math.abs(t - lastPrefetchScrollY) >= waterfallScrollViewHeight / 4) {
+                prefetch();
+            }
+        }
+    }
+
+    /**
+     * 预取视口前方的图片.
+     * 若向下滑动时预取范围已经超出瀑布流底部,则不等滑到最底部就开始加载下一页,
+     * 下一页的图片会先下载到本地缓存再解码到内存缓存
+     */
+    private void prefetch(){
+        int scrollY = getScrollY();
+        lastPrefetchScrollY = scrollY;
+        mImagePrefetcher.prefetch(mItemIndex, scrollY);
+        if (!mImagePrefetcher.isScrollingUp() && mPageLoadRequestHashSet.isEmpty()) {
+            int contentHeight = getChildAt(0).getMeasuredHeight();
+            if (scrollY + waterfallScrollViewHeight + mImagePrefetcher.getLookahead() >= contentHeight) {
+                loadNextPageImages();
+            }
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mImagePrefetcher.cancelAll();
+        // 交还视口中ImageView持有的句柄,被内存缓存淘汰了的图片这时就能放进池子
+        for (WaterfallItem item : mItemIndex.visible()) {
+            if (item.imageView != null) {
+                cancelLoadRequest(item.imageView);
+                hideBitmap(item.imageView);
+            }
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, mImagePrefetcher.toString());
+            Log.d(TAG, mLruCacheImageLoader.getMetricsSnapshot().toJson());
+        }
+    }
+
+    /**
+     * 输出上次停止滚动以来加载图片的各项指标.
+     * 卡顿时可以看出是内存缓存命中率低,本地缓存读得慢,还是解码太慢.
+     * 每次停止滚动都会调用,所以只在用adb shell setprop log.tag.WaterfallScrollView DEBUG打开日志后才统计和输出
+     */
+    private void logScrollMetrics(){
+        if (!Log.isLoggable(TAG, Log.DEBUG)) {
+            mLastMetrics = null;
+            return;
+        }
+        PipelineMetrics.Snapshot metrics = mLruCacheImageLoader.getMetricsSnapshot();
+        if (mLastMetrics != null) {
+            Log.d(TAG, metrics.since(mLastMetrics).toString());
+        }
+        mLastMetrics = metrics;
+    }
+
+    /**
+     * 设置是否复用ImageView,需在第一次布局之前调用
+     */
+    public void setRecycleImageViews(boolean recycleImageViews) {
+        if (isFirstEnterThisScrollView) {
+            throw new IllegalStateException("setRecycleImageViews() must be called before the first layout");
+        }
+        isRecycleImageViews = recycleImageViews;
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
@@ -202,17 +340,17 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
         if (Utils.isExistSDCard()) {
             int start = PAGE_SIZE*currentPage;
             int end = PAGE_SIZE*currentPage+PAGE_SIZE;
-            LoadImageAsyncTask loadImageAsyncTask;
             if (end > ImagesUrl.urlStringArray.length) {
                 end = ImagesUrl.urlStringArray.length;
             }
             if (start < ImagesUrl.urlStringArray.length) {
                 Toast.makeText(mContext, "开始加载", Toast.LENGTH_SHORT).show();
+                // 下一页的图片都会排在瀑布流的底部
+                int pageTop = getChildAt(0).getMeasuredHeight();
                 for (int i = start;i < end; i++) {
-                    System.out.println("加载"+i);
-                    loadImageAsyncTask = new LoadImageAsyncTask();
-                    loadImageAsyncTask.execute(ImagesUrl.urlStringArray[i]);
-                    mLoadImageAsyncTaskHashSet.add(loadImageAsyncTask);
+                    ImageLoadListener imageLoadListener = new ImageLoadListener(ImagesUrl.urlStringArray[i], pageTop);
+                    imageLoadListener.request = mLruCacheImageLoader.loadBitmapAsync(ImagesUrl.urlStringArray[i], everyColumnWidth, imageLoadListener);
+                    mPageLoadRequestHashSet.add(imageLoadListener.request);
                 }
                 currentPage++;
             }
@@ -228,203 +366,440 @@ public class WaterfallScrollView extends ScrollView implements OnTouchListener {
      * 2 若不在LruCache中,则从本地缓存中取出
      * 3 若本地缓存中也不存在那么开启异步任务下载
      * 4 下载完成后将图片保存至本地和内存缓存中
-     *   第2,3,4步可以参见LoadImageAsyncTask
+     *   第2,3,4步可以参见LruCacheImageLoader.loadBitmapAsync()
      * 若不可见:
-     * 将ImageView显示的图片替换成本地图片
+     * 将ImageView显示的图片替换成本地图片,并取消它尚未完成的加载请求
+     *
+     * 每个ImageView正在等待的请求记录在R.string.LOAD_REQUEST_TAG中,
+     * 反复停止滑动时不会为同一个ImageView重复发起请求
+     *
+     * 不再遍历所有ImageView:由mItemIndex二分查找出进入和离开视口的图片,
+     * 只处理它们以及视口中之前加载失败的图片,耗时与视口中的图片数成正比
+     *
+     * 复用ImageView时视口上下各多算半屏:进入的图片绑定ImageView,离开的解除绑定
+     * @param loadMissing 是否为不在LruCache中的图片发起加载请求.滑动中为false,停止滑动后为true
      */
-    private void checkAllImageViewVisibility(){
-        ImageView imageView=null;
-        for(int i=0;i<mAllImageViewArrayList.size();i++){
-            imageView=mAllImageViewArrayList.get(i);
-            int top_border=(Integer) imageView.getTag(R.string.TOP_BORDER_TAG);
-            int bottom_border=(Integer) imageView.getTag(R.string.BOTTOM_BORDER_TAG);
-            if (bottom_border > getScrollY() && top_border < getScrollY() + waterfallScrollViewHeight) {
-                String imageUrl=(String) imageView.getTag(R.string.IMAGE_URL_TAG);
-                Bitmap bitmap=mLruCacheImageLoader.getBitmapFromLruCache(imageUrl);
-                if (bitmap==null) {
-                    LoadImageAsyncTask loadImageAsyncTask=new LoadImageAsyncTask(imageView);
-                    loadImageAsyncTask.execute(imageUrl);
-                } else {
-                    System.out.println("---> 从内存缓存中取出图片");
-                    imageView.setImageBitmap(bitmap);
+    private void checkAllImageViewVisibility(boolean loadMissing){
+        int scrollY = getScrollY();
+        int margin = isRecycleImageViews ? waterfallScrollViewHeight / 2 : 0;
+        ColumnIntervalIndex.Change<WaterfallItem> change =
+                mItemIndex.setViewport(scrollY - margin, scrollY + waterfallScrollViewHeight + margin);
+        boolean[] changedColumns = new boolean[3];
+        for (WaterfallItem item : change.leaving) {
+            cancelLoadRequest(item.imageView);
+            hideBitmap(item.imageView);
+            if (isRecycleImageViews) {
+                unbindImageView(item);
+                changedColumns[item.column] = true;
+            }
+        }
+        for (WaterfallItem item : change.entering) {
+            if (item.imageView == null) {
+                bindImageView(item);
+                changedColumns[item.column] = true;
+            }
+            showOrLoadBitmap(item.imageView, loadMissing);
+        }
+        for (int column = 0; column < 3; column++) {
+            if (changedColumns[column]) {
+                layoutColumn(column);
+            }
+        }
+        if (loadMissing) {
+            // 视口中没有图片也没有在加载的,是之前加载失败了或者是滑动中进入的,加载它
+            for (WaterfallItem item : mItemIndex.visible()) {
+                if (item.imageView.getTag(R.string.BITMAP_TAG) == null
+                        && item.imageView.getTag(R.string.LOAD_REQUEST_TAG) == null) {
+                    showOrLoadBitmap(item.imageView, true);
                 }
+            }
+        }
+    }
 
-            } else {
-                imageView.setImageResource(R.drawable.img_default_bg);
+    /**
+     * 可见的imageView:图片在LruCache中就直接显示,否则若load为true则发起加载请求
+     */
+    private void showOrLoadBitmap(ImageView imageView, boolean load){
+        String imageUrl=(String) imageView.getTag(R.string.IMAGE_URL_TAG);
+        ImageHandle<Bitmap> bitmap=mLruCacheImageLoader.acquireBitmap(
+                LruCacheImageLoader.getMemoryCacheKey(imageUrl, everyColumnWidth));
+        if (bitmap==null) {
+            if (load && imageView.getTag(R.string.LOAD_REQUEST_TAG) == null) {
+                int top_border=(Integer) imageView.getTag(R.string.TOP_BORDER_TAG);
+                int bottom_border=(Integer) imageView.getTag(R.string.BOTTOM_BORDER_TAG);
+                ImageLoadListener imageLoadListener = new ImageLoadListener(imageUrl, imageView,
+                        top_border, bottom_border);
+                imageLoadListener.request = mLruCacheImageLoader.loadBitmapAsync(imageUrl, everyColumnWidth, imageLoadListener);
+                imageView.setTag(R.string.LOAD_REQUEST_TAG, imageLoadListener.request);
             }
+        } else {
+            cancelLoadRequest(imageView);
+            showBitmap(imageView, bitmap);
+            mImagePrefetcher.onDisplayed(imageUrl);
         }
     }
 
     /**
-     * 该LoadImageAsyncTask是获取图片的入口:
+     * 给item绑定一个ImageView,优先复用mRecycledImageViews中的.
+     * 绑定后显示默认图片,位置等信息照旧保存在ImageView的tag中
+     */
+    private void bindImageView(WaterfallItem item){
+        ImageView imageView = mRecycledImageViews.poll();
+        if (imageView == null) {
+            imageView = new ImageView(mContext);
+            imageView.setLayoutParams(new LinearLayout.LayoutParams(everyColumnWidth, item.getHeight()));
+            imageView.setScaleType(ScaleType.FIT_XY);
+            imageView.setPadding(5, 5, 5, 5);
+            imageView.setOnClickListener(mImageViewOnClickListener);
+        } else {
+            imageView.getLayoutParams().width = everyColumnWidth;
+            imageView.getLayoutParams().height = item.getHeight();
+        }
+        imageView.setImageResource(R.drawable.img_default_bg);
+        imageView.setTag(R.string.IMAGE_URL_TAG, item.imageUrl);
+        imageView.setTag(R.string.TOP_BORDER_TAG, item.top);
+        imageView.setTag(R.string.BOTTOM_BORDER_TAG, item.bottom);
+        item.imageView = imageView;
+    }
+
+    /**
+     * 解除item与ImageView的绑定,ImageView放回mRecycledImageViews.
+     * 调用前ImageView的加载请求已取消,图片已交还
+     */
+    private void unbindImageView(WaterfallItem item){
+        ImageView imageView = item.imageView;
+        item.imageView = null;
+        ((LinearLayout) imageView.getParent()).removeView(imageView);
+        mRecycledImageViews.add(imageView);
+    }
+
+    /**
+     * 复用ImageView时重新排列column列:顶部占位View,绑定了ImageView的图片从上到下,底部占位View
+     */
+    private void layoutColumn(int column){
+        LinearLayout linearLayout = getColumnLinearLayout(column);
+        List<WaterfallItem> boundItems = mItemIndex.visibleInColumn(column);
+        int columnHeight = getColumnHeight(column);
+        int boundTop = boundItems.isEmpty() ? columnHeight : boundItems.get(0).top;
+        int boundBottom = boundItems.isEmpty() ? columnHeight : boundItems.get(boundItems.size() - 1).bottom;
+        linearLayout.removeAllViews();
+        mTopSpacers[column].getLayoutParams().height = boundTop;
+        linearLayout.addView(mTopSpacers[column]);
+        for (WaterfallItem item : boundItems) {
+            linearLayout.addView(item.imageView);
+        }
+        mBottomSpacers[column].getLayoutParams().height = columnHeight - boundBottom;
+        linearLayout.addView(mBottomSpacers[column]);
+    }
+
+    private LinearLayout getColumnLinearLayout(int column){
+        switch (column) {
+            case 0:
+                return mFirstLinearLayout;
+            case 1:
+                return mSecondLinearLayout;
+            default:
+                return mThirdLinearLayout;
+        }
+    }
+
+    private int getColumnHeight(int column){
+        switch (column) {
+            case 0:
+                return firstColumnHeight;
+            case 1:
+                return secondColumnHeight;
+            default:
+                return thirdColumnHeight;
+        }
+    }
+
+    /**
+     * 取消imageView尚未完成的加载请求.
+     * 只是不再回调该ImageView,若其他ImageView也在等同一张图片,下载会继续
+     */
+    private void cancelLoadRequest(ImageView imageView){
+        @SuppressWarnings("unchecked")
+        SingleFlightLoader<String, ImageHandle<Bitmap>>.Request request =
+                (SingleFlightLoader<String, ImageHandle<Bitmap>>.Request) imageView.getTag(R.string.LOAD_REQUEST_TAG);
+        if (request != null) {
+            request.cancel();
+            imageView.setTag(R.string.LOAD_REQUEST_TAG, null);
+        }
+    }
+
+    /**
+     * 让imageView显示bitmap.
+     * bitmap必须是一个新的句柄(acquireBitmap()或duplicate()得到的),它从此归imageView所有.
+     * 用R.string.BITMAP_TAG记录该ImageView当前持有的句柄,并关闭之前显示的图片的句柄
+     */
+    private void showBitmap(ImageView imageView, ImageHandle<Bitmap> bitmap){
+        @SuppressWarnings("unchecked")
+        ImageHandle<Bitmap> oldBitmap = (ImageHandle<Bitmap>) imageView.getTag(R.string.BITMAP_TAG);
+        imageView.setImageBitmap(bitmap.get());
+        imageView.setTag(R.string.BITMAP_TAG, bitmap);
+        if (oldBitmap != null) {
+            oldBitmap.close();
+        }
+    }
+
+    /**
+     * 将不可见的imageView显示的图片替换成本地图片,并关闭其原来持有的句柄.
+     * 这是图片的最后一个句柄时(已被内存缓存淘汰),图片立即放入池子复用
+     */
+    private void hideBitmap(ImageView imageView){
+        @SuppressWarnings("unchecked")
+        ImageHandle<Bitmap> oldBitmap = (ImageHandle<Bitmap>) imageView.getTag(R.string.BITMAP_TAG);
+        imageView.setImageResource(R.drawable.img_default_bg);
+        imageView.setTag(R.string.BITMAP_TAG, null);
+        if (oldBitmap != null) {
+            oldBitmap.close();
+        }
+    }
+
+    /**
+     * 图片加载完成后的回调,在主线程中执行.
      *
-     * 注意不管这个图片是在SD卡还是从网络下载,这都是获取图片的入口,这么做的好处
-     * 1   统一了获取图片的入口.
-     *   如果把获取图片分为图片在LruCache,图片在SD卡,图片在网络上这几种不同
-     *   的情况而去分别用对应的函数获取,这样势必会导致该需求的多入口.凌乱,不好优化.
-     *   而且这几种方式放到AsyncTask中都不会出错,尤其是网络请求耗时的情况下.
-     * 2 不管通过哪种方式获取到了图片,我们都要对图片进行保存,或者再次修整,比如缩放.
-     *   我们可以把这些操作又统一放到异步操作的onPostExecute()方法中.
+     * 获取图片的入口统一在LruCacheImageLoader.loadBitmapAsync()中:
+     * 不管图片是在LruCache,在SD卡还是要从网络下载,都走同一个入口,
+     * 而且同一url同时只有一个下载任务,多个ImageView同时等待同一张图片时不会重复下载和解码.
      *
      * 为什么这里有需要有两个构造方法呢？因为对应两种不同的情况
      * 情况一:
-     * 图片第一次显示时利用LoadImageAsyncTask()建立一个异步任务.当图片下载完成时new一个ImageView显示
+     * 图片第一次显示时利用ImageLoadListener(imageUrl, pageTop)发起请求.当图片下载完成时new一个ImageView显示
      * 该图片即可.
      * 比如进入应用时开始显示图片,就是这种情况.
      *
      * 情况二:
-     * 当某图片再次显示时需要一个ImageView,于是就利用LoadImageAsyncTask传入原来的ImageView;当图片的获取或者下载完成
-     * 就用原来的ImageView显示即可.
+     * 当某图片再次显示时需要一个ImageView,于是就利用ImageLoadListener(imageUrl, imageView)传入原来的ImageView;
+     * 当图片的获取或者下载完成就用原来的ImageView显示即可.
      * 比如把界面拉到最下方再拉回到最上面就是这种情况.
      *
      * 这两种情况查看addImageToScrollView()方法即可明白其体现.
      *
+     * 情况二的ImageView已经有了位置,加载任务按它离屏幕的距离排队;
+     * 情况一的ImageView还没有位置,按瀑布流底部离屏幕的距离排队:滑到底部时与屏幕上的图片一样先加载,
+     * 预取提前加载下一页时排在屏幕上的图片之后.它们决定瀑布流的布局,所以距离最多算一屏,不会因为离屏幕远而被丢弃.
+     *
+     * 从网络下载时还会收到下载过程中的进展:
+     * 情况一在读出图片宽高时就先占好位置,显示默认图片,下载完后再显示图片,大图不会迟迟不出现;
+     * 两种情况下收到渐进式JPEG的预览图时都先显示预览图.
+     *
      */
-    private class LoadImageAsyncTask extends AsyncTask<String, Void, Bitmap>{
+    private class ImageLoadListener implements SingleFlightLoader.Listener<ImageHandle<Bitmap>>, LoadScheduler.Prioritized,
+            LruCacheImageLoader.ProgressListener {
         private String imageUrl;
-        private Bitmap bitmap;
         ImageView imageView=null;
+        // 情况一在图片下载完之前就占好的位置
+        private WaterfallItem item;
+        // imageView的上下边在ScrollView中的位置,情况一时都是发起请求时瀑布流底部的位置
+        private int top;
+        private int bottom;
+        // 情况一的最大距离,小于LruCacheImageLoader丢弃任务的距离
+        private int maxDistance;
+        // 发起请求后赋值,完成时用来从记录中移除
+        SingleFlightLoader<String, ImageHandle<Bitmap>>.Request request;
+        // 正在显示的预览图及显示它的ImageView,加载完成时若还没被替换就换回默认图片
+        private ImageHandle<Bitmap> mPreview;
+        private ImageView mPreviewView;
 
-        public LoadImageAsyncTask(){
-
+        public ImageLoadListener(String imageUrl, int pageTop){
+            this.imageUrl=imageUrl;
+            this.top=pageTop;
+            this.bottom=pageTop;
+            this.maxDistance=waterfallScrollViewHeight;
         }
 
-        public LoadImageAsyncTask(ImageView imageView){
+        public ImageLoadListener(String imageUrl, ImageView imageView, int top, int bottom){
+            this.imageUrl=imageUrl;
             this.imageView=imageView;
+            this.top=top;
+            this.bottom=bottom;
         }
 
+        /**
+         * 在加载线程中调用,只读取构造时记下的位置
+         */
         @Override
-        protected Bitmap doInBackground(String... params) {
-            FileDescriptor fileDescriptor = null;
-            FileInputStream fileInputStream = null;
-            Snapshot snapshot = null;
-            imageUrl = params[0];
-            bitmap = mLruCacheImageLoader.getBitmapFromLruCache(imageUrl);
-            if (bitmap == null) {
-                try {
-                    String key = Utils.getStringByMD5(imageUrl);
-                    snapshot = mLruCacheImageLoader.getSnapShotByKey(key);
-                    // 从网络下载图片且保存至本地缓存
-                    if (snapshot == null) {
-                        DiskLruCache.Editor editor = mLruCacheImageLoader.getEditorByKey(key);
-                        if (editor != null) {
-                            OutputStream outputStream = editor.newOutputStream(0);
-                            if (Utils.getBitmapFromNetWorkAndSaveToDiskLruCache(imageUrl, outputStream)) {
-                                System.out.println("---> 从网络下载图片且保存至本地缓存");
-                                editor.commit();
-                                mLruCacheImageLoader.flushDiskLruCache();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        // 缓存被写入本地缓存后再次查找key对应的缓存
-                        snapshot = mLruCacheImageLoader.getSnapShotByKey(key);
-                    }else{
-                        System.out.println("---> 图片不在内存中但是在本地缓存中");
-                    }
+        public int distanceTo(int viewportTop, int viewportBottom) {
+            int distance = LoadScheduler.distance(top, bottom, viewportTop, viewportBottom);
+            if (imageView == null) {
+                return Math.min(distance, maxDistance);
+            }
+            return distance;
+        }
 
-                    // 将图片再保存至内存缓存
-                    if (snapshot != null) {
-                        fileInputStream = (FileInputStream) snapshot.getInputStream(0);
-                        fileDescriptor = fileInputStream.getFD();
-                        if (fileDescriptor != null) {
-                            bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-                            if (bitmap != null) {
-                                System.out.println("---> 从网络下载图片且保存至本地缓存后再缓存到内存");
-                                mLruCacheImageLoader.addBitmapToLruCache(imageUrl, bitmap);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        /**
+         * 请求是否还在等待结果
+         */
+        private boolean isPending() {
+            if (imageView == null) {
+                return mPageLoadRequestHashSet.contains(request);
+            }
+            return imageView.getTag(R.string.LOAD_REQUEST_TAG) == request;
+        }
+
+        @Override
+        public void onBoundsDecoded(int width, int height) {
+            if (imageView == null && item == null && isPending()) {
+                item = addItemToScrollView(imageUrl, getImageViewHeight(width, height));
             }
-            return bitmap;
         }
 
         /**
-         * 在onPostExecute()对图片进行修整
-         * 因为在doInBackground()的loadImage()方法中已经把经过scale的图片存到了SD卡和LruCache中
-         * 并且在计算inSampleSize的时候是以宽width为标准的.
-         * 比如inSampleSize=2,那么保存的图的宽和高都是原来的二分之一.
-         * 但是请注意inSampleSize是int类型的,那么缩放出来的比例多半不是我们期望的刚好屏幕宽度的三分之一,它是有偏差的.
-         * 所以在这里进行修正,尤其是对高进行修正.
-         * 这样就保证了宽是一个定值(屏幕的三分之一),高也得到了调整,不至于严重失真.
+         * 预览图由等待同一张图片的监听者共用,回调返回后preview就会被关闭,
+         * 复制一个句柄交给ImageView,ImageView已显示了其它图片时不显示
+         */
+        @Override
+        public void onPreviewDecoded(ImageHandle<Bitmap> preview) {
+            ImageView target = imageView != null ? imageView : item != null ? item.imageView : null;
+            if (target == null || !isPending()) {
+                return;
+            }
+            Object shown = target.getTag(R.string.BITMAP_TAG);
+            if (shown == null || (target == mPreviewView && shown == mPreview)) {
+                mPreview = preview.duplicate();
+                mPreviewView = target;
+                showBitmap(target, mPreview);
+            }
+        }
+
+        /**
+         * 预览图还显示着时换回默认图片并关闭它的句柄.
+         * 图片加载成功时已被showBitmap()替换,这里只处理加载失败或结果没有显示出来的情况
+         */
+        private void releasePreview() {
+            if (mPreviewView != null && mPreviewView.getTag(R.string.BITMAP_TAG) == mPreview) {
+                hideBitmap(mPreviewView);
+            }
+            mPreview = null;
+            mPreviewView = null;
+        }
+
+        /**
+         * 在这里计算ImageView的大小
+         * 图片在解码时已经按列宽缩放(先用2的幂的inSampleSize采样,再精确缩放到列宽),
+         * 所以宽一般就是列宽.但原图比列宽窄时不会放大,
+         * 所以仍按宽的比例计算高,保证宽是一个定值(屏幕的三分之一),高也得到了调整,不至于失真.
          *
          */
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            super.onPostExecute(bitmap);
-            mLoadImageAsyncTaskHashSet.remove(this);
-            if (bitmap != null) {
-                double ration = bitmap.getWidth()/(everyColumnWidth*1.0);
-                int imageViewHeight = (int) (bitmap.getHeight()/ration);
+        public void onLoaded(ImageHandle<Bitmap> loaded) {
+            try {
+                showLoaded(loaded);
+            } finally {
+                releasePreview();
+            }
+        }
+
+        private void showLoaded(ImageHandle<Bitmap> loaded) {
+            if (imageView == null) {
+                mPageLoadRequestHashSet.remove(request);
+            } else if (imageView.getTag(R.string.LOAD_REQUEST_TAG) == request) {
+                imageView.setTag(R.string.LOAD_REQUEST_TAG, null);
+            }
+            if (loaded != null) {
+                // 回调返回后loaded就会被关闭,复制一个句柄在showBitmap()中转交给ImageView
+                ImageHandle<Bitmap> bitmap = loaded.duplicate();
+                if (item != null) {
+                    // 下载时已经占好了位置
+                    showOrReleaseBitmap(item, bitmap);
+                    return;
+                }
+                int imageViewHeight = getImageViewHeight(bitmap.get().getWidth(), bitmap.get().getHeight());
                 int imageViewWidth = everyColumnWidth;
                 addImageToScrollView(bitmap,imageView,imageViewWidth,imageViewHeight,imageUrl);
+                if (imageView != null) {
+                    mImagePrefetcher.onDisplayed(imageUrl);
+                }
             }
         }
     }
 
+    /**
+     * 宽width高height的图片缩放到列宽后的高
+     */
+    private int getImageViewHeight(int width, int height){
+        double ration = width/(everyColumnWidth*1.0);
+        return (int) (height/ration);
+    }
+
     /**
      * 将获取到的Bitmap添加到ImageView中.
      * 这里利用View.setTag()的方式为该ImageView保存了其相关信息.
      * 比如该ImageView加载的图片的url,它的上下边在ScrollView中的位置信息等.
+     *
+     * 新图片先按最矮的列算好位置加入mItemIndex.
+     * 若它不在视口中,复用ImageView时不给它绑定ImageView,不复用时给它一个显示默认图片的ImageView,
+     * 两种情况下bitmap都不会显示,直接关闭
      */
-    private void addImageToScrollView(Bitmap bitmap,ImageView imageView,int imageViewWidth,int imageViewHeight,final String imageUrl){
+    private void addImageToScrollView(ImageHandle<Bitmap> bitmap,ImageView imageView,int imageViewWidth,int imageViewHeight,final String imageUrl){
         if (imageView != null) {
-            imageView.setImageBitmap(bitmap);
+            showBitmap(imageView, bitmap);
         } else {
-            ImageView newImageView = new ImageView(mContext);
-            LinearLayout.LayoutParams layoutParams = new LinearLayout.LayoutParams(imageViewWidth, imageViewHeight);
-            newImageView.setImageBitmap(bitmap);
-            newImageView.setLayoutParams(layoutParams);
-            newImageView.setScaleType(ScaleType.FIT_XY);
-            newImageView.setPadding(5, 5, 5, 5);
-            newImageView.setTag(R.string.IMAGE_URL_TAG, imageUrl);
-            newImageView.setOnClickListener(new OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    Intent intent = new Intent(mContext,ShowImageActivity.class);
-                    intent.putExtra("imageUrl", imageUrl);
-                    mContext.startActivity(intent);
-                }
-            });
-            addImageToColumn(newImageView);
-            mAllImageViewArrayList.add(newImageView);
+            showOrReleaseBitmap(addItemToScrollView(imageUrl, imageViewHeight), bitmap);
+        }
+    }
+
+    /**
+     * 按最矮的列给新图片算好位置并加入瀑布流,先显示默认图片.
+     * 复用ImageView时只有视口附近的图片才绑定ImageView
+     */
+    private WaterfallItem addItemToScrollView(String imageUrl, int imageViewHeight){
+        WaterfallItem item = addImageToColumn(imageUrl, imageViewHeight);
+        boolean isVisible = mItemIndex.add(item.column, item.top, item.bottom, item);
+        if (isVisible || !isRecycleImageViews) {
+            bindImageView(item);
+        }
+        if (isRecycleImageViews) {
+            layoutColumn(item.column);
+        } else {
+            getColumnLinearLayout(item.column).addView(item.imageView);
+        }
+        return item;
+    }
+
+    /**
+     * 新图片可见时显示bitmap,否则关闭这个句柄,等它进入视口时再从内存缓存取出
+     */
+    private void showOrReleaseBitmap(WaterfallItem item, ImageHandle<Bitmap> bitmap){
+        boolean isVisible = item.imageView != null && (isRecycleImageViews
+                || LoadScheduler.distance(item.top, item.bottom, getScrollY(), getScrollY() + waterfallScrollViewHeight) == 0);
+        if (isVisible) {
+            showBitmap(item.imageView, bitmap);
+        } else {
+            bitmap.close();
         }
     }
 
 
     /**
-     * 找到高度最小的LinearLayout并且将ImageView添加进去
+     * 找到高度最小的LinearLayout,算出图片在其中的位置
      */
-    private void addImageToColumn(ImageView imageView){
-        int imageViewHeight=imageView.getLayoutParams().height;
+    private WaterfallItem addImageToColumn(String imageUrl, int imageViewHeight){
+        int column;
+        int top;
         if (firstColumnHeight <= secondColumnHeight) {
             if (firstColumnHeight <= thirdColumnHeight) {
-                imageView.setTag(R.string.TOP_BORDER_TAG, firstColumnHeight);
+                column = 0;
+                top = firstColumnHeight;
                 firstColumnHeight += imageViewHeight;
-                imageView.setTag(R.string.BOTTOM_BORDER_TAG, firstColumnHeight);
-                mFirstLinearLayout.addView(imageView);
             }else{
-                imageView.setTag(R.string.TOP_BORDER_TAG, thirdColumnHeight);
+                column = 2;
+                top = thirdColumnHeight;
                 thirdColumnHeight += imageViewHeight;
-                imageView.setTag(R.string.BOTTOM_BORDER_TAG, thirdColumnHeight);
-                mThirdLinearLayout.addView(imageView);
             }
         } else {
             if (secondColumnHeight <= thirdColumnHeight) {
-                imageView.setTag(R.string.TOP_BORDER_TAG, secondColumnHeight);
+                column = 1;
+                top = secondColumnHeight;
                 secondColumnHeight += imageViewHeight;
-                imageView.setTag(R.string.BOTTOM_BORDER_TAG, secondColumnHeight);
-                mSecondLinearLayout.addView(imageView);
             }else{
-                imageView.setTag(R.string.TOP_BORDER_TAG, thirdColumnHeight);
+                column = 2;
+                top = thirdColumnHeight;
                 thirdColumnHeight += imageViewHeight;
-                imageView.setTag(R.string.BOTTOM_BORDER_TAG, thirdColumnHeight);
-                mThirdLinearLayout.addView(imageView);
             }
         }
-
+        return new WaterfallItem(imageUrl, column, top, top + imageViewHeight);
     }
-}
\ No newline at end of file
+}
@@ -7,7 +7,6 @@ import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.util.AttributeSet;
-import android.util.FloatMath;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
@@ -70,6 +69,22 @@ import android.view.View;
  *
  *
  *
+ * 大图的显示:
+ * setTiledImage()设置的是分块解码的大图(TiledImage),此时Matrix作用于原图的坐标.
+ * 绘制时由TiledImage先画低分辨率的底图,放大后再画可见区域内按当前缩放比例解码的块,
+ * 内存中不会有整张原图
+ *
+ *
+ *
+ * 缩略图占位:
+ * setPreviewBitmap()先显示一张小图(瀑布流中的缩略图),放大到铺满控件.
+ * 之后setBitmap()或setTiledImage()换上原图时,把mMatrix换算到原图的坐标:
+ * mMatrix.preScale(缩略图宽/原图宽, 缩略图高/原图高)
+ * preScale先把原图坐标缩到缩略图坐标,再经过原来的变换,所以原图在屏幕上的位置和大小
+ * 与缩略图完全相同,用户在等待期间做的拖动和缩放也都保留
+ *
+ *
+ *
  * 注意事项:
  * 在该Demo中对于ImageView的设置
  * android:layout_width="match_parent"
@@ -80,6 +95,11 @@ import android.view.View;
 public class ZoomImageView extends View {
     //从SD卡获取的图片
     private Bitmap mRawBitmap;
+    //分块解码的大图,与mRawBitmap只有一个不为null
+    private TiledImage mTiledImage;
+    //图片的宽高.分块解码时为原图的宽高
+    private int mImageWidth;
+    private int mImageHeight;
     //该缩放控件自身的宽
     private int zoomImageViewWidth;
     //该缩放控件自身的高
@@ -108,6 +128,10 @@ public class ZoomImageView extends View {
     private float twoFingers_distance_after_move;
     // 两指间中心点
     private PointF mMiddlePointF;
+    // 当前显示的是否是等待原图时的缩略图
+    private boolean isPreview;
+    // mMatrix是否已按图片和控件的大小初始化
+    private boolean isMatrixInitialized;
 
     public ZoomImageView(Context context) {
         super(context);
@@ -122,8 +146,71 @@ public class ZoomImageView extends View {
     }
 
     public void setBitmap(Bitmap bitmap){
-        CURRENT_MODE=INIT_MODE;
         mRawBitmap=bitmap;
+        mTiledImage=null;
+        if (!replacePreview(bitmap.getWidth(), bitmap.getHeight())) {
+            reset(bitmap.getWidth(), bitmap.getHeight());
+        }
+    }
+
+    /**
+     * 在原图准备好之前先显示的缩略图,放大到铺满控件.
+     * 之后的setBitmap()或setTiledImage()会在同样的位置换上原图
+     */
+    public void setPreviewBitmap(Bitmap bitmap){
+        mRawBitmap=bitmap;
+        mTiledImage=null;
+        reset(bitmap.getWidth(), bitmap.getHeight());
+        isPreview=true;
+    }
+
+    /**
+     * 显示分块解码的大图.块解码完成后自动重绘
+     */
+    public void setTiledImage(TiledImage tiledImage){
+        mRawBitmap=null;
+        mTiledImage=tiledImage;
+        mTiledImage.setListener(new TiledImage.Listener() {
+            @Override
+            public void onTileDecoded() {
+                invalidate();
+            }
+        });
+        if (!replacePreview(tiledImage.getWidth(), tiledImage.getHeight())) {
+            reset(tiledImage.getWidth(), tiledImage.getHeight());
+        }
+    }
+
+    /**
+     * 用宽高为imageWidth,imageHeight的原图替换正在显示的缩略图,保持其在屏幕上的位置和大小.
+     * 没有显示缩略图,或者缩略图还没有绘制过时返回false
+     */
+    private boolean replacePreview(int imageWidth, int imageHeight){
+        if (!isPreview || !isMatrixInitialized) {
+            return false;
+        }
+        float scaleX=mImageWidth/(imageWidth*1.0f);
+        float scaleY=mImageHeight/(imageHeight*1.0f);
+        mMatrix.preScale(scaleX, scaleY);
+        // 手指还在屏幕上时,后续的拖动和缩放基于mCurrentMatrix,它也要换算到原图的坐标
+        mCurrentMatrix.preScale(scaleX, scaleY);
+        mImageWidth=imageWidth;
+        mImageHeight=imageHeight;
+        isPreview=false;
+        if (CURRENT_MODE==INIT_MODE) {
+            // 不再按原图的大小重新初始化,否则小于控件的原图会缩回原尺寸
+            CURRENT_MODE=0;
+        }
+        invalidate();
+        return true;
+    }
+
+    private void reset(int imageWidth, int imageHeight){
+        CURRENT_MODE=INIT_MODE;
+        isPreview=false;
+        isMatrixInitialized=false;
+        mImageWidth=imageWidth;
+        mImageHeight=imageHeight;
         mStartPoinF = new PointF();
         mMatrix = new Matrix();
         mCurrentMatrix = new Matrix();
@@ -147,6 +234,10 @@ public class ZoomImageView extends View {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mMatrix == null) {
+            // 还没有设置图片
+            return true;
+        }
         switch (event.getAction() & MotionEvent.ACTION_MASK) {
             case MotionEvent.ACTION_DOWN:
                 CURRENT_MODE = DRAG_MODE;
@@ -159,7 +250,10 @@ public class ZoomImageView extends View {
             // 当屏幕上已经有触点(手指),再有手指按下时触发该事件
             case MotionEvent.ACTION_POINTER_DOWN:
                 CURRENT_MODE = ZOOM_MODE;
+                // 缩放基于拖动之后的matrix
+                mCurrentMatrix.set(mMatrix);
                 twoFingers_distance_before_move = getTwoPointsDistance(event);
+                mMiddlePointF = null;
                 if (twoFingers_distance_before_move > ZOOM_THRESHOLD) {
                     // 计算两触点的中心点
                     mMiddlePointF = getMiddlePoint(event);
@@ -181,7 +275,7 @@ public class ZoomImageView extends View {
                 //缩放模式下--->处理图片的缩放
                 if (CURRENT_MODE == ZOOM_MODE) {
                     twoFingers_distance_after_move = getTwoPointsDistance(event);
-                    if (twoFingers_distance_after_move > ZOOM_THRESHOLD) {
+                    if (twoFingers_distance_after_move > ZOOM_THRESHOLD && mMiddlePointF != null) {
                         // 计算缩放比例
                         float scale = twoFingers_distance_after_move / twoFingers_distance_before_move;
                         // 在mCurrentMatrix的基础上缩放图片,所以将mCurrentMatrix复制到mMatrix
@@ -210,11 +304,21 @@ public class ZoomImageView extends View {
                 initZoomImageView(canvas);
                 break;
             default:
-                canvas.drawBitmap(mRawBitmap, mMatrix, null);
+                if (mMatrix != null) {
+                    drawImage(canvas, mMatrix);
+                }
                 break;
         }
     }
 
+    private void drawImage(Canvas canvas, Matrix matrix){
+        if (mTiledImage != null) {
+            mTiledImage.draw(canvas, matrix, zoomImageViewWidth, zoomImageViewHeight);
+        } else if (mRawBitmap != null) {
+            canvas.drawBitmap(mRawBitmap, matrix, null);
+        }
+    }
+
 
     /**
      * 将从SD卡获取的图片显示到该ZoomImageView控件
@@ -230,13 +334,22 @@ public class ZoomImageView extends View {
      *   则在ZoomImageView控件中心位置绘制图片
      */
     private void initZoomImageView(Canvas canvas){
-        if (mRawBitmap!=null) {
+        if (mImageWidth>0 && mImageHeight>0) {
             Matrix matrix=new Matrix();
-            int rawBitmapWidth=mRawBitmap.getWidth();
-            int rawBitmapHeight=mRawBitmap.getHeight();
+            int rawBitmapWidth=mImageWidth;
+            int rawBitmapHeight=mImageHeight;
             Log.i(TAG, "控件本身宽="+zoomImageViewWidth+",控件本身高="+zoomImageViewHeight);
             Log.i(TAG, "图片宽="+rawBitmapWidth+",图片高="+rawBitmapHeight);
-            if (rawBitmapWidth>zoomImageViewWidth||rawBitmapHeight>zoomImageViewHeight) {
+            if (isPreview) {
+                //缩略图按原图会有的大小显示:宽高比不变,放大到刚好铺满控件并居中
+                float scaleXY=Math.min(zoomImageViewWidth/(rawBitmapWidth*1.0f),
+                        zoomImageViewHeight/(rawBitmapHeight*1.0f));
+                matrix.postScale(scaleXY, scaleXY);
+                float translateX=(zoomImageViewWidth-rawBitmapWidth*scaleXY)/2.0f;
+                float translateY=(zoomImageViewHeight-rawBitmapHeight*scaleXY)/2.0f;
+                matrix.postTranslate(translateX, translateY);
+                Log.i(TAG, "缩略图放大 scaleXY="+scaleXY);
+            } else if (rawBitmapWidth>zoomImageViewWidth||rawBitmapHeight>zoomImageViewHeight) {
                 Log.i(TAG, "rawBitmapWidth-zoomImageViewWidth="+(rawBitmapWidth-zoomImageViewWidth));
                 Log.i(TAG, "rawBitmapHeight-zoomImageViewHeight="+(rawBitmapHeight-zoomImageViewHeight));
                 //以宽为基准压缩
@@ -264,20 +377,19 @@ public class ZoomImageView extends View {
                 matrix.postTranslate(translateX, translateY);
                 Log.i(TAG, "不压缩,图片居中显示 translateX="+translateX+",translateY="+translateY);
             }
-            canvas.drawBitmap(mRawBitmap, matrix, null);
+            drawImage(canvas, matrix);
             //将图片初始化完成后的matrix保存到mMatrix.
             //后续进行的操作都是在mMatrix上进行的
             mMatrix.set(matrix);
+            isMatrixInitialized=true;
         }
     }
 
     // 计算两点之间的距离
     public static float getTwoPointsDistance(MotionEvent event) {
-//        float disX = event.getX(1) - event.getX(0);
-//        float disY = event.getY(1) - event.getY(0);
-//        return FloatMath.sqrt(disX * disX + disY * disY);
-
-        return 0;
+        float disX = event.getX(1) - event.getX(0);
+        float disY = event.getY(1) - event.getY(0);
+        return (float) Math.sqrt(disX * disX + disY * disY);
     }
 
     // 计算两点之间的中间点
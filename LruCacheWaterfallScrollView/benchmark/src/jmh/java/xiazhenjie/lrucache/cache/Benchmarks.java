@@ -0,0 +1,81 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Fixtures shared by the benchmarks. Everything random is seeded, so every run
+ * works on the same keys and access patterns.
+ */
+final class Benchmarks {
+    static final long SEED = 0x5eed;
+    static final int APP_VERSION = 1;
+    /** Image and validators, like the app's disk cache. */
+    static final int VALUE_COUNT = 2;
+
+    private Benchmarks() {
+    }
+
+    /** Returns {@code count} distinct image URLs of realistic length. */
+    static String[] urls(int count) {
+        Random random = new Random(SEED);
+        String[] urls = new String[count];
+        for (int i = 0; i < count; i++) {
+            urls[i] = "https://images.example.com/photos/" + (2000 + random.nextInt(25)) + "/"
+                    + Integer.toHexString(random.nextInt()) + "/waterfall-" + i + ".jpg?w=" + (240 + random.nextInt(840));
+        }
+        return urls;
+    }
+
+    /** Returns the disk cache keys of {@link #urls}. */
+    static String[] keys(int count) {
+        String[] urls = urls(count);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = CacheKeys.md5(urls[i]);
+        }
+        return keys;
+    }
+
+    static File newDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static DiskLruCache open(File directory, long maxSize) throws IOException {
+        return DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, maxSize,
+                JournalWriter.FlushPolicy.DEFAULT, EvictionPolicies.SLRU);
+    }
+
+    /** Writes {@code image} and a validators line under {@code key}; does nothing if the entry is being edited. */
+    static void put(DiskLruCache cache, String key, byte[] image) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            return;
+        }
+        OutputStream out = editor.newOutputStream(0);
+        try {
+            out.write(image);
+        } finally {
+            out.close();
+        }
+        editor.set(1, "1665000000000\t\"etag\"\t");
+        editor.commit();
+    }
+
+    static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    delete(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+}
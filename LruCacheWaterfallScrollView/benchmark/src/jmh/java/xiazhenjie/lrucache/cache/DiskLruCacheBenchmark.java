@@ -0,0 +1,142 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Throughput of the {@link DiskLruCache} operations on a populated cache, by
+ * entry count, with one thread and with four threads working on the same
+ * cache. Keys are picked uniformly at random so every thread mostly touches
+ * different entries, as the loader's disk and network threads do.
+ *
+ * <p>Edits and removals replace entries rather than add them, so the entry
+ * count and the size of the cache stay the same for the whole run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public abstract class DiskLruCacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cache {
+        @Param({"1000", "10000"})
+        public int entryCount;
+
+        @Param({"4096"})
+        public int valueSize;
+
+        File directory;
+        DiskLruCache cache;
+        String[] keys;
+        byte[] value;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Benchmarks.newDirectory("disk-lru-cache");
+            keys = Benchmarks.keys(entryCount);
+            value = new byte[valueSize];
+            Arrays.fill(value, (byte) 0x5a);
+            // room for every entry, so nothing is evicted
+            cache = Benchmarks.open(directory, 2L * entryCount * (valueSize + 64));
+            for (String key : keys) {
+                Benchmarks.put(cache, key, value);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            cache.close();
+            Benchmarks.delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        Random random;
+        byte[] buffer;
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threads) {
+            random = new Random(Benchmarks.SEED + threads.getThreadIndex());
+            buffer = new byte[8 * 1024];
+        }
+
+        String next(Cache cache) {
+            return cache.keys[random.nextInt(cache.keys.length)];
+        }
+    }
+
+    /** Looks up an entry without reading it, which no longer opens its files. */
+    @Benchmark
+    public DiskLruCache.Snapshot get(Cache cache, Cursor cursor) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.cache.get(cursor.next(cache));
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        return snapshot;
+    }
+
+    /** Looks up an entry and reads its image value to the end. */
+    @Benchmark
+    public void getAndRead(Cache cache, Cursor cursor, Blackhole blackhole) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.cache.get(cursor.next(cache));
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            InputStream in = snapshot.getInputStream(0);
+            int count;
+            while ((count = in.read(cursor.buffer)) != -1) {
+                blackhole.consume(count);
+            }
+        } catch (IOException stale) {
+            // replaced by another thread since the lookup
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /** Rewrites both values of an entry and commits. */
+    @Benchmark
+    public void editAndCommit(Cache cache, Cursor cursor) throws IOException {
+        Benchmarks.put(cache.cache, cursor.next(cache), cache.value);
+    }
+
+    /** Removes an entry and writes it again. */
+    @Benchmark
+    public void removeAndPut(Cache cache, Cursor cursor) throws IOException {
+        String key = cursor.next(cache);
+        if (cache.cache.remove(key)) {
+            Benchmarks.put(cache.cache, key, cache.value);
+        }
+    }
+
+    @Threads(1)
+    public static class OneThread extends DiskLruCacheBenchmark {
+    }
+
+    @Threads(4)
+    public static class FourThreads extends DiskLruCacheBenchmark {
+    }
+}
@@ -0,0 +1,111 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a {@link MemoryCache} lookup, and of the insert and evictions that
+ * follow a miss, under each eviction policy.
+ *
+ * <p>Requests follow a Zipf distribution over {@code keyCount} keys with
+ * sizes between 16 and 256 KB, like thumbnails, and the cache holds about a
+ * tenth of them, so the policies make real eviction decisions. The trace is
+ * generated from a fixed seed and replayed in a loop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class EvictionPolicyBenchmark {
+    private static final int TRACE_LENGTH = 1 << 20;
+    private static final double ZIPF_EXPONENT = 0.9;
+
+    @Param({"LRU", "SLRU", "W_TINY_LFU", "GDSF"})
+    public EvictionPolicies policy;
+
+    @Param({"10000"})
+    public int keyCount;
+
+    private String[] trace;
+    private int[] sizes;
+    private int next;
+    private MemoryCache<String, Integer> cache;
+
+    @Setup
+    public void setUp() {
+        String[] keys = Benchmarks.keys(keyCount);
+        Random random = new Random(Benchmarks.SEED);
+        int[] keySizes = new int[keyCount];
+        long totalSize = 0;
+        for (int i = 0; i < keyCount; i++) {
+            keySizes[i] = (16 + random.nextInt(240)) * 1024;
+            totalSize += keySizes[i];
+        }
+        double[] cumulative = zipfCumulative(keyCount);
+        trace = new String[TRACE_LENGTH];
+        sizes = new int[TRACE_LENGTH];
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            int rank = rank(cumulative, random.nextDouble());
+            trace[i] = keys[rank];
+            sizes[i] = keySizes[rank];
+        }
+        long capacity = totalSize / 10;
+        cache = new MemoryCache<String, Integer>(capacity, policy.<String>create(capacity)) {
+            @Override protected long sizeOf(String key, Integer size) {
+                return size;
+            }
+        };
+    }
+
+    @Benchmark
+    public Integer access() {
+        int i = next;
+        next = (i + 1) & (TRACE_LENGTH - 1);
+        String key = trace[i];
+        Integer value = cache.get(key);
+        if (value == null) {
+            value = sizes[i];
+            cache.put(key, value);
+        }
+        return value;
+    }
+
+    private static double[] zipfCumulative(int count) {
+        double[] cumulative = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < count; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int rank(double[] cumulative, double p) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulative[mid] < p) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,123 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open a {@link DiskLruCache}, by entry count.
+ *
+ * <p>{@link #openBinary} reads the binary journal written by a previous
+ * session, which is what happens on every cold start. {@link #openText}
+ * reads the same entries from a journal in the old text format; opening it
+ * also rewrites it as a binary journal, so the difference between the two is
+ * roughly the cost of a journal rebuild.
+ *
+ * <p>Both directories hold the value files of every entry, since opening
+ * also lists the directory.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class JournalBenchmark {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    @State(Scope.Benchmark)
+    public abstract static class Journal {
+        @Param({"1000", "10000", "100000"})
+        public int entryCount;
+
+        File directory;
+        File journalFile;
+        byte[] journal;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Benchmarks.newDirectory("journal");
+            journalFile = new File(directory, DiskLruCache.JOURNAL_FILE);
+            String[] keys = Benchmarks.keys(entryCount);
+            byte[] image = new byte[16];
+            DiskLruCache cache = Benchmarks.open(directory, Long.MAX_VALUE);
+            for (String key : keys) {
+                Benchmarks.put(cache, key, image);
+            }
+            cache.close();
+            journal = journal(keys, image.length);
+        }
+
+        /** Returns the journal to open for {@code keys}. */
+        abstract byte[] journal(String[] keys, int imageLength) throws IOException;
+
+        // each iteration is a single open
+        @Setup(Level.Iteration)
+        public void restoreJournal() throws IOException {
+            OutputStream out = new FileOutputStream(journalFile);
+            try {
+                out.write(journal);
+            } finally {
+                out.close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            Benchmarks.delete(directory);
+        }
+    }
+
+    public static class BinaryJournal extends Journal {
+        @Override byte[] journal(String[] keys, int imageLength) throws IOException {
+            // as written by the cache when it was closed
+            return Files.readAllBytes(journalFile.toPath());
+        }
+    }
+
+    public static class TextJournal extends Journal {
+        @Override byte[] journal(String[] keys, int imageLength) throws IOException {
+            StringBuilder journal = new StringBuilder();
+            journal.append(DiskLruCache.MAGIC).append('\n')
+                    .append(DiskLruCache.VERSION_1).append('\n')
+                    .append(Benchmarks.APP_VERSION).append('\n')
+                    .append(Benchmarks.VALUE_COUNT).append('\n')
+                    .append('\n');
+            File validators = new File(directory, keys[0] + ".1");
+            for (String key : keys) {
+                journal.append("CLEAN ").append(key).append(' ').append(imageLength)
+                        .append(' ').append(validators.length()).append('\n');
+            }
+            return journal.toString().getBytes(US_ASCII);
+        }
+    }
+
+    @Benchmark
+    public DiskLruCache openBinary(BinaryJournal journal) throws IOException {
+        DiskLruCache cache = Benchmarks.open(journal.directory, Long.MAX_VALUE);
+        cache.close();
+        return cache;
+    }
+
+    @Benchmark
+    public DiskLruCache openText(TextJournal journal) throws IOException {
+        DiskLruCache cache = Benchmarks.open(journal.directory, Long.MAX_VALUE);
+        cache.close();
+        return cache;
+    }
+}
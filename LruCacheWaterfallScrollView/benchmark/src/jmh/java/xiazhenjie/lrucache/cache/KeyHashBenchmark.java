@@ -0,0 +1,85 @@
+package xiazhenjie.lrucache.cache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a URL into a disk cache key. Run with the gc profiler (the
+ * build does by default) to see the bytes allocated per call.
+ *
+ * <p>{@link #stringBufferMd5} is how keys used to be computed, kept here as
+ * the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class KeyHashBenchmark {
+    /** How many distinct URLs are cycled through. */
+    @Param({"1024"})
+    public int urlCount;
+
+    private String[] urls;
+    private int next;
+    private CacheKeys md5Keys;
+    private CacheKeys murmur3Keys;
+
+    @Setup
+    public void setUp() {
+        urls = Benchmarks.urls(urlCount);
+        md5Keys = new CacheKeys(CacheKeys.Algorithm.MD5, urlCount);
+        murmur3Keys = new CacheKeys(CacheKeys.Algorithm.MURMUR3_128, urlCount);
+    }
+
+    private String nextUrl() {
+        String url = urls[next];
+        next = (next + 1) % urls.length;
+        return url;
+    }
+
+    @Benchmark
+    public String stringBufferMd5() throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+        messageDigest.update(nextUrl().getBytes());
+        byte[] digest = messageDigest.digest();
+        StringBuffer hex = new StringBuffer();
+        for (byte b : digest) {
+            hex.append(Integer.toHexString(0xFF & b));
+        }
+        return hex.toString();
+    }
+
+    @Benchmark
+    public String md5() {
+        return CacheKeys.md5(nextUrl());
+    }
+
+    @Benchmark
+    public String murmur3() {
+        return CacheKeys.murmur3(nextUrl());
+    }
+
+    /** Every URL is already cached after the first pass. */
+    @Benchmark
+    public String cachedMd5() {
+        return md5Keys.keyFor(nextUrl());
+    }
+
+    @Benchmark
+    public String cachedMurmur3() {
+        return murmur3Keys.keyFor(nextUrl());
+    }
+}
@@ -0,0 +1,304 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the memory and disk tiers of an {@link ImagePipeline} to what the
+ * device can spare, instead of once at startup.
+ *
+ * <p>The memory budget is the configured size scaled down by the last
+ * {@link MemoryPressure} the platform reported, and capped further while the
+ * heap is fuller than {@link #HEAP_HIGH_WATERMARK}: then the cache gives up
+ * what it takes to bring the heap down to {@link #HEAP_LOW_WATERMARK}. Below
+ * the low watermark the cap is lifted again. Pressure that isn't reported
+ * again eases one level every {@link #PRESSURE_DECAY_MILLIS}.
+ *
+ * <p>The disk budget works the same way on free storage: below
+ * {@link #FREE_SPACE_LOW_WATERMARK} the cache shrinks by what it takes to free
+ * up to {@link #FREE_SPACE_HIGH_WATERMARK}, down to {@link #MIN_DISK_SIZE};
+ * above the high watermark it goes back to the configured size.
+ *
+ * <p>A smaller memory budget isn't applied at once: it is lowered by
+ * {@link #TRIM_STEP_BYTES} at a time on the controller's thread, so no single
+ * step evicts and recycles more than a few images and the threads loading
+ * images only ever wait for one step. A larger budget applies at once, as it
+ * evicts nothing. Heap and storage are checked every
+ * {@link #CHECK_INTERVAL_MILLIS}. All resizing happens on the controller's
+ * one thread.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CacheBudgetController {
+
+    /** How short the platform is of memory, from least to most. */
+    public enum MemoryPressure {
+        /** Nothing reported, or the pressure has eased. */
+        NONE(1),
+        /** The system is starting to run low. */
+        MODERATE(0.75),
+        /** The system is running low, or the app's UI was hidden. */
+        LOW(0.5),
+        /** Background processes are being killed to keep this one running. */
+        CRITICAL(0.25),
+        /** This process is in the background and likely to be killed next. */
+        COMPLETE(0);
+
+        /** The share of the configured memory budget kept at this level. */
+        final double budgetFraction;
+
+        MemoryPressure(double budgetFraction) {
+            this.budgetFraction = budgetFraction;
+        }
+    }
+
+    /** Hears about changes of the memory budget, such as a bitmap pool sharing it. */
+    public interface Listener {
+        /** Called on the controller's thread, once per step. */
+        void onMemoryBudgetChanged(long budget);
+    }
+
+    /** Above this share of the maximum heap the memory cache is shrunk... */
+    static final double HEAP_HIGH_WATERMARK = 0.85;
+    /** ...until the heap is back to this share; below it the cache may grow again. */
+    static final double HEAP_LOW_WATERMARK = 0.70;
+    /** Below this many free bytes of storage the disk cache is shrunk... */
+    static final long FREE_SPACE_LOW_WATERMARK = 64 * 1024 * 1024;
+    /** ...to free up to this many; above it the disk cache may grow back to its configured size. */
+    static final long FREE_SPACE_HIGH_WATERMARK = 256 * 1024 * 1024;
+    /** The disk cache isn't shrunk below this, so thumbnails of the screen stay on disk. */
+    static final long MIN_DISK_SIZE = 4 * 1024 * 1024;
+    /** The memory budget is lowered by at most this much per step. */
+    static final long TRIM_STEP_BYTES = 2 * 1024 * 1024;
+    static final long TRIM_STEP_DELAY_MILLIS = 16;
+    static final long CHECK_INTERVAL_MILLIS = 5000;
+    static final long PRESSURE_DECAY_MILLIS = 30000;
+
+    private final MemoryCache<?, ?> memoryCache;
+    /** Null if the pipeline has no disk cache. */
+    private final DiskLruCache diskCache;
+    private final long maxMemoryBudget;
+    private final long maxDiskBudget;
+
+    private final ScheduledExecutorService executor;
+
+    // guarded by this
+    private MemoryPressure pressure = MemoryPressure.NONE;
+    private long pressureChangedAtMillis;
+    private Listener listener;
+
+    // only used on the controller's thread
+    /** The memory cache's size limit while the heap is full, or MAX_VALUE. */
+    private long heapCap = Long.MAX_VALUE;
+    /** The memory budget the trim steps are heading for. */
+    private long memoryTarget;
+    private boolean trimming;
+
+    private volatile long memoryBudget;
+    private volatile int heapOccupancyPercent;
+    private volatile long freeDiskBytes = -1;
+    final AtomicLong pressureSignals = new AtomicLong();
+    final AtomicLong budgetChanges = new AtomicLong();
+    final AtomicLong trimSteps = new AtomicLong();
+
+    CacheBudgetController(MemoryCache<?, ?> memoryCache, DiskLruCache diskCache) {
+        this.memoryCache = memoryCache;
+        this.diskCache = diskCache;
+        this.maxMemoryBudget = memoryCache.maxSize();
+        this.maxDiskBudget = diskCache != null ? diskCache.maxSize() : 0;
+        this.memoryBudget = maxMemoryBudget;
+        this.memoryTarget = maxMemoryBudget;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ImageLoader-budget");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                check();
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sets the listener told about every change of the memory budget, or null. */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reports memory pressure from the platform, such as
+     * {@code onTrimMemory}. A level below the current one is ignored until
+     * the current one has eased.
+     */
+    public void onMemoryPressure(MemoryPressure level) {
+        pressureSignals.incrementAndGet();
+        synchronized (this) {
+            if (level.compareTo(pressure) < 0) {
+                return;
+            }
+            pressure = level;
+            pressureChangedAtMillis = System.currentTimeMillis();
+        }
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                updateMemoryBudget();
+            }
+        });
+    }
+
+    /** Re-reads the heap and free storage soon, as happens every {@link #CHECK_INTERVAL_MILLIS} anyway. */
+    public void checkNow() {
+        executor.execute(new Runnable() {
+            @Override public void run() {
+                check();
+            }
+        });
+    }
+
+    /** Eases old pressure and re-reads the heap and free storage. Runs on the controller's thread. */
+    private void check() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (pressure != MemoryPressure.NONE && now - pressureChangedAtMillis >= PRESSURE_DECAY_MILLIS) {
+                pressure = MemoryPressure.values()[pressure.ordinal() - 1];
+                pressureChangedAtMillis = now;
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long maxHeap = runtime.maxMemory();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        heapOccupancyPercent = (int) (100 * usedHeap / maxHeap);
+        if (usedHeap > HEAP_HIGH_WATERMARK * maxHeap) {
+            long excess = usedHeap - (long) (HEAP_LOW_WATERMARK * maxHeap);
+            heapCap = Math.min(heapCap, Math.max(0, memoryCache.size() - excess));
+        } else if (usedHeap < HEAP_LOW_WATERMARK * maxHeap) {
+            heapCap = Long.MAX_VALUE;
+        }
+        updateMemoryBudget();
+        updateDiskBudget();
+    }
+
+    /**
+     * Computes the memory target and moves towards it: at once if it is
+     * higher, else by starting the trim steps unless they are running.
+     * Everything from here on runs on the controller's thread.
+     */
+    private void updateMemoryBudget() {
+        MemoryPressure pressure;
+        synchronized (this) {
+            pressure = this.pressure;
+        }
+        // MemoryCache needs a positive size; at 1 byte every image is evicted as soon as it is added
+        memoryTarget = Math.max(1, Math.min((long) (maxMemoryBudget * pressure.budgetFraction), heapCap));
+        if (memoryTarget >= memoryBudget) {
+            setMemoryBudget(memoryTarget);
+        } else if (!trimming) {
+            trimming = true;
+            trimStep();
+        }
+    }
+
+    /** Lowers the memory budget by one step and schedules the next until the target is reached. */
+    private void trimStep() {
+        if (memoryTarget >= memoryBudget) {
+            // the target went up meanwhile and was applied
+            trimming = false;
+            return;
+        }
+        setMemoryBudget(Math.max(memoryTarget, memoryBudget - TRIM_STEP_BYTES));
+        trimSteps.incrementAndGet();
+        if (memoryBudget > memoryTarget) {
+            executor.schedule(new Runnable() {
+                @Override public void run() {
+                    trimStep();
+                }
+            }, TRIM_STEP_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            trimming = false;
+        }
+    }
+
+    private void setMemoryBudget(long budget) {
+        if (budget == memoryBudget) {
+            return;
+        }
+        memoryBudget = budget;
+        budgetChanges.incrementAndGet();
+        memoryCache.resize(budget);
+        Listener listener;
+        synchronized (this) {
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.onMemoryBudgetChanged(budget);
+        }
+    }
+
+    /** Shrinks the disk cache while storage is low and restores it once there is room again. */
+    private void updateDiskBudget() {
+        if (diskCache == null || diskCache.isClosed()) {
+            return;
+        }
+        File directory = diskCache.getDirectory();
+        long free = directory.getUsableSpace();
+        if (free == 0 && !directory.exists()) {
+            return;
+        }
+        freeDiskBytes = free;
+        long current = diskCache.maxSize();
+        long budget = current;
+        if (free < FREE_SPACE_LOW_WATERMARK) {
+            budget = Math.max(MIN_DISK_SIZE, Math.min(current, diskCache.size() - (FREE_SPACE_HIGH_WATERMARK - free)));
+        } else if (free > FREE_SPACE_HIGH_WATERMARK) {
+            budget = maxDiskBudget;
+        }
+        if (budget != current) {
+            budgetChanges.incrementAndGet();
+            // evicted on the disk cache's own thread
+            diskCache.setMaxSize(budget);
+        }
+    }
+
+    /** Stops the periodic checks and any trimming in progress. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public synchronized MemoryPressure memoryPressure() {
+        return pressure;
+    }
+
+    /** Returns the memory cache's current size limit; it may still be stepping towards a lower target. */
+    public long memoryBudget() {
+        return memoryBudget;
+    }
+
+    public long diskBudget() {
+        return diskCache != null ? diskCache.maxSize() : 0;
+    }
+
+    /** Returns the share of the maximum heap in use at the last check, in percent. */
+    public int heapOccupancyPercent() {
+        return heapOccupancyPercent;
+    }
+
+    /** Returns the usable bytes of the disk cache's file system at the last check, or -1 before it. */
+    public long freeDiskBytes() {
+        return freeDiskBytes;
+    }
+
+    @Override public synchronized String toString() {
+        return "CacheBudgetController[pressure=" + pressure + ",memoryBudget=" + memoryBudget
+                + ",diskBudget=" + diskBudget()
+                + ",heap=" + heapOccupancyPercent + "%,freeDisk=" + freeDiskBytes + "]";
+    }
+}
@@ -0,0 +1,295 @@
+package xiazhenjie.lrucache.cache;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns URLs into cache keys: 32 lowercase hex characters, safe as file names
+ * and as {@link DiskLruCache} keys.
+ *
+ * <p>Hashing allocates nothing but the key itself. Each thread keeps its own
+ * digest, encodes the URL as UTF-8 into its own byte array, and formats the
+ * 128-bit hash through a hex table into its own char array, so the only object
+ * created per call is the returned string.
+ *
+ * <p>Keys are also cached per URL, so asking again for the key of a URL
+ * returns the same string without hashing, and all callers share one instance
+ * of each key. The cache holds at most {@code maxCachedKeys} URLs and is
+ * simply cleared when it fills up; the keys of URLs still in use come back on
+ * the next call.
+ *
+ * <p>Two hashes are available. {@link Algorithm#MD5} is the default and
+ * produces the same keys as {@code md5(url)} everywhere else.
+ * {@link Algorithm#MURMUR3_128} is several times faster but is not
+ * cryptographic, which is fine for keys that are only compared for equality.
+ * Keys of the two are not interchangeable: switching an existing cache from
+ * one to the other is a migration, like moving from {@link #legacyMd5Key}.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CacheKeys {
+    /** How keys are hashed. */
+    public enum Algorithm {
+        MD5,
+        MURMUR3_128
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int HASH_BYTES = 16;
+    private static final int KEY_LENGTH = HASH_BYTES * 2;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final Algorithm algorithm;
+    private final int maxCachedKeys;
+    private final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    public CacheKeys(Algorithm algorithm, int maxCachedKeys) {
+        if (algorithm == null) {
+            throw new NullPointerException("algorithm == null");
+        }
+        if (maxCachedKeys <= 0) {
+            throw new IllegalArgumentException("maxCachedKeys <= 0");
+        }
+        this.algorithm = algorithm;
+        this.maxCachedKeys = maxCachedKeys;
+    }
+
+    /** Returns the key of {@code url}, hashing it only the first time it is seen. */
+    public String keyFor(String url) {
+        String key = keys.get(url);
+        if (key != null) {
+            return key;
+        }
+        key = hash(algorithm, url);
+        if (keys.size() >= maxCachedKeys) {
+            keys.clear();
+        }
+        String previous = keys.putIfAbsent(url, key);
+        return previous != null ? previous : key;
+    }
+
+    /** Returns the number of URLs whose keys are cached. */
+    public int cachedCount() {
+        return keys.size();
+    }
+
+    public Algorithm algorithm() {
+        return algorithm;
+    }
+
+    /** Returns the MD5 key of {@code string} without caching it. */
+    public static String md5(String string) {
+        return hash(Algorithm.MD5, string);
+    }
+
+    /** Returns the Murmur3 x64 128-bit key of {@code string} without caching it. */
+    public static String murmur3(String string) {
+        return hash(Algorithm.MURMUR3_128, string);
+    }
+
+    /**
+     * Returns the key older versions used for {@code string}: its MD5 in hex,
+     * but with each byte formatted without its leading zero, so the key was
+     * between 16 and 32 characters long. Only for finding entries written
+     * under those keys.
+     */
+    public static String legacyMd5Key(String string) {
+        Scratch scratch = SCRATCH.get();
+        int length = encodeUtf8(string, scratch);
+        byte[] digest = scratch.digest;
+        md5(scratch, length, digest);
+        char[] chars = scratch.chars;
+        int count = 0;
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int b = digest[i] & 0xff;
+            if (b >= 0x10) {
+                chars[count++] = HEX[b >>> 4];
+            }
+            chars[count++] = HEX[b & 0xf];
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static String hash(Algorithm algorithm, String string) {
+        Scratch scratch = SCRATCH.get();
+        int length = encodeUtf8(string, scratch);
+        byte[] digest = scratch.digest;
+        if (algorithm == Algorithm.MD5) {
+            md5(scratch, length, digest);
+        } else {
+            murmur3(scratch.bytes, length, digest);
+        }
+        char[] chars = scratch.chars;
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int b = digest[i] & 0xff;
+            chars[2 * i] = HEX[b >>> 4];
+            chars[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(chars, 0, KEY_LENGTH);
+    }
+
+    private static void md5(Scratch scratch, int length, byte[] digest) {
+        MessageDigest md5 = scratch.md5;
+        md5.update(scratch.bytes, 0, length);
+        try {
+            md5.digest(digest, 0, HASH_BYTES);
+        } catch (DigestException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Encodes {@code string} as UTF-8 into {@code scratch.bytes}, growing it
+     * if needed, and returns the number of bytes. Unpaired surrogates are
+     * encoded as '?', like {@link String#getBytes(String)} does.
+     */
+    private static int encodeUtf8(String string, Scratch scratch) {
+        int charCount = string.length();
+        // no char takes more than 3 bytes; a surrogate pair takes 4 for 2 chars
+        if (scratch.bytes.length < charCount * 3) {
+            scratch.bytes = new byte[charCount * 3];
+        }
+        byte[] bytes = scratch.bytes;
+        int count = 0;
+        for (int i = 0; i < charCount; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes[count++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[count++] = (byte) (0xc0 | (c >> 6));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                bytes[count++] = (byte) (0xe0 | (c >> 12));
+                bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < charCount
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                bytes[count++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                bytes[count++] = '?';
+            }
+        }
+        return count;
+    }
+
+    /** Writes the MurmurHash3 x64 128-bit hash of {@code data}, seed 0, to {@code out} big-endian. */
+    @SuppressWarnings("fallthrough")
+    private static void murmur3(byte[] data, int length, byte[] out) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLittleEndian(data, i * 16);
+            long k2 = getLongLittleEndian(data, i * 16 + 8);
+            k1 *= c1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= c2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            k2 *= c2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= c1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        // every case falls through to mix in the remaining bytes of the tail
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= (long) (data[tail + 8] & 0xff);
+                k2 *= c2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= c1;
+                h2 ^= k2;
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= (long) (data[tail] & 0xff);
+                k1 *= c1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= c2;
+                h1 ^= k1;
+            default:
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        for (int i = 0; i < 8; i++) {
+            out[i] = (byte) (h1 >>> (56 - 8 * i));
+            out[8 + i] = (byte) (h2 >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /** One thread's reusable hashing state. */
+    private static final class Scratch {
+        final MessageDigest md5;
+        byte[] bytes = new byte[256];
+        final byte[] digest = new byte[HASH_BYTES];
+        final char[] chars = new char[KEY_LENGTH];
+
+        Scratch() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.File;
+
+/**
+ * Where a pipeline keeps its files. On Android this is the app's cache
+ * directory; in tests and benchmarks, any temporary directory.
+ */
+public interface CacheLocation {
+
+    /**
+     * Returns the directory for the files of kind {@code name}, such as
+     * {@code "image"}. It doesn't have to exist yet.
+     */
+    File getDirectory(String name);
+}
@@ -0,0 +1,1725 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xiazhenjie.lrucache.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ ******************************************************************************
+ * Taken from the JB source code, can be found in:
+ * libcore/luni/src/main/java/libcore/io/DiskLruCache.java
+ * or direct link:
+ * https://android.googlesource.com/platform/libcore/+/android-4.1.1_r1/luni/src/main/java/libcore/io/DiskLruCache.java
+ ******************************************************************************
+ *
+ * A cache that uses a bounded amount of space on a filesystem. Each cache
+ * entry has a string key and a fixed number of values. Values are byte
+ * sequences, accessible as streams or files. Each value must be between {@code
+ * 0} and {@code Integer.MAX_VALUE} bytes in length.
+ *
+ * <p>The cache stores its data in a directory on the filesystem. This
+ * directory must be exclusive to the cache; the cache may delete or overwrite
+ * files from its directory. It is an error for multiple processes to use the
+ * same cache directory at the same time.
+ *
+ * <p>This cache limits the number of bytes that it will store on the
+ * filesystem. When the number of stored bytes exceeds the limit, the cache will
+ * remove entries in the background until the limit is satisfied. The limit is
+ * not strict: the cache may temporarily exceed it while waiting for files to be
+ * deleted. The limit does not include filesystem overhead or the cache
+ * journal so space-sensitive applications should set a conservative limit.
+ *
+ * <p>Clients call {@link #edit} to create or update the values of an entry. An
+ * entry may have only one editor at one time; if a value is not available to be
+ * edited then {@link #edit} will return null.
+ * <ul>
+ *     <li>When an entry is being <strong>created</strong> it is necessary to
+ *         supply a full set of values; the empty value should be used as a
+ *         placeholder if necessary.
+ *     <li>When an entry is being <strong>edited</strong>, it is not necessary
+ *         to supply data for every value; values default to their previous
+ *         value.
+ * </ul>
+ * Every {@link #edit} call must be matched by a call to {@link Editor#commit}
+ * or {@link Editor#abort}. Committing is atomic: a read observes the full set
+ * of values as they were before or after the commit, but never a mix of values.
+ *
+ * <p>Clients call {@link #get} to read a snapshot of an entry. The read will
+ * observe the value at the time that {@link #get} was called. Updates and
+ * removals after the call do not impact ongoing reads.
+ *
+ * <p>This class is tolerant of some I/O errors. If files are missing from the
+ * filesystem, the corresponding entries will be dropped from the cache. If
+ * an error occurs while writing a cache value, the edit will fail silently.
+ * Callers should handle other problems by catching {@code IOException} and
+ * responding appropriately.
+ *
+ * <p>Reads do not take the cache's monitor. The index is a concurrent map and
+ * each entry carries an access stamp that replaces the access-ordered
+ * {@code LinkedHashMap}; the journal snapshot is written in stamp order. Which
+ * entry is evicted is decided by an {@link EvictionPolicy}, plain LRU unless
+ * another one is passed to {@code open}. Reads reach the policy through a
+ * bounded buffer that is drained under the monitor. Mutations of an entry's
+ * files (publishing, removing) and reads of them are serialized on one of a
+ * fixed set of lock stripes chosen by key hash, so a {@link #get} only waits
+ * for writers of keys that share its stripe.
+ *
+ * <p>Journal records are written in batches by a {@link JournalWriter} on a
+ * background thread, as configured by its {@link JournalWriter.FlushPolicy}.
+ * READ records are dropped rather than waited for when the writer falls
+ * behind. {@link #flush} is the explicit durability point.
+ */
+public final class DiskLruCache implements Closeable {
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "libcore.io.DiskLruCache";
+    static final String VERSION_1 = "1";
+    static final int BINARY_MAGIC = 0x444c5243; // "DLRC"
+    static final int VERSION_2 = 2;
+    private static final int HEADER_SIZE = 5 * 4;
+    static final long ANY_SEQUENCE_NUMBER = -1;
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+    private static final byte OP_KEY = 5;
+    private static final byte FLAG_DIRTY = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /*
+     * This cache uses a binary journal file named "journal". All numbers are
+     * big-endian. The journal starts with a fixed 20 byte header:
+     *     int magic        0x444c5243 ("DLRC")
+     *     int version      2
+     *     int appVersion
+     *     int valueCount
+     *     int snapshotCount
+     *
+     * The header is followed by a snapshot of the index, written when the
+     * journal was last compacted. It holds snapshotCount records, least
+     * recently used first:
+     *     long keyHash, byte flags, short keyLength, key bytes (UTF-8),
+     *     then valueCount longs holding the value lengths.
+     * A flags value of FLAG_DIRTY marks an entry that was being edited.
+     *
+     * The snapshot is followed by the tail: records appended as cache
+     * operations occur. Every record starts with an op byte and the 64-bit
+     * hash of its key, so each record kind has a fixed width:
+     *     KEY    op, keyHash, short keyLength, key bytes
+     *     DIRTY  op, keyHash
+     *     CLEAN  op, keyHash, valueCount longs
+     *     REMOVE op, keyHash
+     *     READ   op, keyHash
+     * A KEY record introduces a key that is not in the snapshot; it precedes
+     * the first DIRTY record for that key. The records carry the same meaning
+     * as the lines of the text journal described below.
+     *
+     * open() maps the journal into memory, loads the snapshot in one pass and
+     * only replays the tail. A torn record at the end of the tail is ignored,
+     * and the journal is rewritten so that new records don't follow it.
+     * Compaction writes a fresh snapshot with an empty tail.
+     *
+     * A journal, binary or text, with fewer values per entry than the cache is
+     * opened with is upgraded rather than rejected: open() creates the added
+     * values of every clean entry as empty files and rewrites the journal.
+     *
+     * Caches written by libcore's DiskLruCache use the text journal below.
+     * Such a journal is read once by open() and replaced by a binary one.
+     * A typical text journal file looks like this:
+     *     libcore.io.DiskLruCache
+     *     1
+     *     100
+     *     2
+     *
+     *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054
+     *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
+     *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
+     *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
+     *     DIRTY 1ab96a171faeeee38496d8b330771a7a
+     *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
+     *     READ 335c4c6028171cfddfbaae1a9c313c52
+     *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
+     *
+     * The first five lines of the journal form its header. They are the
+     * constant string "libcore.io.DiskLruCache", the disk cache's version,
+     * the application's version, the value count, and a blank line.
+     *
+     * Each of the subsequent lines in the file is a record of the state of a
+     * cache entry. Each line contains space-separated values: a state, a key,
+     * and optional state-specific values.
+     *   o DIRTY lines track that an entry is actively being created or updated.
+     *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
+     *     action. DIRTY lines without a matching CLEAN or REMOVE indicate that
+     *     temporary files may need to be deleted.
+     *   o CLEAN lines track a cache entry that has been successfully published
+     *     and may be read. A publish line is followed by the lengths of each of
+     *     its values.
+     *   o READ lines track accesses for LRU.
+     *   o REMOVE lines track entries that have been deleted.
+     *
+     * The journal file is appended to as cache operations occur. The journal may
+     * occasionally be compacted by dropping redundant lines. A temporary file named
+     * "journal.tmp" will be used during compaction; that file should be deleted if
+     * it exists when the cache is opened.
+     */
+
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final int appVersion;
+    private volatile long maxSize;
+    private final int valueCount;
+    /** The number of values per entry in the journal being read; less than valueCount when upgrading. */
+    private int journalValueCount;
+    private volatile long size = 0;
+    private final JournalWriter.FlushPolicy flushPolicy;
+    private volatile JournalWriter journalWriter;
+    private final ConcurrentHashMap<String, Entry> lruEntries
+            = new ConcurrentHashMap<String, Entry>(16, 0.75f, STRIPE_COUNT);
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
+    private final AtomicInteger journalRebuildCount = new AtomicInteger();
+
+    /**
+     * Maps the key hashes that appear in journal records to their keys. Used
+     * to reject a new key whose hash collides with a live one. Guarded by
+     * this cache's monitor.
+     */
+    private final Map<Long, String> keysByHash = new HashMap<Long, String>();
+
+    /**
+     * Source of access stamps. Every read or publish of an entry takes the
+     * next value, so ordering entries by stamp yields their LRU order.
+     */
+    private final AtomicLong accessClock = new AtomicLong();
+
+    /** Chooses eviction victims. Guarded by this cache's monitor. */
+    private final EvictionPolicy<String> evictionPolicy;
+
+    /**
+     * Keys read since the policy last heard about reads. get() adds to it
+     * without locking; it is drained into {@link #evictionPolicy} by the
+     * next mutation or trim. Reads beyond the limit are not recorded.
+     */
+    private final ConcurrentLinkedQueue<String> readBuffer = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger readBufferSize = new AtomicInteger();
+    private static final int READ_BUFFER_LIMIT = 1024;
+
+    /**
+     * An entry's record in a journal snapshot, copied under the monitor so the
+     * journal can be written outside it.
+     */
+    private static final class SnapshotRecord {
+        /** Orders records from least to most recently used. */
+        static final Comparator<SnapshotRecord> LRU_ORDER = new Comparator<SnapshotRecord>() {
+            @Override public int compare(SnapshotRecord a, SnapshotRecord b) {
+                return a.accessStamp < b.accessStamp ? -1 : (a.accessStamp == b.accessStamp ? 0 : 1);
+            }
+        };
+
+        final long accessStamp;
+        /** keyHash, flags, key length, key bytes and value lengths. */
+        final byte[] bytes;
+
+        SnapshotRecord(long accessStamp, byte[] bytes) {
+            this.accessStamp = accessStamp;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Orders entries from least to most recently used. */
+    private static final Comparator<Entry> LRU_ORDER = new Comparator<Entry>() {
+        @Override public int compare(Entry a, Entry b) {
+            return a.accessStamp < b.accessStamp ? -1 : (a.accessStamp == b.accessStamp ? 0 : 1);
+        }
+    };
+
+    /**
+     * Stripes that serialize file operations per key: opening a snapshot's
+     * streams, renaming dirty files into place and deleting clean files. This
+     * keeps snapshots atomic without a cache-wide lock on the read path.
+     */
+    private static final int STRIPE_COUNT = 16;
+    private final Object[] stripes = new Object[STRIPE_COUNT];
+
+    /**
+     * To differentiate between old and current snapshots, each entry is given
+     * a sequence number each time an edit is committed. A snapshot is stale if
+     * its sequence number is not equal to its entry's sequence number.
+     */
+    private long nextSequenceNumber = 0;
+
+    /* From java.util.Arrays */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] copyOfRange(T[] original, int start, int end) {
+        final int originalLength = original.length; // For exception priority compatibility.
+        if (start > end) {
+            throw new IllegalArgumentException();
+        }
+        if (start < 0 || start > originalLength) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        final int resultLength = end - start;
+        final int copyLength = Math.min(resultLength, originalLength - start);
+        final T[] result = (T[]) Array
+                .newInstance(original.getClass().getComponentType(), resultLength);
+        System.arraycopy(original, start, result, 0, copyLength);
+        return result;
+    }
+
+    /**
+     * Returns the remainder of 'reader' as a string, closing it when done.
+     */
+    public static String readFully(Reader reader) throws IOException {
+        try {
+            StringWriter writer = new StringWriter();
+            char[] buffer = new char[1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, count);
+            }
+            return writer.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the ASCII characters up to but not including the next "\r\n", or
+     * "\n".
+     *
+     * @throws EOFException if the stream is exhausted before the next newline
+     *     character.
+     */
+    public static String readAsciiLine(InputStream in) throws IOException {
+        // TODO: support UTF-8 here instead
+
+        StringBuilder result = new StringBuilder(80);
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                throw new EOFException();
+            } else if (c == '\n') {
+                break;
+            }
+
+            result.append((char) c);
+        }
+        int length = result.length();
+        if (length > 0 && result.charAt(length - 1) == '\r') {
+            result.setLength(length - 1);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Closes 'closeable', ignoring any checked exceptions. Does nothing if 'closeable' is null.
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (RuntimeException rethrown) {
+                throw rethrown;
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Recursively delete everything in {@code dir}.
+     */
+    // TODO: this should specify paths as Strings rather than as Files
+    public static void deleteContents(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("not a directory: " + dir);
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            if (!file.delete()) {
+                throw new IOException("failed to delete file: " + file);
+            }
+        }
+    }
+
+    /**
+     * This cache uses a single background thread to evict entries and compact
+     * the journal. Neither holds the cache's monitor for longer than a slice:
+     * see {@link #trimToSize} and {@link #compactJournal}.
+     */
+    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Callable<Void> cleanupCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            if (journalWriter == null) {
+                return null; // closed
+            }
+            trimToSize();
+            if (journalRebuildRequired()) {
+                compactJournal();
+            }
+            return null;
+        }
+    };
+
+    /** Entries evicted per hold of the monitor; their files are deleted after it is released. */
+    private static final int EVICTION_SLICE = 8;
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            JournalWriter.FlushPolicy flushPolicy, EvictionPolicy<String> evictionPolicy) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.journalFile = new File(directory, JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.valueCount = valueCount;
+        this.journalValueCount = valueCount;
+        this.maxSize = maxSize;
+        this.flushPolicy = flushPolicy;
+        this.evictionPolicy = evictionPolicy;
+        evictionPolicy.setCapacity(maxSize);
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     *     A cache written with fewer values is upgraded: the added values of
+     *     its entries are empty.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
+            throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, JournalWriter.FlushPolicy.DEFAULT,
+                EvictionPolicies.LRU);
+    }
+
+    /**
+     * Opens the cache in {@code directory} like {@link #open(File, int, int, long)},
+     * writing journal records according to {@code flushPolicy} and evicting
+     * entries chosen by a policy of kind {@code evictionPolicy}.
+     */
+    static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            JournalWriter.FlushPolicy flushPolicy, EvictionPolicies evictionPolicy)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (valueCount <= 0) {
+            throw new IllegalArgumentException("valueCount <= 0");
+        }
+
+        // prefer to pick up where we left off
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                flushPolicy, evictionPolicy.<String>create(maxSize));
+        if (cache.journalFile.exists()) {
+            try {
+                boolean rewrite = cache.readJournal();
+                cache.processJournal();
+                if (rewrite) {
+                    cache.rebuildJournal();
+                    cache.journalRebuildCount.incrementAndGet();
+                } else {
+                    cache.journalWriter = new JournalWriter(cache.journalFile, flushPolicy);
+                }
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+//                System.logW("DiskLruCache " + directory + " is corrupt: "
+//                        + journalIsCorrupt.getMessage() + ", removing");
+                cache.delete();
+            }
+        }
+
+        // create a new empty cache
+        directory.mkdirs();
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, flushPolicy,
+                evictionPolicy.<String>create(maxSize));
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * Loads the index from the journal.
+     *
+     * @return true if the journal must be rewritten: it used the legacy text
+     *     format, has fewer values per entry than this cache, or ends in a
+     *     torn record that new records must not follow.
+     */
+    private boolean readJournal() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = channel.size();
+            if (length >= MAGIC.length() && isTextJournal(file)) {
+                readTextJournal();
+                return true;
+            }
+            if (length < HEADER_SIZE) {
+                throw new IOException("journal too short: " + length);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            return readBinaryJournal(buffer) || journalValueCount < valueCount;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private static boolean isTextJournal(RandomAccessFile file) throws IOException {
+        byte[] prefix = new byte[MAGIC.length()];
+        file.seek(0);
+        file.readFully(prefix);
+        return MAGIC.equals(new String(prefix, UTF_8));
+    }
+
+    /** Returns true if the journal ends in a torn record. */
+    private boolean readBinaryJournal(ByteBuffer buffer) throws IOException {
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        int appVersionValue = buffer.getInt();
+        int valueCountValue = buffer.getInt();
+        int snapshotCount = buffer.getInt();
+        if (magic != BINARY_MAGIC
+                || version != VERSION_2
+                || appVersionValue != appVersion
+                || valueCountValue <= 0
+                || valueCountValue > valueCount
+                || snapshotCount < 0) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + valueCountValue + ", " + snapshotCount + "]");
+        }
+        journalValueCount = valueCountValue;
+
+        Map<Long, String> keys = new HashMap<Long, String>();
+        try {
+            for (int i = 0; i < snapshotCount; i++) {
+                long keyHash = buffer.getLong();
+                byte flags = buffer.get();
+                String key = readKey(buffer);
+                keys.put(keyHash, key);
+                Entry entry = new Entry(key);
+                for (int t = 0; t < journalValueCount; t++) {
+                    entry.lengths[t] = buffer.getLong();
+                }
+                if ((flags & FLAG_DIRTY) != 0) {
+                    entry.currentEditor = new Editor(entry);
+                } else {
+                    entry.readable = true;
+                }
+                entry.touch();
+                lruEntries.put(key, entry);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated journal snapshot");
+        }
+
+        int tailRecords = 0;
+        int cleanRecordSize = 9 + 8 * journalValueCount;
+        // the end of the last complete record
+        int validEnd = buffer.position();
+        while (buffer.remaining() >= 9) {
+            int start = buffer.position();
+            byte op = buffer.get();
+            long keyHash = buffer.getLong();
+            if (op == OP_KEY) {
+                if (buffer.remaining() < 2
+                        || buffer.remaining() < 2 + (buffer.getShort(buffer.position()) & 0xffff)) {
+                    break; // torn write
+                }
+                // may reuse the hash of a removed key; edit() keeps live hashes unique
+                keys.put(keyHash, readKey(buffer));
+                validEnd = buffer.position();
+                continue;
+            }
+            if (op == OP_CLEAN && buffer.remaining() < cleanRecordSize - 9) {
+                break; // torn write
+            }
+            String key = keys.get(keyHash);
+            if (key == null && op == OP_READ) {
+                // a read that raced with the removal of its key and a compaction
+                validEnd = buffer.position();
+                continue;
+            }
+            if (key == null) {
+                throw new IOException("journal record for unknown key at " + start);
+            }
+            tailRecords++;
+            Entry entry = lruEntries.get(key);
+            switch (op) {
+                case OP_REMOVE:
+                    lruEntries.remove(key);
+                    break;
+                case OP_READ:
+                    if (entry != null) {
+                        entry.touch();
+                    }
+                    break;
+                case OP_DIRTY:
+                    if (entry == null) {
+                        entry = new Entry(key);
+                        lruEntries.put(key, entry);
+                    }
+                    entry.touch();
+                    entry.currentEditor = new Editor(entry);
+                    break;
+                case OP_CLEAN:
+                    if (entry == null) {
+                        entry = new Entry(key);
+                        lruEntries.put(key, entry);
+                    }
+                    entry.touch();
+                    for (int t = 0; t < journalValueCount; t++) {
+                        entry.lengths[t] = buffer.getLong();
+                    }
+                    entry.readable = true;
+                    entry.currentEditor = null;
+                    break;
+                default:
+                    throw new IOException("unexpected journal record " + op + " at " + start);
+            }
+            validEnd = buffer.position();
+        }
+
+        // a long tail makes the next open slow; count it towards compaction
+        redundantOpCount.set(tailRecords);
+        return validEnd < buffer.limit();
+    }
+
+    private static String readKey(ByteBuffer buffer) {
+        int keyLength = buffer.getShort() & 0xffff;
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(keyBytes);
+        return new String(keyBytes, UTF_8);
+    }
+
+    /**
+     * Reads a journal written in the text format of libcore's DiskLruCache.
+     */
+    private void readTextJournal() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        try {
+            String magic = readAsciiLine(in);
+            String version = readAsciiLine(in);
+            String appVersionString = readAsciiLine(in);
+            String valueCountString = readAsciiLine(in);
+            String blank = readAsciiLine(in);
+            if (!MAGIC.equals(magic)
+                    || !VERSION_1.equals(version)
+                    || !Integer.toString(appVersion).equals(appVersionString)
+                    || !isValueCountUpTo(valueCountString, valueCount)
+                    || !"".equals(blank)) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
+            }
+            journalValueCount = Integer.parseInt(valueCountString);
+
+            while (true) {
+                try {
+                    readJournalLine(readAsciiLine(in));
+                } catch (EOFException endOfJournal) {
+                    break;
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /** Returns true if {@code string} is a value count between 1 and {@code max}. */
+    private static boolean isValueCountUpTo(String string, int max) {
+        try {
+            int count = Integer.parseInt(string);
+            return count > 0 && count <= max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+
+        String key = parts[1];
+        if (parts[0].equals(REMOVE) && parts.length == 2) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            if (parts[0].equals(READ)) {
+                return; // a read that raced with the entry's removal
+            }
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        entry.touch();
+
+        if (parts[0].equals(CLEAN) && parts.length == 2 + journalValueCount) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.setLengths(copyOfRange(parts, 2, parts.length));
+        } else if (parts[0].equals(DIRTY) && parts.length == 2) {
+            entry.currentEditor = new Editor(entry);
+        } else if (parts[0].equals(READ) && parts.length == 2) {
+            // this work was already done by calling entry.touch()
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Computes the initial size and collects garbage as a part of opening the
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * Since DIRTY records are no longer flushed before an edit creates its
+     * files, temporary files left by edits whose record was lost are deleted
+     * too. If the journal had fewer values per entry, the added values of
+     * clean entries are created empty.
+     */
+    private void processJournal() throws IOException {
+        deleteIfExists(journalFileTmp);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp") || isOrphanValueFile(file.getName())) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.currentEditor == null) {
+                for (int t = 0; t < valueCount; t++) {
+                    size += entry.lengths[t];
+                }
+                for (int t = journalValueCount; t < valueCount; t++) {
+                    createEmptyFile(entry.getCleanFile(t));
+                }
+                keysByHash.put(entry.keyHash, entry.key);
+            } else {
+                entry.currentEditor = null;
+                for (int t = 0; t < valueCount; t++) {
+                    deleteIfExists(entry.getCleanFile(t));
+                    deleteIfExists(entry.getDirtyFile(t));
+                }
+                i.remove();
+            }
+        }
+        for (Entry entry : entriesInLruOrder()) {
+            evictionPolicy.recordInsert(entry.key, entry.totalLength());
+        }
+    }
+
+    private static void createEmptyFile(File file) throws IOException {
+        new FileOutputStream(file).close();
+    }
+
+    /**
+     * Returns true if {@code name} is the name of a value file, "key.index",
+     * whose key isn't in the index. Evictions delete files after their REMOVE
+     * record was queued, so a crash in between leaves such files behind.
+     */
+    private boolean isOrphanValueFile(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1) {
+            return false;
+        }
+        for (int i = dot + 1; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return name.length() - dot - 1 <= 9
+                && Integer.parseInt(name.substring(dot + 1)) < valueCount
+                && !lruEntries.containsKey(name.substring(0, dot));
+    }
+
+    /**
+     * Creates a new journal that omits redundant information and starts
+     * appending to it. Only used while opening the cache; an open cache
+     * compacts its journal with {@link #compactJournal}.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+        writeCompactJournal(snapshotEntries());
+        journalFileTmp.renameTo(journalFile);
+        journalWriter = new JournalWriter(journalFile, flushPolicy);
+    }
+
+    /**
+     * Replaces the journal with one that omits redundant information, without
+     * holding the monitor while it is written. The entries are copied under
+     * the monitor, which is also where the journal writer starts capturing
+     * the records that follow them; the copy is written to a temporary
+     * journal while the cache goes on, and the writer appends the captured
+     * records to it as it moves it over the journal.
+     */
+    private void compactJournal() throws IOException {
+        JournalWriter writer;
+        List<SnapshotRecord> records;
+        synchronized (this) {
+            writer = journalWriter;
+            if (writer == null) {
+                return; // closed
+            }
+            records = snapshotEntries();
+            writer.startCapture();
+            // from here on the redundant records are those of the new tail
+            redundantOpCount.set(0);
+        }
+        boolean replaced = false;
+        try {
+            writeCompactJournal(records);
+            replaced = writer.replaceWith(journalFileTmp);
+        } finally {
+            if (!replaced) {
+                writer.abortCapture();
+                journalFileTmp.delete();
+            }
+        }
+        if (replaced) {
+            journalRebuildCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copies the snapshot record of every entry. Must be called with the
+     * monitor, which keeps the lengths and editors from changing meanwhile.
+     */
+    private List<SnapshotRecord> snapshotEntries() {
+        List<SnapshotRecord> records = new ArrayList<SnapshotRecord>(lruEntries.size());
+        for (Entry entry : lruEntries.values()) {
+            ByteBuffer buffer = ByteBuffer.allocate(11 + entry.keyBytes.length + 8 * valueCount);
+            buffer.putLong(entry.keyHash)
+                    .put(entry.currentEditor != null ? FLAG_DIRTY : 0)
+                    .putShort((short) entry.keyBytes.length)
+                    .put(entry.keyBytes);
+            for (long length : entry.lengths) {
+                buffer.putLong(length);
+            }
+            records.add(new SnapshotRecord(entry.accessStamp, buffer.array()));
+        }
+        return records;
+    }
+
+    /**
+     * Writes a journal holding {@code records} and an empty tail to the
+     * temporary journal file.
+     */
+    private void writeCompactJournal(List<SnapshotRecord> records) throws IOException {
+        // written least recently used first so a replay restores the LRU order
+        Collections.sort(records, SnapshotRecord.LRU_ORDER);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(journalFileTmp), IO_BUFFER_SIZE));
+        try {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(VERSION_2);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+            out.writeInt(records.size());
+            for (SnapshotRecord record : records) {
+                out.write(record.bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns a copy of the current entries ordered from least to most
+     * recently used.
+     */
+    private List<Entry> entriesInLruOrder() {
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        Collections.sort(entries, LRU_ORDER);
+        return entries;
+    }
+
+    /**
+     * Queues the journal record {@code op} for {@code entry}. Hint records
+     * that are {@code droppable} are discarded instead of waited for when the
+     * journal writer is behind.
+     */
+    private void writeJournal(byte op, Entry entry, boolean droppable) throws IOException {
+        JournalWriter writer = journalWriter;
+        if (writer == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+        byte[] record;
+        if (op == OP_CLEAN) {
+            ByteBuffer buffer = ByteBuffer.allocate(9 + 8 * valueCount);
+            buffer.put(op).putLong(entry.keyHash);
+            for (long length : entry.lengths) {
+                buffer.putLong(length);
+            }
+            record = buffer.array();
+        } else if (op == OP_KEY) {
+            record = ByteBuffer.allocate(11 + entry.keyBytes.length)
+                    .put(op).putLong(entry.keyHash)
+                    .putShort((short) entry.keyBytes.length).put(entry.keyBytes)
+                    .array();
+        } else {
+            record = ByteBuffer.allocate(9).put(op).putLong(entry.keyHash).array();
+        }
+        if (droppable) {
+            writer.offer(record);
+        } else {
+            writer.append(record);
+        }
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of {@code keyBytes}. Journal records
+     * refer to keys by this hash.
+     */
+    static long hashKey(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private Object stripeFor(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPE_COUNT];
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+//        try {
+//            Libcore.os.remove(file.getPath());
+//        } catch (ErrnoException errnoException) {
+//            if (errnoException.errno != OsConstants.ENOENT) {
+//                throw errnoException.rethrowAsIOException();
+//            }
+//        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable. If a value is returned, it is moved to
+     * the head of the LRU queue. No file is opened until a value is read.
+     */
+    public Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        /*
+         * Files are opened lazily, so a snapshot pins the sequence number of
+         * the edit it saw and each open checks it is still current; see
+         * Snapshot#open. Holding the key's stripe here keeps a concurrent
+         * commit from changing the lengths while they are copied.
+         */
+        long[] lengths;
+        long sequenceNumber;
+        synchronized (stripeFor(key)) {
+            if (!entry.readable || lruEntries.get(key) != entry) {
+                return null;
+            }
+            lengths = entry.lengths.clone();
+            sequenceNumber = entry.sequenceNumber;
+            entry.touch();
+        }
+        if (readBufferSize.incrementAndGet() <= READ_BUFFER_LIMIT) {
+            readBuffer.offer(key);
+        } else {
+            readBufferSize.decrementAndGet();
+        }
+
+        redundantOpCount.incrementAndGet();
+        writeJournal(OP_READ, entry, true);
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+
+        return new Snapshot(entry, sequenceNumber, lengths);
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public Editor edit(String key) throws IOException {
+        return edit(key, ANY_SEQUENCE_NUMBER);
+    }
+
+    /**
+     * Replays the reads buffered by {@link #get} into the eviction policy.
+     */
+    private synchronized void drainReadBuffer() {
+        String key;
+        while ((key = readBuffer.poll()) != null) {
+            readBufferSize.decrementAndGet();
+            if (lruEntries.containsKey(key)) {
+                evictionPolicy.recordAccess(key);
+            }
+        }
+    }
+
+    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+            return null; // snapshot is stale
+        }
+        boolean created = false;
+        if (entry == null) {
+            entry = new Entry(key);
+            String existing = keysByHash.get(entry.keyHash);
+            if (existing != null && !existing.equals(key)) {
+                return null; // the journal can't tell these keys apart
+            }
+            keysByHash.put(entry.keyHash, key);
+            lruEntries.put(key, entry);
+            created = true;
+        } else if (entry.currentEditor != null) {
+            return null; // another edit is in progress
+        }
+
+        Editor editor = new Editor(entry);
+        entry.currentEditor = editor;
+
+        // files of an edit whose DIRTY record never reached the journal are
+        // collected by processJournal()
+        if (created) {
+            writeJournal(OP_KEY, entry, false);
+        }
+        writeJournal(OP_DIRTY, entry, false);
+        return editor;
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache may use. If it no longer
+     * fits, entries are evicted on the background thread.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        evictionPolicy.setCapacity(maxSize);
+        if (size > maxSize) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache. This may be greater than the max size if a background
+     * deletion is pending.
+     */
+    public long size() {
+        return size;
+    }
+
+    /** Returns the number of entries removed to stay within {@link #maxSize}. */
+    public int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of times the journal was rewritten without its
+     * redundant records since this cache was opened.
+     */
+    public int journalRebuildCount() {
+        return journalRebuildCount.get();
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        drainReadBuffer();
+        Entry entry = editor.entry;
+        if (entry.currentEditor != editor) {
+            throw new IllegalStateException();
+        }
+
+        // if this edit is creating the entry for the first time, every index must have a value
+        if (success && !entry.readable) {
+            for (int i = 0; i < valueCount; i++) {
+                if (!entry.getDirtyFile(i).exists()) {
+                    editor.abort();
+                    throw new IllegalStateException("edit didn't create file " + i);
+                }
+            }
+        }
+
+        synchronized (stripeFor(entry.key)) {
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+            }
+
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
+                    entry.touch();
+                }
+            } else {
+                lruEntries.remove(entry.key);
+            }
+        }
+
+        redundantOpCount.incrementAndGet();
+        if (entry.readable) {
+            if (success) {
+                evictionPolicy.recordInsert(entry.key, entry.totalLength());
+            }
+            writeJournal(OP_CLEAN, entry, false);
+        } else {
+            keysByHash.remove(entry.keyHash);
+            writeJournal(OP_REMOVE, entry, false);
+        }
+
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+        int redundantOps = redundantOpCount.get();
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOps >= lruEntries.size();
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed. Entries
+     * actively being edited cannot be removed. Like evicted entries, the entry
+     * is taken out of the index under the monitor and its files are deleted
+     * once the monitor has been released.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        Entry entry = unlink(key);
+        if (entry == null) {
+            return false;
+        }
+        deleteEvictedFiles(Collections.singletonList(entry));
+        return true;
+    }
+
+    /**
+     * Takes the entry for {@code key} out of the index and returns it, or
+     * returns null if there is none or it is being edited; its files are
+     * still on disk.
+     */
+    private synchronized Entry unlink(String key) throws IOException {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        if (entry == null || entry.currentEditor != null) {
+            return null;
+        }
+
+        synchronized (stripeFor(key)) {
+            for (int i = 0; i < valueCount; i++) {
+                size -= entry.lengths[i];
+                entry.lengths[i] = 0;
+            }
+            lruEntries.remove(key);
+        }
+
+        redundantOpCount.incrementAndGet();
+        keysByHash.remove(entry.keyHash);
+        evictionPolicy.recordRemove(key);
+        writeJournal(OP_REMOVE, entry, false);
+
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns true if this cache has been closed.
+     */
+    public boolean isClosed() {
+        return journalWriter == null;
+    }
+
+    private void checkNotClosed() {
+        if (journalWriter == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    /**
+     * Force buffered operations to the filesystem. If the cache is over its
+     * size, entries are evicted on the background thread rather than by the
+     * caller.
+     */
+    public void flush() throws IOException {
+        JournalWriter writer = journalWriter;
+        if (writer == null) {
+            throw new IllegalStateException("cache is closed");
+        }
+        if (size > maxSize) {
+            executorService.submit(cleanupCallable);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem.
+     */
+    public synchronized void close() throws IOException {
+        if (journalWriter == null) {
+            return; // already closed
+        }
+        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+            if (entry.currentEditor != null) {
+                entry.currentEditor.abort();
+            }
+        }
+        trimToSize();
+        journalWriter.close();
+        journalWriter = null;
+    }
+
+    /**
+     * Evicts the entries chosen by the eviction policy until the cache fits,
+     * {@link #EVICTION_SLICE} entries at a time: each slice is taken out of
+     * the index under the monitor, and its files are deleted once the monitor
+     * has been released, so edits and commits only ever wait for one slice.
+     * As commits go on meanwhile, one call evicts at most as many entries as
+     * the index held when it started; the commits that keep the cache over
+     * its size submit the next one, after a journal compaction if one is due.
+     */
+    private void trimToSize() throws IOException {
+        int remaining = lruEntries.size();
+        List<Entry> evicted;
+        while (remaining > 0 && !(evicted = evictSlice()).isEmpty()) {
+            deleteEvictedFiles(evicted);
+            remaining -= evicted.size();
+        }
+    }
+
+    /**
+     * Unlinks up to {@link #EVICTION_SLICE} victims from the index and returns
+     * them; their files are still on disk. A victim that is being edited
+     * can't be removed; it is reported to the policy as used so the next
+     * victim is tried instead.
+     */
+    private synchronized List<Entry> evictSlice() throws IOException {
+        List<Entry> evicted = new ArrayList<Entry>(EVICTION_SLICE);
+        if (journalWriter == null) {
+            return evicted; // closed
+        }
+        drainReadBuffer();
+        int attempts = lruEntries.size();
+        while (size > maxSize && evicted.size() < EVICTION_SLICE && attempts-- > 0) {
+            String key = evictionPolicy.victim();
+            if (key == null) {
+                break;
+            }
+            Entry entry = lruEntries.get(key);
+            if (entry != null && entry.currentEditor == null) {
+                synchronized (stripeFor(key)) {
+                    for (int i = 0; i < valueCount; i++) {
+                        size -= entry.lengths[i];
+                        entry.lengths[i] = 0;
+                    }
+                    lruEntries.remove(key);
+                }
+                redundantOpCount.incrementAndGet();
+                keysByHash.remove(entry.keyHash);
+                evictionPolicy.recordRemove(key);
+                writeJournal(OP_REMOVE, entry, false);
+                evictionCount.incrementAndGet();
+                evicted.add(entry);
+            } else if (entry != null) {
+                evictionPolicy.recordAccess(key);
+            } else {
+                evictionPolicy.recordRemove(key);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Deletes the files of entries unlinked by {@link #evictSlice} or
+     * {@link #unlink}. Holds
+     * only each key's stripe: if the key was published again meanwhile, its
+     * commit already replaced the files, which then are left alone.
+     */
+    private void deleteEvictedFiles(List<Entry> evicted) throws IOException {
+        IOException failure = null;
+        for (Entry entry : evicted) {
+            synchronized (stripeFor(entry.key)) {
+                Entry current = lruEntries.get(entry.key);
+                if (current != null && current.readable) {
+                    continue;
+                }
+                for (int i = 0; i < valueCount; i++) {
+                    File file = entry.getCleanFile(i);
+                    if (!file.delete() && file.exists() && failure == null) {
+                        failure = new IOException("failed to delete " + file);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values. This will delete
+     * all files in the cache directory including files that weren't created by
+     * the cache.
+     */
+    public void delete() throws IOException {
+        close();
+        deleteContents(directory);
+    }
+
+    private void validateKey(String key) {
+        if (key.contains(" ") || key.contains("\n") || key.contains("\r")) {
+            throw new IllegalArgumentException(
+                    "keys must not contain spaces or newlines: \"" + key + "\"");
+        }
+    }
+
+    private static String inputStreamToString(InputStream in) throws IOException {
+        return readFully(new InputStreamReader(in, UTF_8));
+    }
+
+    /**
+     * A snapshot of the values for an entry.
+     *
+     * <p>Values are opened on first use, each as a {@link FileInputStream}
+     * whose stream, descriptor and channel all read the same open file. An
+     * open checks under the key's stripe that the entry hasn't been committed
+     * or removed since the snapshot was taken and fails with an IOException
+     * if it has; once open, a file keeps the snapshot's contents even if a
+     * later commit replaces it. Values that are never read cost nothing.
+     */
+    public final class Snapshot implements Closeable {
+        private final Entry entry;
+        private final long sequenceNumber;
+        private final long[] lengths;
+        private final FileInputStream[] ins;
+
+        private Snapshot(Entry entry, long sequenceNumber, long[] lengths) {
+            this.entry = entry;
+            this.sequenceNumber = sequenceNumber;
+            this.lengths = lengths;
+            this.ins = new FileInputStream[lengths.length];
+        }
+
+        /**
+         * Returns an editor for this snapshot's entry, or null if either the
+         * entry has changed since this snapshot was created or if another edit
+         * is in progress.
+         */
+        public Editor edit() throws IOException {
+            return DiskLruCache.this.edit(entry.key, sequenceNumber);
+        }
+
+        /**
+         * Returns the length in bytes of the value for {@code index}, without
+         * opening it.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the unbuffered stream with the value for {@code index}.
+         */
+        public InputStream getInputStream(int index) throws IOException {
+            return open(index);
+        }
+
+        /**
+         * Returns the file descriptor of the value for {@code index}, for
+         * decoders that read a file directly.
+         */
+        public FileDescriptor getFileDescriptor(int index) throws IOException {
+            return open(index).getFD();
+        }
+
+        /**
+         * Returns a channel reading the value for {@code index}. It shares its
+         * position with {@link #getInputStream}.
+         */
+        public FileChannel getFileChannel(int index) throws IOException {
+            return open(index).getChannel();
+        }
+
+        /**
+         * Maps the value for {@code index} read-only. The mapping stays valid
+         * after this snapshot is closed and is released when it is garbage
+         * collected, so it suits small values that are read once.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            return getFileChannel(index).map(FileChannel.MapMode.READ_ONLY, 0, lengths[index]);
+        }
+
+        /**
+         * Returns the string value for {@code index}. The value is read with
+         * positional reads, so the stream {@link #getInputStream} returns
+         * stays open and where it was.
+         */
+        public String getString(int index) throws IOException {
+            FileChannel channel = getFileChannel(index);
+            ByteBuffer buffer = ByteBuffer.allocate((int) lengths[index]);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) != -1) {
+            }
+            return new String(buffer.array(), 0, buffer.position(), UTF_8);
+        }
+
+        private synchronized FileInputStream open(int index) throws IOException {
+            if (ins[index] != null) {
+                return ins[index];
+            }
+            synchronized (stripeFor(entry.key)) {
+                if (lruEntries.get(entry.key) != entry || entry.sequenceNumber != sequenceNumber) {
+                    throw new IOException("snapshot of " + entry.key + " is stale");
+                }
+                ins[index] = new FileInputStream(entry.getCleanFile(index));
+            }
+            return ins[index];
+        }
+
+        @Override public synchronized void close() {
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * Edits the values for an entry.
+     */
+    public final class Editor {
+        private final Entry entry;
+        private boolean hasErrors;
+
+        private Editor(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Returns an unbuffered input stream to read the last committed value,
+         * or null if no value has been committed.
+         */
+        public InputStream newInputStream(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (!entry.readable) {
+                    return null;
+                }
+                return new FileInputStream(entry.getCleanFile(index));
+            }
+        }
+
+        /**
+         * Returns the last committed value as a string, or null if no value
+         * has been committed.
+         */
+        public String getString(int index) throws IOException {
+            InputStream in = newInputStream(index);
+            return in != null ? inputStreamToString(in) : null;
+        }
+
+        /**
+         * Returns a new unbuffered output stream to write the value at
+         * {@code index}. If the underlying output stream encounters errors
+         * when writing to the filesystem, this edit will be aborted when
+         * {@link #commit} is called. The returned output stream does not throw
+         * IOExceptions.
+         */
+        public OutputStream newOutputStream(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+            }
+        }
+
+        /**
+         * Sets the value at {@code index} to {@code value}.
+         */
+        public void set(int index, String value) throws IOException {
+            Writer writer = null;
+            try {
+                writer = new OutputStreamWriter(newOutputStream(index), UTF_8);
+                writer.write(value);
+            } finally {
+                closeQuietly(writer);
+            }
+        }
+
+        /**
+         * Commits this edit so it is visible to readers.  This releases the
+         * edit lock so another edit may be started on the same key.
+         */
+        public void commit() throws IOException {
+            if (hasErrors) {
+                completeEdit(this, false);
+                remove(entry.key); // the previous entry is stale
+            } else {
+                completeEdit(this, true);
+            }
+        }
+
+        /**
+         * Aborts this edit. This releases the edit lock so another edit may be
+         * started on the same key.
+         */
+        public void abort() throws IOException {
+            completeEdit(this, false);
+        }
+
+        /**
+         * Aborts this edit unless it was already committed or aborted. Meant
+         * for a {@code finally} block, so an edit that failed with an
+         * exception doesn't hold the entry's edit lock for good.
+         */
+        public void abortUnlessCommitted() {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    return;
+                }
+                try {
+                    abort();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private class FaultHidingOutputStream extends FilterOutputStream {
+            private FaultHidingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override public void write(int oneByte) {
+                try {
+                    out.write(oneByte);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length) {
+                try {
+                    out.write(buffer, offset, length);
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void close() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+
+            @Override public void flush() {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    hasErrors = true;
+                }
+            }
+        }
+    }
+
+    private final class Entry {
+        private final String key;
+        private final byte[] keyBytes;
+
+        /** Identifies this entry's key in journal records. */
+        private final long keyHash;
+
+        /** Lengths of this entry's files. */
+        private final long[] lengths;
+
+        /** True if this entry has ever been published */
+        private volatile boolean readable;
+
+        /** The ongoing edit or null if this entry is not being edited. */
+        private Editor currentEditor;
+
+        /** The sequence number of the most recently committed edit to this entry. */
+        private long sequenceNumber;
+
+        /** The value of {@link #accessClock} when this entry was last used. */
+        private volatile long accessStamp;
+
+        private Entry(String key) {
+            this.key = key;
+            this.keyBytes = key.getBytes(UTF_8);
+            this.keyHash = hashKey(keyBytes);
+            this.lengths = new long[valueCount];
+        }
+
+        private long totalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
+            }
+            return total;
+        }
+
+        /** Marks this entry as the most recently used one. */
+        private void touch() {
+            accessStamp = accessClock.incrementAndGet();
+        }
+
+        public String getLengths() throws IOException {
+            StringBuilder result = new StringBuilder();
+            for (long size : lengths) {
+                result.append(' ').append(size);
+            }
+            return result.toString();
+        }
+
+        /**
+         * Set lengths using decimal numbers like "10123".
+         */
+        private void setLengths(String[] strings) throws IOException {
+            if (strings.length != journalValueCount) {
+                throw invalidLengths(strings);
+            }
+
+            try {
+                for (int i = 0; i < strings.length; i++) {
+                    lengths[i] = Long.parseLong(strings[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw invalidLengths(strings);
+            }
+        }
+
+        private IOException invalidLengths(String[] strings) throws IOException {
+            throw new IOException("unexpected journal line: " + Arrays.toString(strings));
+        }
+
+        public File getCleanFile(int i) {
+            return new File(directory, key + "." + i);
+        }
+
+        public File getDirtyFile(int i) {
+            return new File(directory, key + "." + i + ".tmp");
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package xiazhenjie.lrucache.cache;
+
+/**
+ * The eviction policies a cache tier can be configured with.
+ */
+public enum EvictionPolicies {
+    /** Plain access-order LRU, the behavior of {@code android.util.LruCache}. */
+    LRU {
+        @Override public <K> EvictionPolicy<K> create(long capacity) {
+            return new LruEvictionPolicy<K>();
+        }
+    },
+    /** Segmented LRU: a key must be hit twice to be protected from scans. */
+    SLRU {
+        @Override public <K> EvictionPolicy<K> create(long capacity) {
+            return new SegmentedLruEvictionPolicy<K>(capacity);
+        }
+    },
+    /** A small LRU window in front of an SLRU main area guarded by TinyLFU. */
+    W_TINY_LFU {
+        @Override public <K> EvictionPolicy<K> create(long capacity) {
+            return new TinyLfuEvictionPolicy<K>(capacity);
+        }
+    },
+    /** Greedy-Dual-Size-Frequency: prefers to keep small, popular entries. */
+    GDSF {
+        @Override public <K> EvictionPolicy<K> create(long capacity) {
+            return new GdsfEvictionPolicy<K>();
+        }
+    };
+
+    /** Returns a new policy for a cache of {@code capacity} size units. */
+    public abstract <K> EvictionPolicy<K> create(long capacity);
+}
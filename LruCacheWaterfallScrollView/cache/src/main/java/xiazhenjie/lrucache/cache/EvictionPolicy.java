@@ -0,0 +1,37 @@
+package xiazhenjie.lrucache.cache;
+
+/**
+ * Decides which entry a size-bounded cache gives up when it is over budget.
+ *
+ * <p>The cache reports every insertion, hit, miss and removal; when it needs
+ * space it asks for a {@link #victim} and then removes that key, reporting the
+ * removal back. Policies that filter admission, like W-TinyLFU, do so by
+ * returning the newly inserted key as the victim.
+ *
+ * <p>Implementations are not thread-safe. Callers must serialize all calls,
+ * typically on the cache's own lock.
+ */
+public interface EvictionPolicy<K> {
+
+    /** Records that {@code key} was added with the given {@code size}. */
+    void recordInsert(K key, long size);
+
+    /** Records a hit on {@code key}, which is present. */
+    void recordAccess(K key);
+
+    /** Records a lookup of {@code key}, which is not present. */
+    void recordMiss(K key);
+
+    /** Records that {@code key} left the cache, by eviction or otherwise. */
+    void recordRemove(K key);
+
+    /**
+     * Returns the key that should be evicted next, or null if the policy
+     * tracks no keys. The caller is expected to evict it and call
+     * {@link #recordRemove}.
+     */
+    K victim();
+
+    /** Tells the policy the size budget of the cache it serves. */
+    void setCapacity(long capacity);
+}
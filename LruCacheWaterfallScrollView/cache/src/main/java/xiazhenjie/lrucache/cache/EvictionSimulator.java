@@ -0,0 +1,170 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays a recorded access trace against every {@link EvictionPolicies}
+ * policy and reports the hit ratio each one would have achieved.
+ *
+ * <p>A trace is a text file with one request per line: the key and the size
+ * of the value in bytes, separated by a space. {@link TraceRecorder} writes
+ * such files; {@link ImagePipeline#startTraceRecording} records the
+ * memory tier's requests while scrolling.
+ *
+ * <p>Usage: {@code EvictionSimulator <trace file> <capacity in bytes>...}
+ */
+public final class EvictionSimulator {
+
+    /** The outcome of replaying one trace with one policy. */
+    public static final class Result {
+        public final EvictionPolicies policy;
+        public final long capacity;
+        public final long requests;
+        public final long hits;
+        public final long requestedBytes;
+        public final long hitBytes;
+
+        Result(EvictionPolicies policy, long capacity, long requests, long hits,
+                long requestedBytes, long hitBytes) {
+            this.policy = policy;
+            this.capacity = capacity;
+            this.requests = requests;
+            this.hits = hits;
+            this.requestedBytes = requestedBytes;
+            this.hitBytes = hitBytes;
+        }
+
+        public double hitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public double byteHitRatio() {
+            return requestedBytes == 0 ? 0 : (double) hitBytes / requestedBytes;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "%-10s capacity=%d hitRatio=%.4f byteHitRatio=%.4f",
+                    policy, capacity, hitRatio(), byteHitRatio());
+        }
+    }
+
+    /**
+     * Appends requests to a trace file in the format read by
+     * {@link EvictionSimulator#readTrace}. This class is thread-safe.
+     */
+    public static final class TraceRecorder implements Closeable {
+        private final Writer writer;
+
+        public TraceRecorder(File file) throws IOException {
+            this.writer = new BufferedWriter(new FileWriter(file, true));
+        }
+
+        public synchronized void record(String key, long size) {
+            try {
+                writer.write(key);
+                writer.write(' ');
+                writer.write(Long.toString(size));
+                writer.write('\n');
+            } catch (IOException ignored) {
+                // a lost trace line only skews the simulation slightly
+            }
+        }
+
+        @Override public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private EvictionSimulator() {
+    }
+
+    /** Reads a trace into parallel lists of keys and sizes. */
+    public static void readTrace(File file, List<String> keys, List<Long> sizes) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                keys.add(line.substring(0, space));
+                sizes.add(Long.parseLong(line.substring(space + 1).trim()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Replays the trace against a cache of {@code capacity} bytes that evicts
+     * with {@code policy}. A miss inserts the value, as the image loader does.
+     */
+    public static Result simulate(EvictionPolicies policy, long capacity,
+            List<String> keys, List<Long> sizes) {
+        EvictionPolicy<String> evictionPolicy = policy.create(capacity);
+        HashMap<String, Long> cached = new HashMap<String, Long>();
+        long size = 0;
+        long hits = 0;
+        long requestedBytes = 0;
+        long hitBytes = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            long entrySize = sizes.get(i);
+            requestedBytes += entrySize;
+            if (cached.containsKey(key)) {
+                hits++;
+                hitBytes += entrySize;
+                evictionPolicy.recordAccess(key);
+                continue;
+            }
+            evictionPolicy.recordMiss(key);
+            if (entrySize > capacity) {
+                continue;
+            }
+            cached.put(key, entrySize);
+            size += entrySize;
+            evictionPolicy.recordInsert(key, entrySize);
+            while (size > capacity) {
+                String victim = evictionPolicy.victim();
+                if (victim == null) {
+                    break;
+                }
+                Long victimSize = cached.remove(victim);
+                evictionPolicy.recordRemove(victim);
+                if (victimSize != null) {
+                    size -= victimSize;
+                }
+            }
+        }
+        return new Result(policy, capacity, keys.size(), hits, requestedBytes, hitBytes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: EvictionSimulator <trace file> <capacity in bytes>...");
+            System.exit(1);
+        }
+        List<String> keys = new ArrayList<String>();
+        List<Long> sizes = new ArrayList<Long>();
+        readTrace(new File(args[0]), keys, sizes);
+        System.out.println("requests=" + keys.size());
+        for (int i = 1; i < args.length; i++) {
+            long capacity = Long.parseLong(args[i]);
+            for (EvictionPolicies policy : EvictionPolicies.values()) {
+                System.out.println(simulate(policy, capacity, keys, sizes));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package xiazhenjie.lrucache.cache;
+
+/**
+ * A count-min sketch of how often keys were requested, used by
+ * {@link TinyLfuEvictionPolicy} to decide admission.
+ *
+ * <p>Each key maps to one 4-bit counter in each of four rows; its estimated
+ * frequency is the smallest of those counters. Counters saturate at 15. After
+ * ten requests per tracked key every counter is halved, so the sketch follows
+ * changes in popularity instead of remembering old scrolls forever.
+ */
+final class FrequencySketch {
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /** Sixteen 4-bit counters per long; row {@code r} uses nibbles {@code 4r..4r+3}. */
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch(long expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Grows the sketch so it can track about {@code expectedEntries} keys.
+     * Growing discards the counts gathered so far.
+     */
+    void ensureCapacity(long expectedEntries) {
+        int capacity = (int) Math.min(Math.max(expectedEntries, 16), 1 << 24);
+        if (table != null && table.length >= capacity) {
+            return;
+        }
+        int length = Integer.highestOneBit(capacity - 1) << 1;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * length;
+        additions = 0;
+    }
+
+    /** Returns the estimated number of recent requests for {@code key}, 0 to 15. */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < 4; row++) {
+            frequency = Math.min(frequency, (int) ((table[indexOf(hash, row)] >>> shiftOf(hash, row)) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /** Counts one request for {@code key}. */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            int index = indexOf(hash, row);
+            int shift = shiftOf(hash, row);
+            if (((table[index] >>> shift) & 0xfL) != 0xfL) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    /** Each row owns four nibbles of a long; the hash picks one of them. */
+    private static int shiftOf(int hash, int row) {
+        return ((row << 2) + ((hash >>> (row << 3)) & 3)) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,84 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Greedy-Dual-Size-Frequency. Every key has a priority of
+ * {@code L + frequency / size}, where {@code L} is the priority of the last
+ * victim; the key with the lowest priority is evicted. Large entries that are
+ * rarely used go first, and inflating {@code L} with every eviction ages out
+ * keys that were popular long ago.
+ */
+final class GdsfEvictionPolicy<K> implements EvictionPolicy<K> {
+    private final HashMap<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+    private final TreeSet<Node<K>> queue = new TreeSet<Node<K>>();
+    private double inflation;
+    private long nextOrder;
+
+    @Override public void recordInsert(K key, long size) {
+        recordRemove(key);
+        Node<K> node = new Node<K>(key, Math.max(1, size));
+        node.frequency = 1;
+        enqueue(node);
+        nodes.put(key, node);
+    }
+
+    @Override public void recordAccess(K key) {
+        Node<K> node = nodes.get(key);
+        if (node != null) {
+            queue.remove(node);
+            node.frequency++;
+            enqueue(node);
+        }
+    }
+
+    @Override public void recordMiss(K key) {
+    }
+
+    @Override public void recordRemove(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node != null) {
+            queue.remove(node);
+        }
+    }
+
+    @Override public K victim() {
+        if (queue.isEmpty()) {
+            return null;
+        }
+        Node<K> node = queue.first();
+        inflation = node.priority;
+        return node.key;
+    }
+
+    @Override public void setCapacity(long capacity) {
+    }
+
+    private void enqueue(Node<K> node) {
+        node.priority = inflation + (double) node.frequency / node.size;
+        node.order = nextOrder++;
+        queue.add(node);
+    }
+
+    private static final class Node<K> implements Comparable<Node<K>> {
+        final K key;
+        final long size;
+        long frequency;
+        double priority;
+        /** Breaks ties in favor of evicting the least recently touched key. */
+        long order;
+
+        Node(K key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+
+        @Override public int compareTo(Node<K> other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes and encodes the images of an {@link ImagePipeline}, of type
+ * {@code B}. This is the pipeline's only contact with the platform's bitmap
+ * type: on Android, {@code B} is {@code Bitmap} and the methods wrap
+ * {@code BitmapFactory}; on the JVM it can be anything that stands for an
+ * image.
+ *
+ * <p>Methods are called concurrently from the pipeline's worker threads.
+ */
+public interface ImageCodec<B> {
+
+    /**
+     * Decodes the image in {@code fd}, scaled down to {@code width} pixels
+     * wide if it is wider; {@code width <= 0} means full size.
+     *
+     * @return null if the data isn't an image.
+     */
+    B decode(FileDescriptor fd, int width);
+
+    /** Decodes the first {@code length} bytes of {@code data} like {@link #decode(FileDescriptor, int)}. */
+    B decode(byte[] data, int length, int width);
+
+    /**
+     * Decodes a low-resolution preview from the first {@code length} bytes
+     * of an image that is still downloading. The preview is shown briefly and
+     * never cached, so it shouldn't take memory meant for reuse.
+     *
+     * @return null if there isn't enough data yet.
+     */
+    B decodePreview(byte[] data, int length, int width);
+
+    /**
+     * Reads the size of the image from the first {@code length} bytes of
+     * {@code data} into {@code size[0]} (width) and {@code size[1]} (height).
+     *
+     * @return false if there isn't enough data to know yet.
+     */
+    boolean decodeBounds(byte[] data, int length, int[] size);
+
+    /**
+     * Returns true if the image whose first {@code length} bytes are
+     * {@code data} is encoded so that a prefix of it decodes to a whole,
+     * blurry picture, as progressive JPEGs are.
+     */
+    boolean isProgressive(byte[] data, int length);
+
+    /**
+     * Compresses {@code image} to {@code out}, to be stored as a thumbnail.
+     *
+     * @return false if the image couldn't be compressed.
+     */
+    boolean encode(B image, OutputStream out) throws IOException;
+
+    int getWidth(B image);
+
+    /** Returns the memory held by {@code image}, in bytes. */
+    long getByteCount(B image);
+
+    /**
+     * Called once the last {@link ImageHandle} to {@code image} is closed:
+     * it has left the memory cache and nobody shows it any more. Its memory
+     * may be reused for later decodes.
+     */
+    void recycle(B image);
+}
@@ -0,0 +1,284 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads images over HTTP, keeping connections alive between requests.
+ *
+ * <p>{@link HttpURLConnection} keeps idle connections in a pool of its own as
+ * long as every response body is read to the end and closed, and the
+ * connection is not {@link HttpURLConnection#disconnect disconnected}. This
+ * class does exactly that on success, so a burst of requests reuses a few
+ * warm connections instead of opening one per image. How many are open at
+ * once is bounded by the threads calling {@link #download}.
+ *
+ * <p>Bodies are copied to the destination through large buffers taken from a
+ * small pool, without flushing per chunk; the caller decides when the
+ * destination is flushed.
+ *
+ * <p>Responses carry their {@link Validators}. Passing them back to
+ * {@link #download} turns the request into a conditional GET, answered with
+ * 304 if the cached copy is still current.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ImageDownloader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    /** The result of a download. */
+    public enum Status {
+        /** The body was written to the destination. */
+        OK,
+        /** The server confirmed the cached copy is current; nothing was written. */
+        NOT_MODIFIED,
+        /** The server answered with an error, or the request failed. */
+        FAILED
+    }
+
+    /** What the server said about a URL. */
+    public static final class Response {
+        public final Status status;
+        public final int code;
+        /** The validators to store with the body, or to keep after a 304. */
+        public final Validators validators;
+        public final long bytes;
+
+        Response(Status status, int code, Validators validators, long bytes) {
+            this.status = status;
+            this.code = code;
+            this.validators = validators;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The cache validators of a response and when it was fetched or last
+     * revalidated. They are stored as one line of text in a disk cache value.
+     */
+    public static final class Validators {
+        /** Validators of a response that had none, or that were never stored. */
+        public static final Validators NONE = new Validators(null, null, 0);
+
+        public final String eTag;
+        public final String lastModified;
+        /** When the response was fetched or last revalidated, in milliseconds since the epoch. */
+        public final long checkedAt;
+
+        public Validators(String eTag, String lastModified, long checkedAt) {
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.checkedAt = checkedAt;
+        }
+
+        /** Returns true if the server can answer a conditional request with these. */
+        public boolean canRevalidate() {
+            return eTag != null || lastModified != null;
+        }
+
+        /** Returns true if these were checked more than {@code maxAgeMillis} before {@code now}. */
+        public boolean isStale(long now, long maxAgeMillis) {
+            return now - checkedAt > maxAgeMillis;
+        }
+
+        /** Returns a copy checked at {@code now}. */
+        public Validators checkedAt(long now) {
+            return new Validators(eTag, lastModified, now);
+        }
+
+        /** Encodes these as one line: the check time, the ETag and Last-Modified, tab separated. */
+        public String encode() {
+            return checkedAt + "\t" + (eTag != null ? eTag : "") + "\t" + (lastModified != null ? lastModified : "");
+        }
+
+        /** Decodes a line written by {@link #encode}; anything else decodes to {@link #NONE}. */
+        public static Validators decode(String line) {
+            if (line == null) {
+                return NONE;
+            }
+            String[] parts = line.split("\t", -1);
+            if (parts.length != 3) {
+                return NONE;
+            }
+            try {
+                return new Validators(parts[1].isEmpty() ? null : parts[1],
+                        parts[2].isEmpty() ? null : parts[2], Long.parseLong(parts[0]));
+            } catch (NumberFormatException e) {
+                return NONE;
+            }
+        }
+    }
+
+    private final int maxConcurrentRequests;
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    /**
+     * @param maxConcurrentRequests how many threads call {@link #download}
+     *     at once; one copy buffer is kept for each.
+     */
+    public ImageDownloader(int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests <= 0");
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Requests {@code imageUrl} and writes the body to {@code out}. A
+     * conditional request is only made if {@code cached}
+     * {@link Validators#canRevalidate can revalidate}. {@code out} is neither
+     * flushed nor closed.
+     *
+     * @param cached the validators of the cached copy, or {@link Validators#NONE}
+     *     for an unconditional request.
+     * @throws IOException if writing to {@code out} fails. Network errors are
+     *     reported as {@link Status#FAILED}.
+     */
+    public Response download(String imageUrl, Validators cached, OutputStream out) throws IOException {
+        URL url = new URL(imageUrl);
+        requestCount.incrementAndGet();
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        boolean reusable = false;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("GET");
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            if (cached.eTag != null) {
+                connection.setRequestProperty("If-None-Match", cached.eTag);
+            }
+            if (cached.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+            int code = connection.getResponseCode();
+            long now = System.currentTimeMillis();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                in = connection.getInputStream();
+                drain(in);
+                reusable = true;
+                notModifiedCount.incrementAndGet();
+                return new Response(Status.NOT_MODIFIED, code, cached.checkedAt(now), 0);
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                in = connection.getErrorStream();
+                if (in != null) {
+                    drain(in);
+                }
+                reusable = true;
+                failureCount.incrementAndGet();
+                return new Response(Status.FAILED, code, cached, 0);
+            }
+            in = connection.getInputStream();
+            long bytes = copy(in, out);
+            reusable = true;
+            bytesDownloaded.addAndGet(bytes);
+            Validators validators = new Validators(connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), now);
+            return new Response(Status.OK, code, validators, bytes);
+        } catch (IOException e) {
+            if (e instanceof WriteException) {
+                throw (IOException) e.getCause();
+            }
+            failureCount.incrementAndGet();
+            return new Response(Status.FAILED, -1, cached, 0);
+        } finally {
+            DiskLruCache.closeQuietly(in);
+            // a connection whose body wasn't read to the end can't be reused
+            if (!reusable && connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = takeBuffer();
+        try {
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                try {
+                    out.write(buffer, 0, count);
+                } catch (IOException e) {
+                    throw new WriteException(e);
+                }
+                total += count;
+            }
+            return total;
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private void drain(InputStream in) throws IOException {
+        byte[] buffer = takeBuffer();
+        try {
+            while (in.read(buffer) != -1) {
+            }
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    private byte[] takeBuffer() {
+        synchronized (buffers) {
+            byte[] buffer = buffers.poll();
+            return buffer != null ? buffer : new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void returnBuffer(byte[] buffer) {
+        synchronized (buffers) {
+            // one buffer per request that can run at once is plenty
+            if (buffers.size() < maxConcurrentRequests) {
+                buffers.push(buffer);
+            }
+        }
+    }
+
+    /** Returns the number of requests made, including conditional ones. */
+    public long requestCount() {
+        return requestCount.get();
+    }
+
+    /** Returns the number of conditional requests answered with 304 Not Modified. */
+    public long notModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /** Returns the number of requests that failed on the network or with an unexpected status. */
+    public long failureCount() {
+        return failureCount.get();
+    }
+
+    /** Returns the number of response body bytes read. */
+    public long bytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    @Override public String toString() {
+        return "ImageDownloader[requests=" + requestCount + ",notModified=" + notModifiedCount
+                + ",failures=" + failureCount + ",bytes=" + bytesDownloaded + "]";
+    }
+
+    /** Marks a failure of the destination, which is the caller's problem rather than the network's. */
+    private static final class WriteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        WriteException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One holder's reference to an image of an {@link ImagePipeline}.
+ *
+ * <p>Every holder of an image, the memory cache included, has a handle of
+ * its own and closes it when done: a view when it stops showing the image,
+ * the cache when it evicts it. The image is handed to
+ * {@link ImageCodec#recycle} when the last handle is closed, not before and
+ * not later, so its memory can be reused for the next decode while nothing
+ * can still draw it.
+ *
+ * <p>A handle is closed once; closing it again does nothing. To keep an
+ * image past the handle it came with, such as one passed to a listener,
+ * {@link #duplicate} it.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class ImageHandle<B> implements Closeable {
+
+    private final Shared<B> shared;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private ImageHandle(Shared<B> shared) {
+        this.shared = shared;
+    }
+
+    /** Returns the only handle to {@code image}, which is recycled by {@code codec} when it is closed. */
+    static <B> ImageHandle<B> of(B image, ImageCodec<B> codec) {
+        return new ImageHandle<B>(new Shared<B>(image, codec));
+    }
+
+    /**
+     * Returns the image.
+     *
+     * @throws IllegalStateException if this handle is closed; the image may
+     *     already be reused for another one.
+     */
+    public B get() {
+        if (closed.get()) {
+            throw new IllegalStateException("handle is closed");
+        }
+        return shared.image;
+    }
+
+    /** Returns the memory held by the image, in bytes. Can be called after closing. */
+    public long getByteCount() {
+        return shared.byteCount;
+    }
+
+    /**
+     * Returns another handle to the same image, to be closed separately.
+     *
+     * @throws IllegalStateException if this handle is closed.
+     */
+    public ImageHandle<B> duplicate() {
+        if (closed.get() || !shared.tryAcquire()) {
+            throw new IllegalStateException("handle is closed");
+        }
+        return new ImageHandle<B>(shared);
+    }
+
+    /**
+     * Returns another handle to the same image, or null if this one is
+     * closed and so was every other. For the memory cache, whose handle may
+     * be closed by an eviction on another thread at any time.
+     */
+    ImageHandle<B> tryDuplicate() {
+        return shared.tryAcquire() ? new ImageHandle<B>(shared) : null;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    /** Gives up this reference; the image is recycled if it was the last one. */
+    @Override public void close() {
+        if (closed.compareAndSet(false, true)) {
+            shared.release();
+        }
+    }
+
+    /** Returns true if {@code other} is a handle to the same image. */
+    public boolean isSameImage(ImageHandle<?> other) {
+        return other != null && other.shared == shared;
+    }
+
+    @Override public String toString() {
+        return "ImageHandle[" + shared.image + (closed.get() ? ",closed]" : "]");
+    }
+
+    /** The image and the number of open handles to it. */
+    private static final class Shared<B> {
+        final B image;
+        final long byteCount;
+        private final ImageCodec<B> codec;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Shared(B image, ImageCodec<B> codec) {
+            this.image = image;
+            this.byteCount = codec.getByteCount(image);
+            this.codec = codec;
+        }
+
+        /** Counts one more reference, unless the count already reached 0 and the image was recycled. */
+        boolean tryAcquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            int count = references.decrementAndGet();
+            if (count == 0) {
+                codec.recycle(image);
+            } else if (count < 0) {
+                throw new IllegalStateException("released more often than acquired: " + image);
+            }
+        }
+    }
+}
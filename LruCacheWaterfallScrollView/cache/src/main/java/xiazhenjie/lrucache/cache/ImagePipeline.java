@@ -0,0 +1,1121 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads images by URL through a memory cache, an off-heap cache of encoded
+ * thumbnails, a disk cache and the network, decoding them at the width they
+ * are shown at.
+ *
+ * <p>A load takes these steps, each queued by distance from the viewport on
+ * its own {@link LoadScheduler} stage:
+ * <ol>
+ * <li>A hit in the memory cache completes at once.
+ * <li>If the encoded thumbnail of that width is in the off-heap cache, it is
+ *     decoded from there. Otherwise the DISK stage looks up the thumbnail,
+ *     then the original, in the disk cache.
+ * <li>If the disk cache has neither, the NETWORK stage downloads the
+ *     original into the disk cache and into memory at once, reporting the
+ *     image's size and a preview to {@link ProgressListener}s on the way. An
+ *     original that hasn't been revalidated for
+ *     {@link Options#revalidateAfterMillis} is requested conditionally.
+ * <li>The DECODE stage decodes at the requested width and adds the image to
+ *     the memory cache.
+ * <li>An image decoded from an original is then compressed in the background
+ *     and stored as the thumbnail of that width, so later misses only decode
+ *     the small thumbnail.
+ * </ol>
+ *
+ * <p>Loads of the same URL and width are merged by a {@link SingleFlightLoader}.
+ * Cached images are handed out as {@link ImageHandle}s, one per holder; the
+ * memory cache holds one too. An image evicted while shown is only
+ * {@link ImageCodec#recycle recycled} once the last handle is closed.
+ *
+ * <p>The memory and disk tiers start at the configured sizes and are then
+ * resized by a {@link CacheBudgetController} as memory pressure, the heap and
+ * free storage change.
+ *
+ * <p>Hits and misses of each tier, disk, network and decode times, the work
+ * in flight and the current budgets are counted in {@link #getMetrics}.
+ *
+ * <p>Everything platform-specific is behind {@link ImageCodec} and
+ * {@link CacheLocation}, so the whole pipeline runs on a plain JVM.
+ *
+ * <p>This class is thread-safe. Listeners are called on the callback executor.
+ */
+public final class ImagePipeline<B> {
+
+    /** Configuration of a pipeline. Fields without a default must be set. */
+    public static final class Options {
+        /** Bytes of decoded images kept in the memory cache, at most; less under memory pressure. */
+        public long memoryCacheSize;
+        /** Bytes of originals and thumbnails kept in the disk cache, at most; less when storage runs low. */
+        public long diskCacheSize = 20 * 1024 * 1024;
+        /** Bytes of encoded thumbnails kept off-heap. */
+        public int encodedCacheSize = 8 * 1024 * 1024;
+        /** The disk cache is cleared when this changes. */
+        public int appVersion = 1;
+        public EvictionPolicies memoryEvictionPolicy = EvictionPolicies.W_TINY_LFU;
+        public EvictionPolicies diskEvictionPolicy = EvictionPolicies.SLRU;
+        public int diskThreads = 2;
+        /** Also the most connections open at once. */
+        public int networkThreads = 4;
+        public int decodeThreads = 2;
+        /** Queued loads further than this from the viewport are dropped. */
+        public int evictDistance = Integer.MAX_VALUE;
+        /**
+         * How long a cached original is used before asking the server whether
+         * it changed. One the server sent no ETag or Last-Modified for is
+         * never asked about, as that would download it again in full.
+         */
+        public long revalidateAfterMillis = 24 * 60 * 60 * 1000L;
+    }
+
+    /**
+     * Implemented by load listeners that also want to hear how a download is
+     * going, to make room for an image or show a preview before it is
+     * complete. Called on the callback executor.
+     */
+    public interface ProgressListener<B> {
+        /** Called at most once, when enough has been downloaded to know the size of the original. */
+        void onBoundsDecoded(int width, int height);
+
+        /**
+         * Called at most once, with a low-resolution preview decoded from the
+         * first part of a progressive image. The preview is decoded once for
+         * all listeners and is not cached. Like the handle passed to
+         * {@link SingleFlightLoader.Listener#onLoaded}, this one is closed
+         * once every listener was called; a listener that keeps showing the
+         * preview must {@link ImageHandle#duplicate} it.
+         */
+        void onPreviewDecoded(ImageHandle<B> preview);
+    }
+
+    /** Separates the URL and the width in memory cache keys; URLs may contain it too, so the last one counts. */
+    private static final char MEMORY_CACHE_KEY_SEPARATOR = '#';
+    /** Separates the key of the original and the width in the disk cache keys of thumbnails. */
+    private static final String THUMBNAIL_KEY_SEPARATOR = "_w";
+    private static final CacheKeys CACHE_KEYS = new CacheKeys(CacheKeys.Algorithm.MD5, 4096);
+    /** How long {@link #close} waits for running loads, and then for thumbnail writes. */
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    /** The two values of each disk cache entry: the image, and the validators the server sent with it. */
+    private static final int VALUE_IMAGE = 0;
+    private static final int VALUE_VALIDATORS = 1;
+    private static final int VALUE_COUNT = 2;
+
+    /** Each decode thread reuses one buffer for reading encoded thumbnails. */
+    private static final ThreadLocal<DecodeBuffer> DECODE_BUFFER = new ThreadLocal<DecodeBuffer>() {
+        @Override protected DecodeBuffer initialValue() {
+            return new DecodeBuffer();
+        }
+    };
+
+    private final ImageCodec<B> codec;
+    private final Executor callbackExecutor;
+    private final long revalidateAfterMillis;
+    private final int encodedCacheSize;
+
+    /** Holds a handle of its own to each image, closed when the image is evicted. */
+    private final MemoryCache<String, ImageHandle<B>> memoryCache;
+    private final OffHeapByteCache encodedCache;
+    /** Null if the disk cache couldn't be opened; everything is then downloaded. */
+    private final DiskLruCache diskCache;
+    private final ImageDownloader downloader;
+    private final SingleFlightLoader<String, ImageHandle<B>> singleFlightLoader;
+    private final LoadScheduler loadScheduler;
+    private final CacheBudgetController budgetController;
+    private final PipelineMetrics metrics;
+
+    /** Compresses thumbnails in the background without holding up loads. */
+    private final ExecutorService thumbnailExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ImageLoader-thumbnail");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    /** Only used on the thumbnail thread. */
+    private final DecodeBuffer.Output thumbnailOutput = new DecodeBuffer.Output();
+
+    /** Records the memory cache's requests for {@link EvictionSimulator}, or null. */
+    private volatile EvictionSimulator.TraceRecorder traceRecorder;
+
+    public ImagePipeline(ImageCodec<B> codec, CacheLocation location, Executor callbackExecutor, Options options) {
+        if (options.memoryCacheSize <= 0) {
+            throw new IllegalArgumentException("memoryCacheSize <= 0");
+        }
+        this.codec = codec;
+        this.callbackExecutor = callbackExecutor;
+        this.revalidateAfterMillis = options.revalidateAfterMillis;
+        this.encodedCacheSize = options.encodedCacheSize;
+
+        memoryCache = new MemoryCache<String, ImageHandle<B>>(options.memoryCacheSize,
+                options.memoryEvictionPolicy.<String>create(options.memoryCacheSize)) {
+            @Override protected long sizeOf(String key, ImageHandle<B> image) {
+                return image.getByteCount();
+            }
+
+            @Override protected void entryRemoved(boolean evicted, String key, ImageHandle<B> oldValue,
+                    ImageHandle<B> newValue) {
+                if (oldValue != newValue) {
+                    oldValue.close();
+                }
+            }
+        };
+        encodedCache = new OffHeapByteCache(options.encodedCacheSize);
+
+        DiskLruCache diskCache = null;
+        try {
+            File directory = location.getDirectory("image");
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            // Journal records are batched for up to a second or 64 records.
+            // A cache written before validators were stored, with the image only,
+            // is upgraded on open: its entries get empty validators.
+            diskCache = DiskLruCache.open(directory, options.appVersion, VALUE_COUNT, options.diskCacheSize,
+                    JournalWriter.FlushPolicy.of(1000, 64, false), options.diskEvictionPolicy);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.diskCache = diskCache;
+
+        downloader = new ImageDownloader(options.networkThreads);
+        loadScheduler = new LoadScheduler(options.diskThreads, options.networkThreads, options.decodeThreads,
+                options.evictDistance);
+        singleFlightLoader = new SingleFlightLoader<String, ImageHandle<B>>(callbackExecutor,
+                new SingleFlightLoader.Fetcher<String, ImageHandle<B>>() {
+                    @Override public void fetch(String memoryCacheKey,
+                            SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+                        load(memoryCacheKey, flight);
+                    }
+
+                    @Override public void release(String memoryCacheKey, ImageHandle<B> image) {
+                        // every listener duplicated the handle it keeps; close the flight's
+                        if (image != null) {
+                            image.close();
+                        }
+                    }
+                });
+        budgetController = new CacheBudgetController(memoryCache, diskCache);
+        metrics = new PipelineMetrics(memoryCache, encodedCache, diskCache, downloader, singleFlightLoader,
+                loadScheduler, budgetController);
+    }
+
+    /**
+     * Returns the memory cache key of {@code imageUrl} decoded at {@code width};
+     * {@code width <= 0} means full size. Widths are part of the key because
+     * each width is a different image.
+     */
+    public static String getMemoryCacheKey(String imageUrl, int width) {
+        return imageUrl + MEMORY_CACHE_KEY_SEPARATOR + Math.max(width, 0);
+    }
+
+    /**
+     * Returns the disk cache key of the original of {@code imageUrl} if
+     * {@code width <= 0}, or of its thumbnail of that width. The original and
+     * each thumbnail are separate entries, evicted independently.
+     */
+    public static String getDiskCacheKey(String imageUrl, int width) {
+        String key = CACHE_KEYS.keyFor(imageUrl);
+        return width > 0 ? key + THUMBNAIL_KEY_SEPARATOR + width : key;
+    }
+
+    /** Returns the memory cache, for its size and budget. Its handles are its own; don't close them. */
+    public MemoryCache<String, ImageHandle<B>> getMemoryCache() {
+        return memoryCache;
+    }
+
+    /** Returns the controller of the cache sizes, to report memory pressure to. */
+    public CacheBudgetController getBudgetController() {
+        return budgetController;
+    }
+
+    /** Returns the metrics of this pipeline; take a {@link PipelineMetrics#snapshot} to read them. */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Returns true if {@code key} is cached. Doesn't count as an access. */
+    public boolean isImageInMemory(String key) {
+        return memoryCache.peek(key) != null;
+    }
+
+    /**
+     * Returns a new handle to the cached image for {@code key}, or null. The
+     * caller must close it. An image the cache evicts on another thread
+     * meanwhile is still returned if someone else holds it, and is a miss if
+     * nobody did.
+     */
+    public ImageHandle<B> acquireImage(String key) {
+        ImageHandle<B> cached = memoryCache.get(key);
+        ImageHandle<B> image = cached != null ? cached.tryDuplicate() : null;
+        EvictionSimulator.TraceRecorder recorder = traceRecorder;
+        if (recorder != null && image != null) {
+            recorder.record(key, image.getByteCount());
+        }
+        return image;
+    }
+
+    /**
+     * Caches {@code image}, which the cache then owns, unless {@code key} is
+     * already there; then it is recycled right away.
+     */
+    public void addImageToMemoryCache(String key, B image) {
+        ImageHandle<B> handle = ImageHandle.of(image, codec);
+        addToMemoryCache(key, handle);
+        handle.close();
+    }
+
+    /** Caches a duplicate of {@code image} unless {@code key} is already there. */
+    private void addToMemoryCache(String key, ImageHandle<B> image) {
+        // peek: checking before an add is not a lookup, and mustn't count as a miss
+        if (memoryCache.peek(key) == null) {
+            memoryCache.put(key, image.duplicate());
+            EvictionSimulator.TraceRecorder recorder = traceRecorder;
+            if (recorder != null) {
+                recorder.record(key, image.getByteCount());
+            }
+        }
+    }
+
+    /**
+     * Starts recording the memory cache's requests to {@code file}: one line
+     * per hit, and one per add after a miss, for {@link EvictionSimulator}.
+     */
+    public void startTraceRecording(File file) throws IOException {
+        stopTraceRecording();
+        traceRecorder = new EvictionSimulator.TraceRecorder(file);
+    }
+
+    public void stopTraceRecording() throws IOException {
+        EvictionSimulator.TraceRecorder recorder = traceRecorder;
+        traceRecorder = null;
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
+    /**
+     * Loads {@code imageUrl} at {@code width} ({@code width <= 0} for full
+     * size) and calls {@code listener} with a handle to the image, or null on
+     * failure. The image is cached under {@link #getMemoryCacheKey}.
+     * Concurrent loads of the same URL and width share one load.
+     *
+     * <p>The handle is closed once every listener was called; a listener
+     * that keeps the image must {@link ImageHandle#duplicate} it. Listeners that are
+     * {@link LoadScheduler.Prioritized} are loaded nearest to the viewport
+     * first; listeners that are {@link ProgressListener}s hear about
+     * downloads.
+     *
+     * @return a request that can be cancelled, which only stops the callback.
+     */
+    public SingleFlightLoader<String, ImageHandle<B>>.Request loadImageAsync(String imageUrl, int width,
+            SingleFlightLoader.Listener<ImageHandle<B>> listener) {
+        return singleFlightLoader.load(getMemoryCacheKey(imageUrl, width), listener);
+    }
+
+    /**
+     * Moves the viewport: queued loads are reordered by distance to it, and
+     * those too far away are dropped.
+     */
+    public void setViewport(int top, int bottom) {
+        loadScheduler.setViewport(top, bottom);
+    }
+
+    /**
+     * Decodes the original of {@code imageUrl} at full size straight from the
+     * disk cache, on the calling thread. Never touches the network. The
+     * image isn't cached; the caller owns it.
+     *
+     * @return null if the original isn't on disk.
+     */
+    public B decodeOriginalFromDisk(String imageUrl) {
+        DiskLruCache.Snapshot snapshot = getSnapshot(getDiskCacheKey(imageUrl, 0));
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return codec.decode(snapshot.getFileDescriptor(VALUE_IMAGE), 0);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Opens the original of {@code imageUrl} in the disk cache for decoding
+     * parts of it, such as tiles of a zoomed image. Never touches the network.
+     *
+     * @return null if the original isn't on disk; otherwise the caller must close it.
+     */
+    public Original openOriginal(String imageUrl) {
+        DiskLruCache.Snapshot snapshot = getSnapshot(getDiskCacheKey(imageUrl, 0));
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            // open the file now: once open, eviction can't take it away
+            snapshot.getFileDescriptor(VALUE_IMAGE);
+            return new Original(snapshot);
+        } catch (IOException e) {
+            snapshot.close();
+            return null;
+        }
+    }
+
+    /** Writes pending journal records of the disk cache to the file system. */
+    public void flush() throws IOException {
+        if (diskCache != null) {
+            diskCache.flush();
+        }
+    }
+
+    /**
+     * Stops this pipeline. Queued loads, and loads started from now on,
+     * complete with null. Running loads and pending thumbnail writes are
+     * waited for, then the disk cache is closed and the memory caches are
+     * emptied. Handles already handed out stay valid.
+     */
+    public void close() throws IOException {
+        loadScheduler.shutdown();
+        try {
+            loadScheduler.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // running loads may still have queued thumbnails; they are written before the disk cache closes
+        thumbnailExecutor.shutdown();
+        try {
+            thumbnailExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        budgetController.shutdown();
+        stopTraceRecording();
+        memoryCache.evictAll();
+        encodedCache.evictAll();
+        if (diskCache != null) {
+            diskCache.close();
+        }
+    }
+
+    private void load(String memoryCacheKey, SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        ImageHandle<B> image = acquireImage(memoryCacheKey);
+        if (image != null) {
+            flight.complete(image);
+            return;
+        }
+        int separator = memoryCacheKey.lastIndexOf(MEMORY_CACHE_KEY_SEPARATOR);
+        String imageUrl = memoryCacheKey.substring(0, separator);
+        int width = Integer.parseInt(memoryCacheKey.substring(separator + 1));
+        String thumbnailKey = width > 0 ? getDiskCacheKey(imageUrl, width) : null;
+        if (thumbnailKey != null && encodedCache.contains(thumbnailKey)) {
+            decodeEncoded(imageUrl, memoryCacheKey, thumbnailKey, width, flight);
+        } else {
+            if (thumbnailKey != null) {
+                metrics.encodedMisses.incrementAndGet();
+            }
+            readFromDisk(imageUrl, memoryCacheKey, thumbnailKey, width, flight);
+        }
+    }
+
+    /**
+     * Looks up the thumbnail, then the original, on the DISK stage and hands
+     * what it finds to the DECODE stage, or to the NETWORK stage if neither
+     * is there or the original needs revalidating.
+     */
+    private void readFromDisk(final String imageUrl, final String memoryCacheKey, final String thumbnailKey,
+            final int width, final SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        loadScheduler.submit(LoadScheduler.Stage.DISK, new FlightPriority(flight), new LoadJob(flight) {
+            @Override protected void load() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    lookUp();
+                } finally {
+                    metrics.diskRead.recordSince(start);
+                }
+            }
+
+            private void lookUp() throws IOException {
+                long now = System.currentTimeMillis();
+                if (thumbnailKey != null) {
+                    DiskLruCache.Snapshot thumbnail = getSnapshot(thumbnailKey);
+                    if (thumbnail != null) {
+                        // a thumbnail carries the validators of its original; if they're stale, check the original
+                        if (!needsRevalidation(readValidators(thumbnail), now)) {
+                            metrics.diskHits.incrementAndGet();
+                            decodeThumbnail(memoryCacheKey, thumbnailKey, width, thumbnail, flight);
+                            return;
+                        }
+                        thumbnail.close();
+                    }
+                }
+                String key = getDiskCacheKey(imageUrl, 0);
+                DiskLruCache.Snapshot snapshot = getSnapshot(key);
+                if (snapshot == null) {
+                    snapshot = migrateLegacyEntry(imageUrl, key, width);
+                }
+                if (snapshot == null) {
+                    metrics.diskMisses.incrementAndGet();
+                    download(imageUrl, key, thumbnailKey, memoryCacheKey, width,
+                            ImageDownloader.Validators.NONE, flight);
+                    return;
+                }
+                ImageDownloader.Validators validators = readValidators(snapshot);
+                if (needsRevalidation(validators, now)) {
+                    snapshot.close();
+                    metrics.diskMisses.incrementAndGet();
+                    download(imageUrl, key, thumbnailKey, memoryCacheKey, width, validators, flight);
+                } else {
+                    metrics.diskHits.incrementAndGet();
+                    decodeOriginal(memoryCacheKey, width, snapshot, validators, thumbnailKey, flight);
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads the original into the disk cache on the NETWORK stage, then
+     * decodes it. If {@code validators} aren't {@link ImageDownloader.Validators#NONE}
+     * this revalidates the cached original: on 304 only the validators of the
+     * original and its thumbnail are updated; a new image replaces the
+     * original and drops the thumbnail made from the old one; a failure falls
+     * back to the cached copy.
+     *
+     * <p>The body goes to the disk cache and to memory at once
+     * ({@link StreamingDownload}), so a fresh download is decoded without
+     * reading it back from disk.
+     */
+    private void download(final String imageUrl, final String key, final String thumbnailKey,
+            final String memoryCacheKey, final int width, final ImageDownloader.Validators validators,
+            final SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        loadScheduler.submit(LoadScheduler.Stage.NETWORK, new FlightPriority(flight), new LoadJob(flight) {
+            @Override protected void load() throws IOException {
+                DiskLruCache.Editor editor = getEditor(key);
+                if (editor != null) {
+                    ImageDownloader.Response response;
+                    // a failed download, write or decode mustn't leave the entry locked
+                    try {
+                        StreamingDownload download = new StreamingDownload(editor.newOutputStream(VALUE_IMAGE),
+                                width, flight);
+                        long start = System.nanoTime();
+                        try {
+                            response = downloader.download(imageUrl, validators, download);
+                        } finally {
+                            download.close();
+                            metrics.download.recordSince(start);
+                        }
+                        if (response.status == ImageDownloader.Status.OK) {
+                            String line = response.validators.encode();
+                            editor.set(VALUE_VALIDATORS, line);
+                            // the journal is written in batches in the background
+                            editor.commit();
+                            metrics.bytesSaved.addAndGet(download.size());
+                            if (thumbnailKey != null && validators != ImageDownloader.Validators.NONE) {
+                                removeThumbnail(thumbnailKey);
+                            }
+                            decodeDownloaded(memoryCacheKey, width, download, thumbnailKey, line, flight);
+                            return;
+                        }
+                    } finally {
+                        editor.abortUnlessCommitted();
+                    }
+                    if (response.status == ImageDownloader.Status.NOT_MODIFIED) {
+                        String line = response.validators.encode();
+                        updateValidators(key, line);
+                        if (thumbnailKey != null) {
+                            updateValidators(thumbnailKey, line);
+                        }
+                    }
+                }
+                // Someone else wrote the entry, or the cached copy is still good. Prefer the thumbnail.
+                if (thumbnailKey != null) {
+                    DiskLruCache.Snapshot thumbnail = getSnapshot(thumbnailKey);
+                    if (thumbnail != null) {
+                        decodeThumbnail(memoryCacheKey, thumbnailKey, width, thumbnail, flight);
+                        return;
+                    }
+                }
+                DiskLruCache.Snapshot snapshot = getSnapshot(key);
+                if (snapshot == null) {
+                    flight.complete(null);
+                } else {
+                    decodeOriginal(memoryCacheKey, width, snapshot, readValidators(snapshot), thumbnailKey, flight);
+                }
+            }
+        });
+    }
+
+    /** Decodes a just-downloaded original from memory, then makes its thumbnail in the background. */
+    private void decodeDownloaded(final String memoryCacheKey, final int width, final StreamingDownload download,
+            final String thumbnailKey, final String validators,
+            final SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        loadScheduler.submit(LoadScheduler.Stage.DECODE, new FlightPriority(flight), new LoadJob(flight) {
+            @Override protected void load() {
+                long start = System.nanoTime();
+                ImageHandle<B> image = addDecodedImage(memoryCacheKey,
+                        codec.decode(download.buffer(), download.size(), width), start);
+                if (image != null && thumbnailKey != null && codec.getWidth(image.get()) == width) {
+                    saveThumbnail(thumbnailKey, image, validators);
+                }
+                flight.complete(image);
+            }
+        });
+    }
+
+    /**
+     * Decodes the original in {@code snapshot} at {@code width} and caches it;
+     * closes the snapshot either way.
+     *
+     * @param validators those already read from {@code snapshot}, for the thumbnail.
+     * @param thumbnailKey the key of the thumbnail to make from the result, or null.
+     */
+    private void decodeOriginal(final String memoryCacheKey, final int width, final DiskLruCache.Snapshot snapshot,
+            final ImageDownloader.Validators validators, final String thumbnailKey,
+            final SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        loadScheduler.submit(LoadScheduler.Stage.DECODE, new FlightPriority(flight), new LoadJob(flight) {
+            @Override protected void load() throws IOException {
+                ImageHandle<B> image;
+                try {
+                    long start = System.nanoTime();
+                    image = addDecodedImage(memoryCacheKey,
+                            codec.decode(snapshot.getFileDescriptor(VALUE_IMAGE), width), start);
+                } finally {
+                    snapshot.close();
+                }
+                if (image != null && thumbnailKey != null && codec.getWidth(image.get()) == width) {
+                    saveThumbnail(thumbnailKey, image, validators.encode());
+                }
+                flight.complete(image);
+            }
+
+            @Override protected void release() {
+                snapshot.close();
+            }
+        });
+    }
+
+    /**
+     * Copies the thumbnail in {@code snapshot} into the off-heap cache, then
+     * decodes and caches it; closes the snapshot either way. The file is
+     * mapped for the copy and decoded from its descriptor, so the encoded
+     * bytes never pass through the Java heap.
+     */
+    private void decodeThumbnail(final String memoryCacheKey, final String thumbnailKey, final int width,
+            final DiskLruCache.Snapshot snapshot, final SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        loadScheduler.submit(LoadScheduler.Stage.DECODE, new FlightPriority(flight), new LoadJob(flight) {
+            @Override protected void load() throws IOException {
+                ImageHandle<B> image;
+                try {
+                    // one large image shouldn't push out many small ones
+                    if (snapshot.getLength(VALUE_IMAGE) <= encodedCacheSize / 8) {
+                        encodedCache.put(thumbnailKey, snapshot.map(VALUE_IMAGE));
+                    }
+                    long start = System.nanoTime();
+                    image = addDecodedImage(memoryCacheKey,
+                            codec.decode(snapshot.getFileDescriptor(VALUE_IMAGE), width), start);
+                } finally {
+                    snapshot.close();
+                }
+                flight.complete(image);
+            }
+
+            @Override protected void release() {
+                snapshot.close();
+            }
+        });
+    }
+
+    /**
+     * Decodes an encoded thumbnail from the off-heap cache. It may have been
+     * evicted while this waited in the queue; then it goes to the disk.
+     */
+    private void decodeEncoded(final String imageUrl, final String memoryCacheKey, final String thumbnailKey,
+            final int width, final SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        loadScheduler.submit(LoadScheduler.Stage.DECODE, new FlightPriority(flight), new LoadJob(flight) {
+            @Override protected void load() {
+                DecodeBuffer buffer = DECODE_BUFFER.get();
+                if (!buffer.readFrom(encodedCache, thumbnailKey)) {
+                    metrics.encodedMisses.incrementAndGet();
+                    readFromDisk(imageUrl, memoryCacheKey, thumbnailKey, width, flight);
+                    return;
+                }
+                metrics.encodedHits.incrementAndGet();
+                long start = System.nanoTime();
+                flight.complete(addDecodedImage(memoryCacheKey, codec.decode(buffer.data, buffer.length, width),
+                        start));
+            }
+        });
+    }
+
+    /**
+     * Records the time since {@code decodeStart} and caches a freshly decoded
+     * image.
+     *
+     * @return the flight's handle to it, so it can't be evicted and recycled
+     *     before the listeners get it; null if {@code image} is.
+     */
+    private ImageHandle<B> addDecodedImage(String memoryCacheKey, B image, long decodeStart) {
+        metrics.decode.recordSince(decodeStart);
+        if (image == null) {
+            return null;
+        }
+        ImageHandle<B> handle = ImageHandle.of(image, codec);
+        addToMemoryCache(memoryCacheKey, handle);
+        return handle;
+    }
+
+    /**
+     * Compresses {@code image}, already at thumbnail size, in the background
+     * and stores it on disk under {@code thumbnailKey} and in the off-heap
+     * cache. A handle of its own keeps the image from being recycled meanwhile. Nothing
+     * happens if the thumbnail exists or is being written, so each one is
+     * made once.
+     *
+     * @param validators those of the original, so the thumbnail stays valid
+     *     as long as the original does.
+     */
+    private void saveThumbnail(final String thumbnailKey, ImageHandle<B> flightImage, final String validators) {
+        final ImageHandle<B> image = flightImage.duplicate();
+        try {
+            submitThumbnail(thumbnailKey, image, validators);
+        } catch (RejectedExecutionException e) {
+            // closed while this load was still running
+            image.close();
+        }
+    }
+
+    private void submitThumbnail(final String thumbnailKey, final ImageHandle<B> image, final String validators) {
+        thumbnailExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    DiskLruCache.Snapshot snapshot = getSnapshot(thumbnailKey);
+                    if (snapshot != null) {
+                        snapshot.close();
+                        return;
+                    }
+                    DiskLruCache.Editor editor = getEditor(thumbnailKey);
+                    if (editor == null) {
+                        return;
+                    }
+                    OutputStream out = null;
+                    boolean success = false;
+                    try {
+                        thumbnailOutput.reset();
+                        if (codec.encode(image.get(), thumbnailOutput)) {
+                            out = new BufferedOutputStream(editor.newOutputStream(VALUE_IMAGE), 8 * 1024);
+                            thumbnailOutput.writeTo(out);
+                            out.close();
+                            editor.set(VALUE_VALIDATORS, validators);
+                            success = true;
+                            metrics.bytesSaved.addAndGet(thumbnailOutput.size());
+                            encodedCache.put(thumbnailKey, thumbnailOutput.buffer(), 0, thumbnailOutput.size());
+                        }
+                        out = null;
+                    } finally {
+                        DiskLruCache.closeQuietly(out);
+                        if (success) {
+                            editor.commit();
+                        } else {
+                            editor.abort();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    image.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if the cached copy {@code validators} belong to should be
+     * checked with a conditional request. Without an ETag or Last-Modified
+     * there's nothing to check with, so the copy is used until it's evicted.
+     */
+    private boolean needsRevalidation(ImageDownloader.Validators validators, long now) {
+        return validators.canRevalidate() && validators.isStale(now, revalidateAfterMillis);
+    }
+
+    /** Returns the validators in {@code snapshot}, or NONE if they can't be read. */
+    private static ImageDownloader.Validators readValidators(DiskLruCache.Snapshot snapshot) {
+        try {
+            return ImageDownloader.Validators.decode(snapshot.getString(VALUE_VALIDATORS));
+        } catch (IOException e) {
+            return ImageDownloader.Validators.NONE;
+        }
+    }
+
+    /** Replaces only the validators of the entry for {@code key}, if it exists and isn't being edited. */
+    private void updateValidators(String key, String validators) throws IOException {
+        DiskLruCache.Snapshot snapshot = getSnapshot(key);
+        if (snapshot == null) {
+            return;
+        }
+        DiskLruCache.Editor editor;
+        try {
+            editor = snapshot.edit();
+        } finally {
+            snapshot.close();
+        }
+        if (editor != null) {
+            editor.set(VALUE_VALIDATORS, validators);
+            editor.commit();
+        }
+    }
+
+    /**
+     * Keys used to drop the leading zero of each byte, so most differ from
+     * today's. When an original isn't found under its key, it is looked up
+     * under the legacy key; if it's there it is copied to the new key and the
+     * legacy entry is removed, so the next lookup hits. Legacy thumbnails are
+     * removed rather than copied and made again when needed.
+     *
+     * @return a snapshot of the copy, or null if there was no legacy entry or
+     *     it couldn't be copied.
+     */
+    private DiskLruCache.Snapshot migrateLegacyEntry(String imageUrl, String key, int width) throws IOException {
+        String legacyKey = CacheKeys.legacyMd5Key(imageUrl);
+        if (legacyKey.equals(key)) {
+            return null;
+        }
+        DiskLruCache.Snapshot legacy = getSnapshot(legacyKey);
+        if (legacy == null) {
+            return null;
+        }
+        try {
+            DiskLruCache.Editor editor = getEditor(key);
+            if (editor == null) {
+                return null;
+            }
+            boolean success = false;
+            try {
+                copy(legacy.getInputStream(VALUE_IMAGE), editor.newOutputStream(VALUE_IMAGE));
+                editor.set(VALUE_VALIDATORS, legacy.getString(VALUE_VALIDATORS));
+                success = true;
+            } finally {
+                if (success) {
+                    editor.commit();
+                } else {
+                    editor.abort();
+                }
+            }
+        } finally {
+            legacy.close();
+        }
+        diskCache.remove(legacyKey);
+        if (width > 0) {
+            diskCache.remove(legacyKey + THUMBNAIL_KEY_SEPARATOR + width);
+        }
+        return getSnapshot(key);
+    }
+
+    /** Copies all of {@code in} to {@code out} and closes both. */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            DiskLruCache.closeQuietly(out);
+            DiskLruCache.closeQuietly(in);
+        }
+    }
+
+    /** Drops the thumbnail made from an original that has since changed. */
+    private void removeThumbnail(String thumbnailKey) throws IOException {
+        encodedCache.remove(thumbnailKey);
+        if (diskCache != null) {
+            diskCache.remove(thumbnailKey);
+        }
+    }
+
+    /** Returns a snapshot of the entry for {@code key}, or null if there is none or the disk cache failed. */
+    private DiskLruCache.Snapshot getSnapshot(String key) {
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            return diskCache.get(key);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Returns an editor for {@code key}, or null if it is being edited or the disk cache failed. */
+    private DiskLruCache.Editor getEditor(String key) {
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            return diskCache.edit(key);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void notifyBoundsDecoded(final SingleFlightLoader.InFlight<ImageHandle<B>> flight, final int width,
+            final int height) {
+        callbackExecutor.execute(new Runnable() {
+            @SuppressWarnings("unchecked")
+            @Override public void run() {
+                for (SingleFlightLoader.Listener<ImageHandle<B>> listener : flight.listeners()) {
+                    if (listener instanceof ProgressListener) {
+                        ((ProgressListener<B>) listener).onBoundsDecoded(width, height);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Whether any listener waiting for {@code flight} wants a preview. */
+    private static <B> boolean wantsPreview(SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+        for (SingleFlightLoader.Listener<ImageHandle<B>> listener : flight.listeners()) {
+            if (listener instanceof ProgressListener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands one handle to {@code image} to every progress listener waiting
+     * for {@code flight}, and closes it once they were all called.
+     */
+    private void notifyPreviewDecoded(final SingleFlightLoader.InFlight<ImageHandle<B>> flight, B image) {
+        final ImageHandle<B> preview = ImageHandle.of(image, codec);
+        callbackExecutor.execute(new Runnable() {
+            @SuppressWarnings("unchecked")
+            @Override public void run() {
+                try {
+                    for (SingleFlightLoader.Listener<ImageHandle<B>> listener : flight.listeners()) {
+                        if (listener instanceof ProgressListener) {
+                            ((ProgressListener<B>) listener).onPreviewDecoded(preview);
+                        }
+                    }
+                } finally {
+                    // recycled now unless a listener kept a duplicate
+                    preview.close();
+                }
+            }
+        });
+    }
+
+    @Override public String toString() {
+        return "ImagePipeline[" + memoryCache + "," + encodedCache + "," + downloader + "]";
+    }
+
+    /**
+     * An original held open in the disk cache. Its file stays readable until
+     * this is closed, even if the entry is evicted or replaced meanwhile.
+     */
+    public static final class Original implements Closeable {
+        private final DiskLruCache.Snapshot snapshot;
+
+        private Original(DiskLruCache.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /** Returns the descriptor of the encoded image. Reading it through a stream moves its position. */
+        public FileDescriptor getFileDescriptor() throws IOException {
+            return snapshot.getFileDescriptor(VALUE_IMAGE);
+        }
+
+        public long getLength() {
+            return snapshot.getLength(VALUE_IMAGE);
+        }
+
+        @Override public void close() {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * The stream a download is written to: every byte goes to the disk cache
+     * and to memory. As soon as the bytes so far give the image's size, it is
+     * reported once; if the image is progressive, a preview is decoded from
+     * the first {@link #PREVIEW_AFTER_BYTES} and reported once. Used on one
+     * network thread.
+     */
+    private final class StreamingDownload extends OutputStream {
+        /** The size is first looked for after this many bytes, then after twice as many, up to the maximum. */
+        private static final int FIRST_BOUNDS_PROBE_BYTES = 1024;
+        private static final int MAX_BOUNDS_PROBE_BYTES = 256 * 1024;
+        private static final int PREVIEW_AFTER_BYTES = 64 * 1024;
+        /** The preview is this many times narrower than the requested width. */
+        private static final int PREVIEW_SCALE = 4;
+
+        private final OutputStream diskOutputStream;
+        private final DecodeBuffer.Output memory = new DecodeBuffer.Output();
+        private final int width;
+        private final SingleFlightLoader.InFlight<ImageHandle<B>> flight;
+        private final int[] bounds = new int[2];
+        private int nextBoundsProbe = FIRST_BOUNDS_PROBE_BYTES;
+        private boolean boundsDecoded;
+        private boolean progressive;
+        private boolean previewDecoded;
+
+        StreamingDownload(OutputStream diskOutputStream, int width,
+                SingleFlightLoader.InFlight<ImageHandle<B>> flight) {
+            this.diskOutputStream = diskOutputStream;
+            this.width = width;
+            this.flight = flight;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            diskOutputStream.write(b, off, len);
+            memory.write(b, off, len);
+            byte[] buf = memory.buffer();
+            int size = memory.size();
+            if (!boundsDecoded && size >= nextBoundsProbe && nextBoundsProbe <= MAX_BOUNDS_PROBE_BYTES) {
+                nextBoundsProbe *= 2;
+                if (codec.decodeBounds(buf, size, bounds)) {
+                    boundsDecoded = true;
+                    progressive = codec.isProgressive(buf, size);
+                    notifyBoundsDecoded(flight, bounds[0], bounds[1]);
+                }
+            }
+            if (progressive && !previewDecoded && size >= PREVIEW_AFTER_BYTES) {
+                previewDecoded = true;
+                B preview = !wantsPreview(flight) ? null : codec.decodePreview(buf, size, Math.max(1, width / PREVIEW_SCALE));
+                if (preview != null) {
+                    notifyPreviewDecoded(flight, preview);
+                }
+            }
+        }
+
+        /** Returns the array holding the bytes written so far; only the first {@link #size} are valid. */
+        byte[] buffer() {
+            return memory.buffer();
+        }
+
+        int size() {
+            return memory.size();
+        }
+
+        /** Closes only the disk cache's stream; the bytes in memory are left for decoding. */
+        @Override public void close() throws IOException {
+            diskOutputStream.close();
+        }
+    }
+
+    /** A buffer of encoded bytes that only grows, reused by one thread. */
+    private static final class DecodeBuffer {
+        byte[] data = new byte[64 * 1024];
+        /** The number of valid bytes in {@link #data}. */
+        int length;
+
+        /** Reads the value for {@code key} from {@code cache}; returns false if there is none. */
+        boolean readFrom(OffHeapByteCache cache, String key) {
+            int size = cache.get(key, data);
+            if (size > data.length) {
+                data = new byte[Integer.highestOneBit(size) << 1];
+                size = cache.get(key, data);
+            }
+            if (size < 0 || size > data.length) {
+                return false;
+            }
+            length = size;
+            return true;
+        }
+
+        /** A {@link ByteArrayOutputStream} whose array can be read without copying it. */
+        static class Output extends ByteArrayOutputStream {
+            Output() {
+                super(64 * 1024);
+            }
+
+            byte[] buffer() {
+                return buf;
+            }
+        }
+    }
+
+    /**
+     * One step of a load. If every listener has gone, the step is dropped, or
+     * it fails, the flight completes with null, so it completes exactly once.
+     */
+    private abstract static class LoadJob implements LoadScheduler.Job {
+        private final SingleFlightLoader.InFlight<?> flight;
+
+        LoadJob(SingleFlightLoader.InFlight<?> flight) {
+            this.flight = flight;
+        }
+
+        /** Runs this step, then completes the flight or submits the next step. */
+        protected abstract void load() throws Exception;
+
+        /** Releases what this step holds when it won't run. */
+        protected void release() {
+        }
+
+        @Override public void run() {
+            if (flight.isAbandoned()) {
+                dropped();
+                return;
+            }
+            try {
+                load();
+            } catch (Exception e) {
+                e.printStackTrace();
+                flight.complete(null);
+            }
+        }
+
+        @Override public void dropped() {
+            release();
+            flight.complete(null);
+        }
+    }
+
+    /**
+     * The priority of a flight: the distance of the nearest listener still
+     * waiting for it. With nobody waiting it is the furthest, so it runs last
+     * or is dropped.
+     */
+    private static final class FlightPriority implements LoadScheduler.Prioritized {
+        private final SingleFlightLoader.InFlight<?> flight;
+
+        FlightPriority(SingleFlightLoader.InFlight<?> flight) {
+            this.flight = flight;
+        }
+
+        @Override public int distanceTo(int viewportTop, int viewportBottom) {
+            if (flight.isAbandoned()) {
+                return Integer.MAX_VALUE;
+            }
+            int distance = Integer.MAX_VALUE;
+            for (Object listener : flight.listeners()) {
+                // listeners that don't say where they are count as nearest
+                int listenerDistance = listener instanceof LoadScheduler.Prioritized
+                        ? ((LoadScheduler.Prioritized) listener).distanceTo(viewportTop, viewportBottom) : 0;
+                distance = Math.min(distance, listenerDistance);
+            }
+            return distance;
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xiazhenjie.lrucache.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends {@link DiskLruCache} journal records from a background thread.
+ *
+ * <p>Callers hand records to a bounded ring buffer and return immediately; a
+ * single writer thread drains the buffer in batches. When a batch is written
+ * is decided by a {@link FlushPolicy}: after a time window, after a number of
+ * records, or after every batch with an {@code fsync}. A crash loses at most
+ * the records of the batch that had not been written yet.
+ *
+ * <p>Records that only serve as hints, such as READ, are offered with
+ * {@link #offer} and dropped if the buffer is full, so readers never block on
+ * journal I/O. Records that describe state changes use {@link #append}, which
+ * waits for room instead.
+ *
+ * <p>The journal is compacted without stopping the writer: after
+ * {@link #startCapture} every record written is also kept in memory, and
+ * {@link #replaceWith} appends those to the compacted journal before moving it
+ * over the file. Only that last step holds up the writer thread.
+ */
+final class JournalWriter implements Closeable {
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int RING_CAPACITY = 1024;
+
+    /**
+     * Decides when buffered records are written to the journal file.
+     */
+    static final class FlushPolicy {
+        /** Write a batch at least this often, in milliseconds. */
+        final long windowMillis;
+        /** Write a batch as soon as this many records are pending. */
+        final int maxRecords;
+        /** Sync the file descriptor after every batch. */
+        final boolean durable;
+
+        private FlushPolicy(long windowMillis, int maxRecords, boolean durable) {
+            if (windowMillis < 0) {
+                throw new IllegalArgumentException("windowMillis < 0");
+            }
+            if (maxRecords <= 0) {
+                throw new IllegalArgumentException("maxRecords <= 0");
+            }
+            this.windowMillis = windowMillis;
+            this.maxRecords = Math.min(maxRecords, RING_CAPACITY);
+            this.durable = durable;
+        }
+
+        /** Writes whatever is pending once per {@code windowMillis}. */
+        static FlushPolicy window(long windowMillis) {
+            return new FlushPolicy(windowMillis, RING_CAPACITY, false);
+        }
+
+        /** Writes as soon as {@code maxRecords} records are pending. */
+        static FlushPolicy count(int maxRecords) {
+            return new FlushPolicy(Long.MAX_VALUE / 2, maxRecords, false);
+        }
+
+        /** Writes and syncs every record before the next one is taken. */
+        static FlushPolicy durable() {
+            return new FlushPolicy(0, 1, true);
+        }
+
+        /** Writes when either the window elapses or the count is reached. */
+        static FlushPolicy of(long windowMillis, int maxRecords, boolean durable) {
+            return new FlushPolicy(windowMillis, maxRecords, durable);
+        }
+
+        static final FlushPolicy DEFAULT = of(1000, 64, false);
+    }
+
+    private final File file;
+    private final FlushPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private final byte[][] ring = new byte[RING_CAPACITY][];
+    private int head;
+    private int count;
+    /** Number of records ever accepted. */
+    private long appendedCount;
+    /** Number of records ever written to the file. */
+    private long writtenCount;
+    /**
+     * Set by {@link #flush} to have the writer skip the rest of the window and
+     * sync the batch that reaches this count.
+     */
+    private long flushRequestedCount;
+    private boolean closed;
+    private IOException failure;
+    /** Records written since {@link #startCapture}, or null if not capturing. */
+    private List<byte[]> captured;
+    /** Records accepted after this count are captured. */
+    private long captureFromCount;
+
+    /** Guards {@link #out}; held by the writer thread while writing a batch. */
+    private final Object ioLock = new Object();
+    private FileOutputStream fileOut;
+    private OutputStream out;
+
+    private final Thread writerThread;
+
+    JournalWriter(File file, FlushPolicy policy) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        openForAppend();
+        writerThread = new Thread(new Runnable() {
+            @Override public void run() {
+                writeLoop();
+            }
+        }, "DiskLruCache-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private void openForAppend() throws IOException {
+        fileOut = new FileOutputStream(file, true);
+        out = new BufferedOutputStream(fileOut, IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Queues {@code record}, waiting for space if the buffer is full.
+     */
+    void append(byte[] record) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            while (count == RING_CAPACITY) {
+                notEmpty.signal();
+                notFull.awaitUninterruptibly();
+                checkOpen();
+            }
+            enqueue(record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues {@code record} unless the buffer is full. Never blocks.
+     *
+     * @return false if the record was dropped.
+     */
+    boolean offer(byte[] record) {
+        lock.lock();
+        try {
+            if (closed || count == RING_CAPACITY) {
+                return false;
+            }
+            enqueue(record);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(byte[] record) {
+        ring[(head + count) % RING_CAPACITY] = record;
+        count++;
+        appendedCount++;
+        if (count == 1 || count >= policy.maxRecords) {
+            notEmpty.signal();
+        }
+    }
+
+    /**
+     * Writes and syncs every record queued before this call, and waits until
+     * that is done. This is the explicit durability point regardless of the
+     * flush policy.
+     */
+    void flush() throws IOException {
+        lock.lock();
+        try {
+            long target = appendedCount;
+            flushRequestedCount = Math.max(flushRequestedCount, target);
+            notEmpty.signal();
+            while (writtenCount < target) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (closed) {
+                    return;
+                }
+                written.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts keeping a copy of every record accepted from now on. The caller
+     * takes a snapshot of the state those records apply to, writes it to a
+     * new journal and then calls {@link #replaceWith} or
+     * {@link #abortCapture}. Never waits for journal I/O.
+     */
+    void startCapture() {
+        lock.lock();
+        try {
+            captureFromCount = appendedCount;
+            captured = new ArrayList<byte[]>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops capturing and drops the records captured so far. */
+    void abortCapture() {
+        lock.lock();
+        try {
+            captured = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the records captured since {@link #startCapture} to
+     * {@code compacted}, moves it over the journal file and resumes appending
+     * to it. Records queued meanwhile are appended after the captured ones.
+     *
+     * @return false if the writer was closed first; {@code compacted} is
+     *     deleted then.
+     */
+    boolean replaceWith(File compacted) throws IOException {
+        synchronized (ioLock) {
+            writeBatch(drain());
+            List<byte[]> records;
+            boolean isClosed;
+            lock.lock();
+            try {
+                records = captured;
+                captured = null;
+                isClosed = closed;
+            } finally {
+                lock.unlock();
+            }
+            if (isClosed || records == null) {
+                compacted.delete();
+                return false;
+            }
+            FileOutputStream compactedOut = new FileOutputStream(compacted, true);
+            try {
+                OutputStream buffered = new BufferedOutputStream(compactedOut, IO_BUFFER_SIZE);
+                for (byte[] record : records) {
+                    buffered.write(record);
+                }
+                buffered.flush();
+                if (policy.durable) {
+                    compactedOut.getFD().sync();
+                }
+            } finally {
+                compactedOut.close();
+            }
+            out.close();
+            try {
+                if (!compacted.renameTo(file)) {
+                    throw new IOException("failed to rename " + compacted + " to " + file);
+                }
+            } finally {
+                openForAppend();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes what is pending and stops the writer thread.
+     */
+    @Override public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        synchronized (ioLock) {
+            writeBatch(drain());
+            out.close();
+        }
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                while (!closed && count == 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return; // close() writes whatever is left
+                }
+                // let the batch fill up until the window or the count is reached
+                long remaining = TimeUnit.MILLISECONDS.toNanos(policy.windowMillis);
+                while (!closed && count < policy.maxRecords
+                        && flushRequestedCount <= writtenCount && remaining > 0) {
+                    try {
+                        remaining = notEmpty.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            synchronized (ioLock) {
+                writeBatch(drain());
+            }
+        }
+    }
+
+    /**
+     * Takes every queued record out of the ring. Returns null if there are none.
+     */
+    private Batch drain() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+            byte[][] records = new byte[count][];
+            for (int i = 0; i < records.length; i++) {
+                int index = (head + i) % RING_CAPACITY;
+                records[i] = ring[index];
+                ring[index] = null;
+            }
+            head = (head + count) % RING_CAPACITY;
+            count = 0;
+            notFull.signalAll();
+            return new Batch(records, appendedCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes {@code batch} to the file. Must be called with {@link #ioLock}.
+     */
+    private void writeBatch(Batch batch) {
+        if (batch == null) {
+            return;
+        }
+        boolean sync;
+        lock.lock();
+        try {
+            sync = policy.durable || flushRequestedCount > writtenCount;
+        } finally {
+            lock.unlock();
+        }
+        IOException error = null;
+        try {
+            for (byte[] record : batch.records) {
+                out.write(record);
+            }
+            out.flush();
+            if (sync) {
+                fileOut.getFD().sync();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        lock.lock();
+        try {
+            if (error != null && failure == null) {
+                failure = error;
+            }
+            if (captured != null) {
+                // records are numbered by appendedCount; the batch ends at lastCount
+                long firstCount = batch.lastCount - batch.records.length + 1;
+                for (int i = 0; i < batch.records.length; i++) {
+                    if (firstCount + i > captureFromCount) {
+                        captured.add(batch.records[i]);
+                    }
+                }
+            }
+            writtenCount = Math.max(writtenCount, batch.lastCount);
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Batch {
+        final byte[][] records;
+        /** The value of {@code appendedCount} when this batch was drained. */
+        final long lastCount;
+
+        Batch(byte[][] records, long lastCount) {
+            this.records = records;
+            this.lastCount = lastCount;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in log-linear buckets, the way HdrHistogram does: below
+ * 32ns every nanosecond has a bucket, and each power of two above that is
+ * split into 16 buckets. Any recorded value is thus known to within 1/16
+ * (6.25%) of itself, from nanoseconds up to about half an hour, in a fixed
+ * 5KB of counters.
+ *
+ * <p>Recording takes a few atomic increments and never locks or allocates,
+ * so it is cheap enough for every load. Durations above the range are
+ * counted in the last bucket; negative ones as 0.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class LatencyHistogram {
+
+    /** Values below this have a bucket each. */
+    private static final int SUB_BUCKET_COUNT = 32;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int SUB_BUCKET_BITS = 5;
+    /** The highest power of two that has its own buckets; 2^41ns is about 37 minutes. */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT =
+            SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Records one duration. */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketIndex(nanos));
+        totalCount.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /** Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime}. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns a copy of the counts. Values recorded while it is taken may be
+     * in some of its totals and not in others.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, totalCount.get(), totalNanos.get(), maxNanos.get());
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        // the top SUB_BUCKET_BITS bits of value, in [HALF_SUB_BUCKET_COUNT, SUB_BUCKET_COUNT)
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS + 1));
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT
+                + subBucket - HALF_SUB_BUCKET_COUNT;
+    }
+
+    /** Returns the smallest value counted in bucket {@code index}. */
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int exponent = SUB_BUCKET_BITS + offset / HALF_SUB_BUCKET_COUNT;
+        long subBucket = HALF_SUB_BUCKET_COUNT + offset % HALF_SUB_BUCKET_COUNT;
+        return subBucket << (exponent - SUB_BUCKET_BITS + 1);
+    }
+
+    /** Returns the largest value counted in bucket {@code index}. */
+    static long highestValue(int index) {
+        return index + 1 < BUCKET_COUNT ? lowestValue(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    /** The counts of a histogram at one point in time. Immutable. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        private Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long meanNanos() {
+            return count != 0 ? totalNanos / count : 0;
+        }
+
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Returns the value that {@code percentile} percent of the recorded
+         * values are at or below, to the precision of a bucket, or 0 if
+         * nothing was recorded.
+         */
+        public long valueAtPercentile(double percentile) {
+            long total = 0;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * Returns what was recorded between {@code earlier}, a snapshot of the
+         * same histogram, and this one. Its maximum is the top of the highest
+         * bucket counted in between, so it is as precise as a percentile.
+         */
+        public Snapshot since(Snapshot earlier) {
+            long[] difference = new long[counts.length];
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+                if (difference[i] > 0) {
+                    highest = i;
+                }
+            }
+            long max = highest >= 0 ? Math.min(highestValue(highest), maxNanos) : 0;
+            return new Snapshot(difference, count - earlier.count, totalNanos - earlier.totalNanos, max);
+        }
+
+        /**
+         * Appends this as a JSON object: the count, the mean, some percentiles
+         * and the maximum in microseconds, and the non-empty buckets as
+         * [lowest value in nanoseconds, count] pairs, so histograms from many
+         * devices can be merged.
+         */
+        void appendJson(StringBuilder out) {
+            out.append("{\"count\":").append(count)
+                    .append(",\"meanMicros\":").append(micros(meanNanos()))
+                    .append(",\"p50Micros\":").append(micros(valueAtPercentile(50)))
+                    .append(",\"p90Micros\":").append(micros(valueAtPercentile(90)))
+                    .append(",\"p99Micros\":").append(micros(valueAtPercentile(99)))
+                    .append(",\"p999Micros\":").append(micros(valueAtPercentile(99.9)))
+                    .append(",\"maxMicros\":").append(micros(maxNanos))
+                    .append(",\"buckets\":[");
+            boolean first = true;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    out.append('[').append(lowestValue(i)).append(',').append(counts[i]).append(']');
+                }
+            }
+            out.append("]}");
+        }
+
+        private static long micros(long nanos) {
+            return nanos / 1000;
+        }
+
+        @Override public String toString() {
+            return String.format(Locale.US, "count=%d,mean=%.2fms,p50=%.2fms,p90=%.2fms,p99=%.2fms,max=%.2fms",
+                    count, millis(meanNanos()), millis(valueAtPercentile(50)), millis(valueAtPercentile(90)),
+                    millis(valueAtPercentile(99)), millis(maxNanos));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs image load jobs on separate thread pools for disk I/O, network I/O and
+ * decoding, nearest to the viewport first.
+ *
+ * <p>Every job carries a {@link Prioritized} that tells how far its target is
+ * from the viewport. The distance is not cached: a worker evaluates it for
+ * every queued job when it takes the next one, so a job is re-prioritised as
+ * soon as {@link #setViewport} moves the viewport. Jobs further away than the
+ * eviction distance are dropped from the queues when the viewport moves.
+ *
+ * <p>Queues are plain lists scanned on every take. They hold at most a few
+ * pages of images, for which a scan is cheaper than keeping a heap ordered
+ * under changing keys.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class LoadScheduler {
+
+    /** The pool a job runs on. A slow download never waits behind a disk hit, and the other way round. */
+    public enum Stage {
+        DISK, NETWORK, DECODE
+    }
+
+    /** The distance of a job's target from the viewport, in pixels; 0 if it overlaps it. */
+    public interface Prioritized {
+        int distanceTo(int viewportTop, int viewportBottom);
+    }
+
+    /** A unit of work queued on one stage. */
+    public interface Job {
+        void run();
+
+        /** Called instead of {@link #run} if the job is evicted or cancelled before it starts. */
+        void dropped();
+    }
+
+    /** Returns how far the range [top, bottom) is from the viewport [viewportTop, viewportBottom). */
+    public static int distance(int top, int bottom, int viewportTop, int viewportBottom) {
+        if (bottom <= viewportTop) {
+            return viewportTop - bottom;
+        }
+        if (top >= viewportBottom) {
+            return top - viewportBottom;
+        }
+        return 0;
+    }
+
+    private final EnumMap<Stage, Queue> queues = new EnumMap<Stage, Queue>(Stage.class);
+    private final int evictDistance;
+    private volatile int viewportTop;
+    private volatile int viewportBottom;
+
+    /**
+     * @param evictDistance queued jobs further than this from the viewport are dropped when it moves.
+     */
+    public LoadScheduler(int diskThreads, int networkThreads, int decodeThreads, int evictDistance) {
+        if (evictDistance < 0) {
+            throw new IllegalArgumentException("evictDistance < 0");
+        }
+        this.evictDistance = evictDistance;
+        queues.put(Stage.DISK, new Queue(Stage.DISK, diskThreads));
+        queues.put(Stage.NETWORK, new Queue(Stage.NETWORK, networkThreads));
+        queues.put(Stage.DECODE, new Queue(Stage.DECODE, decodeThreads));
+    }
+
+    /**
+     * Queues {@code job} on {@code stage}. After {@link #shutdown} the job is
+     * dropped right away.
+     */
+    public Ticket submit(Stage stage, Prioritized priority, Job job) {
+        Ticket ticket = new Ticket(queues.get(stage), priority, job);
+        if (!ticket.queue.add(ticket)) {
+            job.dropped();
+        }
+        return ticket;
+    }
+
+    /**
+     * Drops every queued job and lets the workers exit once their running
+     * jobs return. Jobs submitted from now on are dropped too.
+     */
+    public void shutdown() {
+        for (Queue queue : queues.values()) {
+            for (Ticket ticket : queue.shutdown()) {
+                ticket.job.dropped();
+            }
+        }
+    }
+
+    /**
+     * Waits for the workers to exit after {@link #shutdown}.
+     *
+     * @return false if some were still running when the timeout elapsed.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Queue queue : queues.values()) {
+            for (Thread thread : queue.workers) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, Math.max(1, deadline - System.nanoTime()));
+                if (thread.isAlive()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the viewport. Queued jobs are taken by their distance to the new
+     * viewport from now on, and those beyond the eviction distance are dropped.
+     */
+    public void setViewport(int top, int bottom) {
+        if (top == viewportTop && bottom == viewportBottom) {
+            return;
+        }
+        viewportTop = top;
+        viewportBottom = bottom;
+        for (Queue queue : queues.values()) {
+            for (Ticket ticket : queue.evictBeyond(top, bottom, evictDistance)) {
+                ticket.job.dropped();
+            }
+        }
+    }
+
+    /** Returns the number of jobs waiting on {@code stage}. */
+    public int queuedCount(Stage stage) {
+        return queues.get(stage).size();
+    }
+
+    /** Returns the number of jobs running on {@code stage}. */
+    public int runningCount(Stage stage) {
+        return queues.get(stage).running.get();
+    }
+
+    /** A queued job. */
+    public static final class Ticket {
+        private final Queue queue;
+        private final Prioritized priority;
+        private final Job job;
+
+        private Ticket(Queue queue, Prioritized priority, Job job) {
+            this.queue = queue;
+            this.priority = priority;
+            this.job = job;
+        }
+
+        /**
+         * Removes the job if it has not started yet and calls {@link Job#dropped}.
+         *
+         * @return false if the job already started or was dropped.
+         */
+        public boolean cancel() {
+            if (queue.remove(this)) {
+                job.dropped();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final class Queue {
+        private final List<Ticket> tickets = new ArrayList<Ticket>();
+        private final AtomicInteger running = new AtomicInteger();
+        private final List<Thread> workers = new ArrayList<Thread>();
+        private boolean shutdown;
+
+        Queue(Stage stage, int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("threads <= 0");
+            }
+            String name = "ImageLoader-" + stage.name().toLowerCase(Locale.US);
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override public void run() {
+                        while (true) {
+                            Ticket ticket = take();
+                            if (ticket == null) {
+                                return;
+                            }
+                            running.incrementAndGet();
+                            try {
+                                ticket.job.run();
+                            } catch (RuntimeException e) {
+                                e.printStackTrace();
+                            } finally {
+                                running.decrementAndGet();
+                            }
+                        }
+                    }
+                }, name + "-" + (i + 1));
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                thread.start();
+                workers.add(thread);
+            }
+        }
+
+        /** Returns false if the queue was shut down. */
+        synchronized boolean add(Ticket ticket) {
+            if (shutdown) {
+                return false;
+            }
+            tickets.add(ticket);
+            notify();
+            return true;
+        }
+
+        /** Stops taking jobs and returns the queued ones. */
+        synchronized List<Ticket> shutdown() {
+            shutdown = true;
+            List<Ticket> dropped = new ArrayList<Ticket>(tickets);
+            tickets.clear();
+            notifyAll();
+            return dropped;
+        }
+
+        synchronized boolean remove(Ticket ticket) {
+            return tickets.remove(ticket);
+        }
+
+        synchronized int size() {
+            return tickets.size();
+        }
+
+        /** Waits for a job and removes the one nearest to the viewport; null once shut down. */
+        synchronized Ticket take() {
+            while (tickets.isEmpty()) {
+                if (shutdown) {
+                    return null;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            int top = viewportTop;
+            int bottom = viewportBottom;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < tickets.size(); i++) {
+                int distance = tickets.get(i).priority.distanceTo(top, bottom);
+                // ties go to the job queued first
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                    if (distance == 0) {
+                        break;
+                    }
+                }
+            }
+            return tickets.remove(best);
+        }
+
+        synchronized List<Ticket> evictBeyond(int top, int bottom, int limit) {
+            List<Ticket> evicted = null;
+            for (Iterator<Ticket> i = tickets.iterator(); i.hasNext(); ) {
+                Ticket ticket = i.next();
+                if (ticket.priority.distanceTo(top, bottom) > limit) {
+                    i.remove();
+                    if (evicted == null) {
+                        evicted = new ArrayList<Ticket>();
+                    }
+                    evicted.add(ticket);
+                }
+            }
+            return evicted != null ? evicted : Collections.<Ticket>emptyList();
+        }
+    }
+}
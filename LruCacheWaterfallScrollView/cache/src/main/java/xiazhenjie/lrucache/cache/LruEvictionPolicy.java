@@ -0,0 +1,34 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key.
+ */
+final class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+    private final LinkedHashMap<K, Boolean> order = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+    @Override public void recordInsert(K key, long size) {
+        order.put(key, Boolean.TRUE);
+    }
+
+    @Override public void recordAccess(K key) {
+        order.get(key);
+    }
+
+    @Override public void recordMiss(K key) {
+    }
+
+    @Override public void recordRemove(K key) {
+        order.remove(key);
+    }
+
+    @Override public K victim() {
+        Iterator<K> i = order.keySet().iterator();
+        return i.hasNext() ? i.next() : null;
+    }
+
+    @Override public void setCapacity(long capacity) {
+    }
+}
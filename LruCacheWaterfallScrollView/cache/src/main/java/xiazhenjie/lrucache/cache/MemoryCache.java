@@ -0,0 +1,217 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.HashMap;
+
+/**
+ * A size-bounded in-memory cache with a pluggable {@link EvictionPolicy}.
+ *
+ * <p>It has the same shape as {@code android.util.LruCache}: subclasses
+ * override {@link #sizeOf} to measure entries and {@link #entryRemoved} to
+ * observe evictions, and {@link #entryRemoved} is called without holding the
+ * cache's lock. Unlike {@code LruCache} the eviction order is decided by the
+ * policy, so the memory tier can use W-TinyLFU or GDSF instead of LRU.
+ *
+ * <p>This class is thread-safe.
+ */
+public class MemoryCache<K, V> {
+    private final HashMap<K, V> map = new HashMap<K, V>();
+    private final EvictionPolicy<K> policy;
+
+    private long size;
+    private long maxSize;
+
+    private int putCount;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public MemoryCache(long maxSize, EvictionPolicy<K> policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.policy = policy;
+        policy.setCapacity(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key}, or null if it is not cached.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            V value = map.get(key);
+            if (value != null) {
+                hitCount++;
+                policy.recordAccess(key);
+            } else {
+                missCount++;
+                policy.recordMiss(key);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} without counting a hit or telling the
+     * policy about it, or null if it is not cached.
+     */
+    public synchronized final V peek(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, then evicts entries until the
+     * cache fits. The policy may choose to evict the new entry right away.
+     *
+     * @return the previous value for {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous;
+        long entrySize = safeSizeOf(key, value);
+        synchronized (this) {
+            putCount++;
+            previous = map.put(key, value);
+            if (previous != null) {
+                size -= safeSizeOf(key, previous);
+            }
+            size += entrySize;
+            policy.recordInsert(key, entrySize);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize());
+        return previous;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value for {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V previous;
+        synchronized (this) {
+            previous = map.remove(key);
+            if (previous != null) {
+                size -= safeSizeOf(key, previous);
+                policy.recordRemove(key);
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Evicts entries chosen by the policy until the total size is at most
+     * {@code maxSize}.
+     */
+    public void trimToSize(long maxSize) {
+        while (true) {
+            K key;
+            V value;
+            synchronized (this) {
+                if (size <= maxSize || map.isEmpty()) {
+                    break;
+                }
+                key = policy.victim();
+                if (key == null) {
+                    break;
+                }
+                value = map.remove(key);
+                policy.recordRemove(key);
+                if (value == null) {
+                    continue; // the policy was tracking a key we don't hold
+                }
+                size -= safeSizeOf(key, value);
+                evictionCount++;
+            }
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    /**
+     * Changes the size budget, evicting entries if the cache no longer fits.
+     */
+    public void resize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            this.maxSize = maxSize;
+            policy.setCapacity(maxSize);
+        }
+        trimToSize(maxSize);
+    }
+
+    /** Evicts every entry. */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Called for entries that have been evicted or removed, or replaced by a
+     * {@link #put}. {@code evicted} is true if the entry was removed to make
+     * space. The default implementation does nothing.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Returns the size of the entry in the units of {@link #maxSize}. The
+     * default implementation returns 1, so size is the number of entries.
+     */
+    protected long sizeOf(K key, V value) {
+        return 1;
+    }
+
+    private long safeSizeOf(K key, V value) {
+        long result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    public synchronized final long size() {
+        return size;
+    }
+
+    public synchronized final long maxSize() {
+        return maxSize;
+    }
+
+    public synchronized final int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized final int missCount() {
+        return missCount;
+    }
+
+    public synchronized final int putCount() {
+        return putCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return evictionCount;
+    }
+
+    @Override public synchronized final String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("MemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hitCount, missCount, hitPercent);
+    }
+}
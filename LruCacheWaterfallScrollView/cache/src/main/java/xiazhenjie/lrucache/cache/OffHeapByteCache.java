@@ -0,0 +1,201 @@
+package xiazhenjie.lrucache.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A byte-bounded cache of byte arrays kept in one direct {@link ByteBuffer},
+ * outside the Java heap.
+ *
+ * <p>The buffer is written as a circular log: each value is appended at the
+ * write position, and when it doesn't fit the oldest values in its way are
+ * evicted, so eviction is FIFO. A value that would run past the end of the
+ * buffer is written at the start instead, giving up the space at the end
+ * until the log comes round again. Removing or replacing a value leaves a
+ * hole that is reclaimed the same way. There is no per-value allocation and
+ * nothing for the garbage collector to trace but the index.
+ *
+ * <p>Values are copied in and out; {@link #get} copies into a caller-owned
+ * array so a decoder thread can reuse one buffer for every read.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class OffHeapByteCache {
+    private final ByteBuffer arena;
+    /** Live values in write order, so the first one is the oldest. */
+    private final LinkedHashMap<String, Slot> slots = new LinkedHashMap<String, Slot>();
+    /** Where the next value is written. */
+    private int head;
+    private long size;
+
+    private int putCount;
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    public OffHeapByteCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        arena = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Stores {@code length} bytes of {@code data} from {@code offset} under
+     * {@code key}, replacing any previous value and evicting the oldest values
+     * to make room.
+     *
+     * @return false if the value is larger than the whole cache and was not stored.
+     */
+    public synchronized boolean put(String key, byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length
+                    + " data.length=" + data.length);
+        }
+        int start = reserve(key, length);
+        if (start < 0) {
+            return false;
+        }
+        ByteBuffer target = arena.duplicate();
+        target.position(start);
+        target.put(data, offset, length);
+        return true;
+    }
+
+    /**
+     * Stores the remaining bytes of {@code src} under {@code key} like
+     * {@link #put(String, byte[], int, int)}. A direct or mapped buffer is
+     * copied straight into the arena without passing through the Java heap.
+     * The position of {@code src} is not changed.
+     */
+    public synchronized boolean put(String key, ByteBuffer src) {
+        int start = reserve(key, src.remaining());
+        if (start < 0) {
+            return false;
+        }
+        ByteBuffer target = arena.duplicate();
+        target.position(start);
+        target.put(src.duplicate());
+        return true;
+    }
+
+    /**
+     * Makes room for {@code length} bytes under {@code key} and returns where
+     * to write them, or -1 if they can't fit.
+     */
+    private int reserve(String key, int length) {
+        remove(key);
+        int capacity = arena.capacity();
+        if (length > capacity) {
+            return -1;
+        }
+        if (head + length > capacity) {
+            // Values after the write position are older than those before it.
+            while (!slots.isEmpty() && oldest().offset >= head) {
+                evictOldest();
+            }
+            head = 0;
+        }
+        while (!slots.isEmpty() && oldest().overlaps(head, head + length)) {
+            evictOldest();
+        }
+        int start = head;
+        slots.put(key, new Slot(start, length));
+        head += length;
+        size += length;
+        putCount++;
+        return start;
+    }
+
+    /**
+     * Copies the value for {@code key} into {@code dst} if it fits.
+     *
+     * @return the length of the value, or -1 if there is none. Nothing is
+     *     copied if the length is greater than {@code dst.length}.
+     */
+    public synchronized int get(String key, byte[] dst) {
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            missCount++;
+            return -1;
+        }
+        if (slot.length <= dst.length) {
+            hitCount++;
+            ByteBuffer source = arena.duplicate();
+            source.position(slot.offset);
+            source.get(dst, 0, slot.length);
+        }
+        return slot.length;
+    }
+
+    /** Returns true if there is a value for {@code key}. Doesn't count as a hit or a miss. */
+    public synchronized boolean contains(String key) {
+        return slots.containsKey(key);
+    }
+
+    /** Removes the value for {@code key}; its space is reclaimed as the log wraps round. */
+    public synchronized boolean remove(String key) {
+        Slot slot = slots.remove(key);
+        if (slot == null) {
+            return false;
+        }
+        size -= slot.length;
+        return true;
+    }
+
+    /** Removes every value. */
+    public synchronized void evictAll() {
+        evictionCount += slots.size();
+        slots.clear();
+        head = 0;
+        size = 0;
+    }
+
+    /** Returns the number of bytes held by live values. */
+    public synchronized long size() {
+        return size;
+    }
+
+    public int capacity() {
+        return arena.capacity();
+    }
+
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    private Slot oldest() {
+        return slots.values().iterator().next();
+    }
+
+    private void evictOldest() {
+        Iterator<Map.Entry<String, Slot>> i = slots.entrySet().iterator();
+        size -= i.next().getValue().length;
+        i.remove();
+        evictionCount++;
+    }
+
+    @Override public synchronized String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return "OffHeapByteCache[size=" + size + ",capacity=" + arena.capacity() + ",entries=" + slots.size()
+                + ",puts=" + putCount + ",hits=" + hitCount + ",misses=" + missCount
+                + ",hitRate=" + hitPercent + "%,evictions=" + evictionCount + "]";
+    }
+
+    private static final class Slot {
+        final int offset;
+        final int length;
+
+        Slot(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        boolean overlaps(int start, int end) {
+            return offset < end && offset + length > start;
+        }
+    }
+}
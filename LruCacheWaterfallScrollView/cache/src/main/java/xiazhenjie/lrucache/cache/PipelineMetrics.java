@@ -0,0 +1,278 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what an {@link ImagePipeline} does: hits, misses and evictions of
+ * each tier, time spent reading the disk, downloading and decoding, the work
+ * in flight, bytes moved, and the budgets its {@link CacheBudgetController}
+ * set.
+ *
+ * <p>The pipeline records into atomic counters and {@link LatencyHistogram}s,
+ * without locks. Counts the caches keep anyway, such as evictions, are read
+ * from them only when a {@link Snapshot} is taken.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class PipelineMetrics {
+
+    /** Time the DISK stage spends looking up the thumbnail and the original of a load. */
+    final LatencyHistogram diskRead = new LatencyHistogram();
+    /** Time from sending a request to having the whole body, 304s and failures included. */
+    final LatencyHistogram download = new LatencyHistogram();
+    /** Time spent decoding images, not counting bounds and previews. */
+    final LatencyHistogram decode = new LatencyHistogram();
+
+    final AtomicLong encodedHits = new AtomicLong();
+    final AtomicLong encodedMisses = new AtomicLong();
+    final AtomicLong diskHits = new AtomicLong();
+    final AtomicLong diskMisses = new AtomicLong();
+    final AtomicLong bytesSaved = new AtomicLong();
+
+    private final MemoryCache<?, ?> memoryCache;
+    private final OffHeapByteCache encodedCache;
+    private final DiskLruCache diskCache;
+    private final ImageDownloader downloader;
+    private final SingleFlightLoader<?, ?> singleFlightLoader;
+    private final LoadScheduler loadScheduler;
+    private final CacheBudgetController budgetController;
+
+    PipelineMetrics(MemoryCache<?, ?> memoryCache, OffHeapByteCache encodedCache, DiskLruCache diskCache,
+            ImageDownloader downloader, SingleFlightLoader<?, ?> singleFlightLoader, LoadScheduler loadScheduler,
+            CacheBudgetController budgetController) {
+        this.memoryCache = memoryCache;
+        this.encodedCache = encodedCache;
+        this.diskCache = diskCache;
+        this.downloader = downloader;
+        this.singleFlightLoader = singleFlightLoader;
+        this.loadScheduler = loadScheduler;
+        this.budgetController = budgetController;
+    }
+
+    /**
+     * Returns the counts since the pipeline was created. Subtract an earlier
+     * snapshot with {@link Snapshot#since} to see a single scroll or screen.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The metrics of a pipeline at one point in time. Counters are totals;
+     * gauges, such as queue lengths and sizes, are the values at that time.
+     * Immutable.
+     */
+    public static final class Snapshot {
+        /** When this was taken, in milliseconds since the epoch. */
+        public final long takenAtMillis;
+
+        /** Lookups in the memory cache of decoded images, and images it evicted. */
+        public final long memoryHits;
+        public final long memoryMisses;
+        public final long memoryEvictions;
+        public final long memorySize;
+
+        /** Loads that found, or didn't find, an encoded thumbnail off-heap, and thumbnails evicted from there. */
+        public final long encodedHits;
+        public final long encodedMisses;
+        public final long encodedEvictions;
+        public final long encodedSize;
+
+        /**
+         * Loads the disk cache served, and loads that went to the network
+         * because it had neither thumbnail nor original or the original was
+         * due for revalidation. Evictions and rebuilds are 0 without a disk cache.
+         */
+        public final long diskHits;
+        public final long diskMisses;
+        public final long diskEvictions;
+        public final long diskSize;
+        public final long journalRebuilds;
+
+        /** Requests, conditional ones included, those answered with 304, and those that failed. */
+        public final long networkRequests;
+        public final long networkNotModified;
+        public final long networkFailures;
+        /** Response body bytes read from the network. */
+        public final long bytesDownloaded;
+        /** Bytes of originals and thumbnails written to the disk cache. */
+        public final long bytesSaved;
+
+        /** Distinct URL and width pairs being loaded. */
+        public final int inFlight;
+        /** Jobs waiting on, and running on, each {@link LoadScheduler.Stage}. */
+        public final int diskQueued;
+        public final int diskRunning;
+        public final int networkQueued;
+        public final int networkRunning;
+        public final int decodeQueued;
+        public final int decodeRunning;
+
+        /** The memory pressure last reported, as eased since, and the size limits it and the heap led to. */
+        public final CacheBudgetController.MemoryPressure memoryPressure;
+        public final long memoryBudget;
+        public final long diskBudget;
+        /** The share of the maximum heap in use, and free bytes of storage, at the controller's last check. */
+        public final int heapOccupancyPercent;
+        public final long freeDiskBytes;
+        /** Memory pressure reports, changes of either budget, and steps taken to lower the memory budget. */
+        public final long pressureSignals;
+        public final long budgetChanges;
+        public final long trimSteps;
+
+        public final LatencyHistogram.Snapshot diskRead;
+        public final LatencyHistogram.Snapshot download;
+        public final LatencyHistogram.Snapshot decode;
+
+        private Snapshot(PipelineMetrics metrics) {
+            takenAtMillis = System.currentTimeMillis();
+            MemoryCache<?, ?> memoryCache = metrics.memoryCache;
+            synchronized (memoryCache) {
+                memoryHits = memoryCache.hitCount();
+                memoryMisses = memoryCache.missCount();
+                memoryEvictions = memoryCache.evictionCount();
+                memorySize = memoryCache.size();
+            }
+            encodedHits = metrics.encodedHits.get();
+            encodedMisses = metrics.encodedMisses.get();
+            encodedEvictions = metrics.encodedCache.evictionCount();
+            encodedSize = metrics.encodedCache.size();
+            diskHits = metrics.diskHits.get();
+            diskMisses = metrics.diskMisses.get();
+            DiskLruCache diskCache = metrics.diskCache;
+            diskEvictions = diskCache != null ? diskCache.evictionCount() : 0;
+            diskSize = diskCache != null ? diskCache.size() : 0;
+            journalRebuilds = diskCache != null ? diskCache.journalRebuildCount() : 0;
+            ImageDownloader downloader = metrics.downloader;
+            networkRequests = downloader.requestCount();
+            networkNotModified = downloader.notModifiedCount();
+            networkFailures = downloader.failureCount();
+            bytesDownloaded = downloader.bytesDownloaded();
+            bytesSaved = metrics.bytesSaved.get();
+            inFlight = metrics.singleFlightLoader.inFlightCount();
+            LoadScheduler scheduler = metrics.loadScheduler;
+            diskQueued = scheduler.queuedCount(LoadScheduler.Stage.DISK);
+            diskRunning = scheduler.runningCount(LoadScheduler.Stage.DISK);
+            networkQueued = scheduler.queuedCount(LoadScheduler.Stage.NETWORK);
+            networkRunning = scheduler.runningCount(LoadScheduler.Stage.NETWORK);
+            decodeQueued = scheduler.queuedCount(LoadScheduler.Stage.DECODE);
+            decodeRunning = scheduler.runningCount(LoadScheduler.Stage.DECODE);
+            CacheBudgetController controller = metrics.budgetController;
+            memoryPressure = controller.memoryPressure();
+            memoryBudget = controller.memoryBudget();
+            diskBudget = controller.diskBudget();
+            heapOccupancyPercent = controller.heapOccupancyPercent();
+            freeDiskBytes = controller.freeDiskBytes();
+            pressureSignals = controller.pressureSignals.get();
+            budgetChanges = controller.budgetChanges.get();
+            trimSteps = controller.trimSteps.get();
+            diskRead = metrics.diskRead.snapshot();
+            download = metrics.download.snapshot();
+            decode = metrics.decode.snapshot();
+        }
+
+        /** Copies {@code later}'s gauges and the difference of the counters. */
+        private Snapshot(Snapshot later, Snapshot earlier) {
+            takenAtMillis = later.takenAtMillis;
+            memoryHits = later.memoryHits - earlier.memoryHits;
+            memoryMisses = later.memoryMisses - earlier.memoryMisses;
+            memoryEvictions = later.memoryEvictions - earlier.memoryEvictions;
+            memorySize = later.memorySize;
+            encodedHits = later.encodedHits - earlier.encodedHits;
+            encodedMisses = later.encodedMisses - earlier.encodedMisses;
+            encodedEvictions = later.encodedEvictions - earlier.encodedEvictions;
+            encodedSize = later.encodedSize;
+            diskHits = later.diskHits - earlier.diskHits;
+            diskMisses = later.diskMisses - earlier.diskMisses;
+            diskEvictions = later.diskEvictions - earlier.diskEvictions;
+            diskSize = later.diskSize;
+            journalRebuilds = later.journalRebuilds - earlier.journalRebuilds;
+            networkRequests = later.networkRequests - earlier.networkRequests;
+            networkNotModified = later.networkNotModified - earlier.networkNotModified;
+            networkFailures = later.networkFailures - earlier.networkFailures;
+            bytesDownloaded = later.bytesDownloaded - earlier.bytesDownloaded;
+            bytesSaved = later.bytesSaved - earlier.bytesSaved;
+            inFlight = later.inFlight;
+            diskQueued = later.diskQueued;
+            diskRunning = later.diskRunning;
+            networkQueued = later.networkQueued;
+            networkRunning = later.networkRunning;
+            decodeQueued = later.decodeQueued;
+            decodeRunning = later.decodeRunning;
+            memoryPressure = later.memoryPressure;
+            memoryBudget = later.memoryBudget;
+            diskBudget = later.diskBudget;
+            heapOccupancyPercent = later.heapOccupancyPercent;
+            freeDiskBytes = later.freeDiskBytes;
+            pressureSignals = later.pressureSignals - earlier.pressureSignals;
+            budgetChanges = later.budgetChanges - earlier.budgetChanges;
+            trimSteps = later.trimSteps - earlier.trimSteps;
+            diskRead = later.diskRead.since(earlier.diskRead);
+            download = later.download.since(earlier.download);
+            decode = later.decode.since(earlier.decode);
+        }
+
+        /** Returns what happened between {@code earlier}, a snapshot of the same pipeline, and this one. */
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(this, earlier);
+        }
+
+        /** Returns these metrics as one line of JSON, for logs or upload. */
+        public String toJson() {
+            StringBuilder out = new StringBuilder(1024);
+            out.append("{\"takenAtMillis\":").append(takenAtMillis)
+                    .append(",\"memory\":{\"hits\":").append(memoryHits)
+                    .append(",\"misses\":").append(memoryMisses)
+                    .append(",\"evictions\":").append(memoryEvictions)
+                    .append(",\"size\":").append(memorySize)
+                    .append("},\"encoded\":{\"hits\":").append(encodedHits)
+                    .append(",\"misses\":").append(encodedMisses)
+                    .append(",\"evictions\":").append(encodedEvictions)
+                    .append(",\"size\":").append(encodedSize)
+                    .append("},\"disk\":{\"hits\":").append(diskHits)
+                    .append(",\"misses\":").append(diskMisses)
+                    .append(",\"evictions\":").append(diskEvictions)
+                    .append(",\"size\":").append(diskSize)
+                    .append(",\"journalRebuilds\":").append(journalRebuilds)
+                    .append("},\"network\":{\"requests\":").append(networkRequests)
+                    .append(",\"notModified\":").append(networkNotModified)
+                    .append(",\"failures\":").append(networkFailures)
+                    .append(",\"bytesDownloaded\":").append(bytesDownloaded)
+                    .append(",\"bytesSaved\":").append(bytesSaved)
+                    .append("},\"tasks\":{\"inFlight\":").append(inFlight)
+                    .append(",\"diskQueued\":").append(diskQueued)
+                    .append(",\"diskRunning\":").append(diskRunning)
+                    .append(",\"networkQueued\":").append(networkQueued)
+                    .append(",\"networkRunning\":").append(networkRunning)
+                    .append(",\"decodeQueued\":").append(decodeQueued)
+                    .append(",\"decodeRunning\":").append(decodeRunning)
+                    .append("},\"budget\":{\"memoryPressure\":\"").append(memoryPressure)
+                    .append("\",\"memory\":").append(memoryBudget)
+                    .append(",\"disk\":").append(diskBudget)
+                    .append(",\"heapOccupancyPercent\":").append(heapOccupancyPercent)
+                    .append(",\"freeDiskBytes\":").append(freeDiskBytes)
+                    .append(",\"pressureSignals\":").append(pressureSignals)
+                    .append(",\"changes\":").append(budgetChanges)
+                    .append(",\"trimSteps\":").append(trimSteps)
+                    .append("},\"diskRead\":");
+            diskRead.appendJson(out);
+            out.append(",\"download\":");
+            download.appendJson(out);
+            out.append(",\"decode\":");
+            decode.appendJson(out);
+            return out.append('}').toString();
+        }
+
+        @Override public String toString() {
+            return "PipelineMetrics[memory=" + memoryHits + "/" + memoryMisses + "/" + memoryEvictions
+                    + ",encoded=" + encodedHits + "/" + encodedMisses + "/" + encodedEvictions
+                    + ",disk=" + diskHits + "/" + diskMisses + "/" + diskEvictions
+                    + ",journalRebuilds=" + journalRebuilds
+                    + ",network=" + networkRequests + "/" + networkNotModified + "/" + networkFailures
+                    + ",bytesDownloaded=" + bytesDownloaded + ",bytesSaved=" + bytesSaved
+                    + ",inFlight=" + inFlight
+                    + ",budget=" + memoryPressure + "/" + memoryBudget + "/" + diskBudget
+                    + ",diskRead[" + diskRead + "],download[" + download + "],decode[" + decode + "]]";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Segmented LRU. New keys enter a probation segment; a hit promotes a key to
+ * the protected segment, which holds at most 80% of the capacity. Keys
+ * demoted from the protected segment go back to the most recently used end
+ * of probation.
+ * Victims are taken from probation first, so a one-pass scan only displaces
+ * other keys that were never reused.
+ */
+final class SegmentedLruEvictionPolicy<K> implements EvictionPolicy<K> {
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final LinkedHashMap<K, Long> probation = new LinkedHashMap<K, Long>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> protectedSegment = new LinkedHashMap<K, Long>(16, 0.75f, true);
+    private long protectedSize;
+    private long protectedCapacity;
+
+    SegmentedLruEvictionPolicy(long capacity) {
+        setCapacity(capacity);
+    }
+
+    @Override public void recordInsert(K key, long size) {
+        recordRemove(key);
+        probation.put(key, size);
+    }
+
+    @Override public void recordAccess(K key) {
+        Long size = probation.remove(key);
+        if (size == null) {
+            protectedSegment.get(key);
+            return;
+        }
+        protectedSegment.put(key, size);
+        protectedSize += size;
+        demoteOverflow();
+    }
+
+    @Override public void recordMiss(K key) {
+    }
+
+    @Override public void recordRemove(K key) {
+        if (probation.remove(key) == null) {
+            Long size = protectedSegment.remove(key);
+            if (size != null) {
+                protectedSize -= size;
+            }
+        }
+    }
+
+    @Override public K victim() {
+        K key = first(probation);
+        return key != null ? key : first(protectedSegment);
+    }
+
+    @Override public void setCapacity(long capacity) {
+        protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        demoteOverflow();
+    }
+
+    private void demoteOverflow() {
+        Iterator<Map.Entry<K, Long>> i = protectedSegment.entrySet().iterator();
+        while (protectedSize > protectedCapacity && i.hasNext()) {
+            Map.Entry<K, Long> eldest = i.next();
+            i.remove();
+            protectedSize -= eldest.getValue();
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private static <K> K first(LinkedHashMap<K, Long> segment) {
+        Iterator<K> i = segment.keySet().iterator();
+        return i.hasNext() ? i.next() : null;
+    }
+}
@@ -0,0 +1,223 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads values by key so that at most one load per key is in flight.
+ *
+ * <p>The first {@link #load} of a key starts a flight by handing it to the
+ * {@link Fetcher}, which may complete it on any thread, possibly after
+ * passing it through several executors; later loads of the same key attach to
+ * it and are notified with the same value. A {@link Request} that is cancelled
+ * only detaches its listener. Once every request of a flight is cancelled the
+ * flight is abandoned: later loads of the key start a new one, and the fetcher
+ * can see {@link InFlight#isAbandoned} to skip the work it has not done yet.
+ *
+ * <p>Listeners are notified on the callback executor. While notifying, the
+ * flight owns the value; {@link Fetcher#release} is called once every
+ * listener has been notified, so reference-counted values can be handed over
+ * without being freed in between.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class SingleFlightLoader<K, V> {
+
+    /** Produces the value for a key. */
+    public interface Fetcher<K, V> {
+        /**
+         * Starts loading {@code key}. Called on the thread that called
+         * {@link #load}, so this should only schedule work. Exactly one call
+         * to {@link InFlight#complete} must follow, with null if the value
+         * can't be loaded.
+         */
+        void fetch(K key, InFlight<V> flight);
+
+        /**
+         * Called on the callback executor after every listener of a flight
+         * has been notified with {@code value}, which may be null.
+         */
+        void release(K key, V value);
+    }
+
+    /** The fetcher's handle on a flight. */
+    public interface InFlight<V> {
+        /** Finishes the flight; its listeners are notified on the callback executor. */
+        void complete(V value);
+
+        /** Returns true if every request was cancelled and nobody waits for the value. */
+        boolean isAbandoned();
+
+        /** Returns the listeners still waiting for the value. */
+        List<Listener<V>> listeners();
+    }
+
+    /** Receives the result of a load. */
+    public interface Listener<V> {
+        /** Called on the callback executor; {@code value} is null if the load failed. */
+        void onLoaded(V value);
+    }
+
+    private final Executor callbackExecutor;
+    private final Fetcher<K, V> fetcher;
+    private final HashMap<K, Flight> flights = new HashMap<K, Flight>();
+
+    public SingleFlightLoader(Executor callbackExecutor, Fetcher<K, V> fetcher) {
+        this.callbackExecutor = callbackExecutor;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Loads the value for {@code key} and notifies {@code listener}, joining
+     * the flight for {@code key} if there is one.
+     */
+    public Request load(K key, Listener<V> listener) {
+        Flight flight;
+        Request request;
+        boolean start = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight(key);
+                flights.put(key, flight);
+                start = true;
+            }
+            request = new Request(flight, listener);
+            flight.requests.add(request);
+        }
+        if (start) {
+            fetcher.fetch(key, flight);
+        }
+        return request;
+    }
+
+    /** Returns true if a load of {@code key} is in flight. */
+    public boolean isLoading(K key) {
+        synchronized (flights) {
+            return flights.containsKey(key);
+        }
+    }
+
+    /** Returns the number of keys being loaded. */
+    public int inFlightCount() {
+        synchronized (flights) {
+            return flights.size();
+        }
+    }
+
+    /**
+     * A listener's interest in a flight.
+     */
+    public final class Request {
+        private final Flight flight;
+        private final Listener<V> listener;
+        private boolean cancelled;
+
+        private Request(Flight flight, Listener<V> listener) {
+            this.flight = flight;
+            this.listener = listener;
+        }
+
+        public K getKey() {
+            return flight.key;
+        }
+
+        /**
+         * Detaches the listener; it will not be notified. The flight is
+         * abandoned if no other request is waiting for it.
+         */
+        public void cancel() {
+            synchronized (flights) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                flight.requests.remove(this);
+                if (flight.requests.isEmpty() && !flight.completed) {
+                    flight.abandoned = true;
+                    if (flights.get(flight.key) == flight) {
+                        flights.remove(flight.key);
+                    }
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (flights) {
+                return cancelled;
+            }
+        }
+    }
+
+    private final class Flight implements InFlight<V> {
+        private final K key;
+        private final List<Request> requests = new ArrayList<Request>();
+        /** True once {@link #complete} was called. */
+        private boolean completed;
+        /** True if every request was cancelled before the flight completed. */
+        private boolean abandoned;
+
+        private Flight(K key) {
+            this.key = key;
+        }
+
+        @Override public void complete(V value) {
+            synchronized (flights) {
+                if (completed) {
+                    throw new IllegalStateException("flight for " + key + " completed twice");
+                }
+                completed = true;
+                // later loads of this key start a new flight
+                if (flights.get(key) == this) {
+                    flights.remove(key);
+                }
+            }
+            final V result = value;
+            callbackExecutor.execute(new Runnable() {
+                @Override public void run() {
+                    deliver(result);
+                }
+            });
+        }
+
+        @Override public boolean isAbandoned() {
+            synchronized (flights) {
+                return abandoned;
+            }
+        }
+
+        @Override public List<Listener<V>> listeners() {
+            synchronized (flights) {
+                if (requests.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                List<Listener<V>> result = new ArrayList<Listener<V>>(requests.size());
+                for (Request request : requests) {
+                    result.add(request.listener);
+                }
+                return result;
+            }
+        }
+
+        private void deliver(V value) {
+            List<Request> targets;
+            synchronized (flights) {
+                targets = new ArrayList<Request>(requests);
+                requests.clear();
+            }
+            try {
+                for (Request request : targets) {
+                    // a request may be cancelled by an earlier listener
+                    if (!request.isCancelled()) {
+                        request.listener.onLoaded(value);
+                    }
+                }
+            } finally {
+                fetcher.release(key, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package xiazhenjie.lrucache.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU. New keys enter a small LRU window (1% of the capacity). When the
+ * window is full its oldest key becomes a candidate for the main area, an
+ * {@link SegmentedLruEvictionPolicy SLRU}, and competes with the main area's
+ * next victim: whichever a {@link FrequencySketch} says was requested less
+ * often is evicted. A fast fling therefore cycles through the window without
+ * pushing out thumbnails that are scrolled back to again and again.
+ */
+final class TinyLfuEvictionPolicy<K> implements EvictionPolicy<K> {
+    private static final double WINDOW_RATIO = 0.01;
+    /** Average entry size assumed when sizing the sketch before any insert. */
+    private static final long ASSUMED_ENTRY_SIZE = 32 * 1024;
+
+    private final LinkedHashMap<K, Long> window = new LinkedHashMap<K, Long>(16, 0.75f, true);
+    private final SegmentedLruEvictionPolicy<K> main;
+    private final HashMap<K, Long> mainSizes = new HashMap<K, Long>();
+    private final FrequencySketch sketch;
+    private long windowSize;
+    private long windowCapacity;
+    private long capacity;
+    private long totalSize;
+
+    TinyLfuEvictionPolicy(long capacity) {
+        this.main = new SegmentedLruEvictionPolicy<K>(capacity);
+        this.sketch = new FrequencySketch(capacity / ASSUMED_ENTRY_SIZE);
+        setCapacity(capacity);
+    }
+
+    @Override public void recordInsert(K key, long size) {
+        recordRemove(key);
+        sketch.increment(key);
+        window.put(key, size);
+        windowSize += size;
+        totalSize += size;
+        int entries = window.size() + mainSizes.size();
+        if (totalSize > 0) {
+            // keep the sketch wide enough for the number of entries that fit
+            sketch.ensureCapacity(capacity / Math.max(1, totalSize / entries));
+        }
+    }
+
+    @Override public void recordAccess(K key) {
+        sketch.increment(key);
+        if (window.get(key) == null) {
+            main.recordAccess(key);
+        }
+    }
+
+    @Override public void recordMiss(K key) {
+        sketch.increment(key);
+    }
+
+    @Override public void recordRemove(K key) {
+        Long size = window.remove(key);
+        if (size != null) {
+            windowSize -= size;
+            totalSize -= size;
+            return;
+        }
+        size = mainSizes.remove(key);
+        if (size != null) {
+            main.recordRemove(key);
+            totalSize -= size;
+        }
+    }
+
+    @Override public K victim() {
+        // move keys that overflow the window into the main area, as candidates
+        K candidate = null;
+        Iterator<Map.Entry<K, Long>> i = window.entrySet().iterator();
+        while (windowSize > windowCapacity && i.hasNext()) {
+            Map.Entry<K, Long> eldest = i.next();
+            i.remove();
+            K key = eldest.getKey();
+            long size = eldest.getValue();
+            windowSize -= size;
+            mainSizes.put(key, size);
+            main.recordInsert(key, size);
+            candidate = key;
+        }
+
+        K mainVictim = main.victim();
+        if (mainVictim == null) {
+            return first(window);
+        }
+        if (candidate != null && !candidate.equals(mainVictim)
+                && sketch.frequency(candidate) <= sketch.frequency(mainVictim)) {
+            // the candidate is not more popular than what it would displace
+            return candidate;
+        }
+        return mainVictim;
+    }
+
+    @Override public void setCapacity(long capacity) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (long) (capacity * WINDOW_RATIO));
+        main.setCapacity(capacity - windowCapacity);
+    }
+
+    private static <K> K first(LinkedHashMap<K, Long> segment) {
+        Iterator<K> i = segment.keySet().iterator();
+        return i.hasNext() ? i.next() : null;
+    }
+}
@@ -0,0 +1,181 @@
+package xiazhenjie.lrucache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs {@link DiskLruCache} reads, edits and removals from many threads at
+ * once and checks that the index, the files and the journal agree.
+ */
+public final class DiskLruCacheStressTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 3000;
+    private static final int KEY_COUNT = 200;
+    private static final long MAX_SIZE = 50000;
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        directory = Files.createTempDirectory("DiskLruCacheStressTest").toFile();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test public void concurrentOperationsKeepSizeEqualToFiles() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(new Worker(cache, new Random(t))));
+            }
+            for (Future<Void> future : futures) {
+                future.get(); // rethrows a failed check
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // evicted files are deleted in the background after they left the index
+        cache.flush();
+        awaitSizeEqualToFiles(cache);
+        assertTrue("size " + cache.size() + " > " + MAX_SIZE, cache.size() <= MAX_SIZE);
+        assertTrue(cache.evictionCount() > 0);
+
+        long size = cache.size();
+        cache.close();
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        assertEquals(size, cache.size());
+        assertEquals(liveFileLength(), cache.size());
+        for (int i = 0; i < KEY_COUNT; i++) {
+            DiskLruCache.Snapshot snapshot = cache.get("k" + i);
+            if (snapshot != null) {
+                assertTrue(snapshot.getString(0).startsWith("k" + i + "-"));
+                snapshot.close();
+            }
+        }
+    }
+
+    @Test public void lruOrderSurvivesReopen() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 1, 50);
+        for (String key : new String[] {"a", "b", "c", "d", "e"}) {
+            set(cache, key, "0123456789");
+        }
+        // from least to most recently used: b, d, c, a, e
+        for (String key : new String[] {"c", "a", "e"}) {
+            cache.get(key).close();
+        }
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, 50);
+        assertEquals(50, cache.size());
+        set(cache, "f", "0123456789");
+        set(cache, "g", "0123456789");
+        cache.flush();
+        awaitSizeEqualToFiles(cache);
+
+        assertNull(cache.get("b"));
+        assertNull(cache.get("d"));
+        for (String key : new String[] {"a", "c", "e", "f", "g"}) {
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            assertNotNull(key, snapshot);
+            snapshot.close();
+        }
+        assertEquals(2, cache.evictionCount());
+    }
+
+    private static void set(DiskLruCache cache, String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    /** Waits for background eviction to catch up, then checks that size() matches the files. */
+    private void awaitSizeEqualToFiles(DiskLruCache cache) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((cache.size() > cache.maxSize() || cache.size() != liveFileLength())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(liveFileLength(), cache.size());
+    }
+
+    /** Returns the total length of the value files in the cache directory. */
+    private long liveFileLength() {
+        long total = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".0")) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    /** Reads, writes and removes random keys, checking that every read sees a whole value. */
+    private static final class Worker implements Callable<Void> {
+        private final DiskLruCache cache;
+        private final Random random;
+
+        Worker(DiskLruCache cache, Random random) {
+            this.cache = cache;
+            this.random = random;
+        }
+
+        @Override public Void call() throws Exception {
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                String key = "k" + random.nextInt(KEY_COUNT);
+                int operation = random.nextInt(10);
+                if (operation < 3) {
+                    DiskLruCache.Editor editor = cache.edit(key);
+                    if (editor != null) {
+                        StringBuilder value = new StringBuilder(key).append('-');
+                        for (int n = random.nextInt(1000); n > 0; n--) {
+                            value.append('x');
+                        }
+                        editor.set(0, value.toString());
+                        editor.commit();
+                    }
+                } else if (operation < 9) {
+                    DiskLruCache.Snapshot snapshot = cache.get(key);
+                    if (snapshot != null) {
+                        try {
+                            String value = snapshot.getString(0);
+                            assertTrue(value, value.startsWith(key + "-"));
+                        } catch (IOException stale) {
+                            // committed or removed since the snapshot was taken
+                        } finally {
+                            snapshot.close();
+                        }
+                    }
+                } else {
+                    cache.remove(key);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package xiazhenjie.lrucache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how {@link DiskLruCache} recovers its index from the journal.
+ */
+public final class DiskLruCacheTest {
+    private static final long MAX_SIZE = 10000;
+
+    private File directory;
+    private DiskLruCache cache;
+
+    @Before public void setUp() throws Exception {
+        directory = Files.createTempDirectory("DiskLruCacheTest").toFile();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+    }
+
+    @Test public void entriesSurviveATornJournalTailAndLaterWrites() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        set("a", "A");
+        set("b", "B");
+        cache.close();
+
+        // the first bytes of a CLEAN record, as left by a crash midway through writing it
+        FileOutputStream out = new FileOutputStream(new File(directory, DiskLruCache.JOURNAL_FILE), true);
+        out.write(new byte[] {1, 0x12, 0x34, 0x56});
+        out.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        assertValue("a", "A");
+        assertValue("b", "B");
+        set("c", "C");
+        cache.get("a").close();
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        assertValue("a", "A");
+        assertValue("b", "B");
+        assertValue("c", "C");
+    }
+
+    @Test public void binaryJournalWithFewerValuesIsUpgraded() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        set("a", "A");
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 2, MAX_SIZE);
+        assertUpgraded("a", "A");
+    }
+
+    @Test public void textJournalWithFewerValuesIsUpgraded() throws Exception {
+        write(new File(directory, DiskLruCache.JOURNAL_FILE),
+                "libcore.io.DiskLruCache\n1\n1\n1\n\nDIRTY a\nCLEAN a 1\nREAD a\n");
+        write(new File(directory, "a.0"), "A");
+
+        cache = DiskLruCache.open(directory, 1, 2, MAX_SIZE);
+        assertUpgraded("a", "A");
+    }
+
+    /** Checks that {@code key} got an empty second value and that the upgraded journal is kept. */
+    private void assertUpgraded(String key, String value) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull(snapshot);
+        assertEquals(value, snapshot.getString(0));
+        assertEquals("", snapshot.getString(1));
+        snapshot.close();
+        assertEquals(value.length(), cache.size());
+
+        DiskLruCache.Editor editor = cache.edit("b");
+        editor.set(0, "B");
+        editor.set(1, "validators");
+        editor.commit();
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 2, MAX_SIZE);
+        assertValue(key, value);
+        assertValue("b", "B");
+    }
+
+    private static void write(File file, String contents) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(contents.getBytes("UTF-8"));
+        out.close();
+    }
+
+    @Test public void getStringLeavesTheValueReadableAsAStream() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 2, MAX_SIZE);
+        DiskLruCache.Editor editor = cache.edit("a");
+        editor.set(0, "image");
+        editor.set(1, "validators");
+        editor.commit();
+
+        DiskLruCache.Snapshot snapshot = cache.get("a");
+        assertEquals("validators", snapshot.getString(1));
+        assertEquals("validators", snapshot.getString(1));
+        InputStream in = snapshot.getInputStream(1);
+        assertEquals('v', in.read());
+        assertEquals("validators", snapshot.getString(1));
+        snapshot.close();
+    }
+
+    @Test public void removeDeletesTheFilesButNotAValueWrittenAgain() throws Exception {
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        set("a", "A");
+        set("b", "B");
+        assertTrue(cache.remove("a"));
+        assertFalse(cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertFalse(new File(directory, "a.0").exists());
+        assertEquals(1, cache.size());
+
+        set("a", "AA");
+        cache.close();
+
+        cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE);
+        assertValue("a", "AA");
+        assertValue("b", "B");
+        assertEquals(3, cache.size());
+    }
+
+    private void set(String key, String value) throws Exception {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private void assertValue(String key, String value) throws Exception {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull("no entry for " + key, snapshot);
+        assertEquals(value, snapshot.getString(0));
+        snapshot.close();
+    }
+}
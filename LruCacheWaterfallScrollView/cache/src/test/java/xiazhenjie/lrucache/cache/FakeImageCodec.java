@@ -0,0 +1,131 @@
+package xiazhenjie.lrucache.cache;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An {@link ImageCodec} for tests. An encoded image is a line "IMG width
+ * height" followed by padding; decoding it scales the size down to the
+ * requested width without looking at the padding.
+ */
+final class FakeImageCodec implements ImageCodec<FakeImageCodec.Image> {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int HEADER_LIMIT = 64;
+
+    /** A decoded image. It only knows its size and whether it was recycled. */
+    static final class Image {
+        final int width;
+        final int height;
+        volatile boolean recycled;
+
+        Image(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override public String toString() {
+            return "Image[" + width + "x" + height + (recycled ? ",recycled]" : "]");
+        }
+    }
+
+    final AtomicInteger decodes = new AtomicInteger();
+    final AtomicInteger recycles = new AtomicInteger();
+    final AtomicInteger previews = new AtomicInteger();
+    /** Whether images are reported as progressive, so that previews are decoded. */
+    volatile boolean progressive;
+    /** Thrown once by the next {@link #decodeBounds}, to fail a download midway. */
+    final AtomicReference<RuntimeException> boundsFailure = new AtomicReference<RuntimeException>();
+
+    /** Returns an encoded image of {@code width} by {@code height}, {@code length} bytes long. */
+    static byte[] encode(int width, int height, int length) {
+        byte[] header = ("IMG " + width + " " + height + "\n").getBytes(ASCII);
+        byte[] data = new byte[Math.max(length, header.length)];
+        System.arraycopy(header, 0, data, 0, header.length);
+        return data;
+    }
+
+    private static Image parse(byte[] data, int length, int width) {
+        String header = new String(data, 0, Math.min(length, HEADER_LIMIT), ASCII);
+        int end = header.indexOf('\n');
+        if (!header.startsWith("IMG ") || end < 0) {
+            return null;
+        }
+        String[] size = header.substring(4, end).split(" ");
+        int w = Integer.parseInt(size[0]);
+        int h = Integer.parseInt(size[1]);
+        if (width > 0 && w > width) {
+            h = h * width / w;
+            w = width;
+        }
+        return new Image(w, h);
+    }
+
+    @Override public Image decode(FileDescriptor fd, int width) {
+        decodes.incrementAndGet();
+        try {
+            FileInputStream in = new FileInputStream(fd);
+            byte[] header = new byte[HEADER_LIMIT];
+            int length = in.read(header);
+            return length > 0 ? parse(header, length, width) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override public Image decode(byte[] data, int length, int width) {
+        decodes.incrementAndGet();
+        return parse(data, length, width);
+    }
+
+    @Override public Image decodePreview(byte[] data, int length, int width) {
+        if (!progressive) {
+            return null;
+        }
+        previews.incrementAndGet();
+        return parse(data, length, width);
+    }
+
+    @Override public boolean decodeBounds(byte[] data, int length, int[] size) {
+        RuntimeException failure = boundsFailure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+        Image image = parse(data, length, 0);
+        if (image == null) {
+            return false;
+        }
+        size[0] = image.width;
+        size[1] = image.height;
+        return true;
+    }
+
+    @Override public boolean isProgressive(byte[] data, int length) {
+        return progressive;
+    }
+
+    @Override public boolean encode(Image image, OutputStream out) throws IOException {
+        out.write(encode(image.width, image.height, 100));
+        return true;
+    }
+
+    @Override public int getWidth(Image image) {
+        return image.width;
+    }
+
+    @Override public long getByteCount(Image image) {
+        return image.width * image.height * 4L;
+    }
+
+    @Override public void recycle(Image image) {
+        if (image.recycled) {
+            throw new AssertionError("recycled twice: " + image);
+        }
+        image.recycled = true;
+        recycles.incrementAndGet();
+    }
+}
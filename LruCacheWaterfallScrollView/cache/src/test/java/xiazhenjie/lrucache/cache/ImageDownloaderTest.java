@@ -0,0 +1,158 @@
+package xiazhenjie.lrucache.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ImageDownloader} against an {@link ImageServer} on the
+ * loopback interface.
+ */
+public final class ImageDownloaderTest {
+    private static final int THREADS = 4;
+
+    private ImageServer server;
+    private ImageDownloader downloader;
+
+    @Before public void setUp() throws Exception {
+        server = new ImageServer();
+        downloader = new ImageDownloader(THREADS);
+    }
+
+    @After public void tearDown() {
+        server.stop();
+    }
+
+    @Test public void sequentialDownloadsReuseOneConnection() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageDownloader.Response response =
+                    downloader.download(server.url("/img/" + i), ImageDownloader.Validators.NONE, out);
+            assertEquals(ImageDownloader.Status.OK, response.status);
+            assertEquals(ImageServer.BODY_LENGTH, out.size());
+        }
+        assertEquals(20, server.requests.get());
+        assertEquals(1, server.clientPorts.size());
+    }
+
+    /** 40MB over the loopback interface; the timeout catches a downloader that stalls or serializes. */
+    @Test(timeout = 10000) public void concurrentDownloadsKeepConnectionsAlive() throws Exception {
+        final byte[] expected = FakeImageCodec.encode(ImageServer.WIDTH, ImageServer.HEIGHT,
+                ImageServer.BODY_LENGTH);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 200; i++) {
+                final String url = server.url("/img/" + i);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() throws Exception {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        ImageDownloader.Response response =
+                                downloader.download(url, ImageDownloader.Validators.NONE, out);
+                        assertEquals(ImageDownloader.Status.OK, response.status);
+                        assertArrayEquals(expected, out.toByteArray());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // one connection per thread at most, however many requests were made
+        assertTrue("connections: " + server.clientPorts.size(), server.clientPorts.size() <= THREADS);
+        assertEquals(200L * ImageServer.BODY_LENGTH, downloader.bytesDownloaded());
+    }
+
+    @Test public void conditionalRequestIsAnsweredWithNotModified() throws Exception {
+        String url = server.url("/img/1");
+        ImageDownloader.Response first =
+                downloader.download(url, ImageDownloader.Validators.NONE, new ByteArrayOutputStream());
+        assertEquals(ImageServer.eTagOf("/img/1"), first.validators.eTag);
+
+        ImageDownloader.Validators cached =
+                ImageDownloader.Validators.decode(first.validators.encode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageDownloader.Response second = downloader.download(url, cached, out);
+        assertEquals(ImageDownloader.Status.NOT_MODIFIED, second.status);
+        assertEquals(304, second.code);
+        assertEquals(0, out.size());
+        assertEquals(cached.eTag, second.validators.eTag);
+        assertTrue(second.validators.checkedAt >= cached.checkedAt);
+        assertEquals(1, server.bodiesSent.get());
+        assertEquals(1, downloader.notModifiedCount());
+        assertEquals(1, server.clientPorts.size());
+    }
+
+    @Test public void requestWithoutValidatorsIsUnconditional() throws Exception {
+        ImageDownloader.Validators checkedButEmpty = new ImageDownloader.Validators(null, null, 1);
+        ImageDownloader.Response response = downloader.download(server.url("/img/1"), checkedButEmpty,
+                new ByteArrayOutputStream());
+        assertEquals(ImageDownloader.Status.OK, response.status);
+        assertEquals(0, server.conditionalRequests.get());
+    }
+
+    @Test public void failedStatusWritesNothingAndKeepsTheConnection() throws Exception {
+        server.setStatus("/missing", 404);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageDownloader.Response response =
+                downloader.download(server.url("/missing"), ImageDownloader.Validators.NONE, out);
+        assertEquals(ImageDownloader.Status.FAILED, response.status);
+        assertEquals(404, response.code);
+        assertEquals(0, out.size());
+
+        // the error body was read to the end, so the connection is reused
+        downloader.download(server.url("/img/1"), ImageDownloader.Validators.NONE, new ByteArrayOutputStream());
+        assertEquals(1, server.clientPorts.size());
+        assertEquals(1, downloader.failureCount());
+    }
+
+    @Test public void writeFailureIsThrown() throws Exception {
+        OutputStream failing = new OutputStream() {
+            @Override public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        try {
+            downloader.download(server.url("/img/1"), ImageDownloader.Validators.NONE, failing);
+            fail();
+        } catch (IOException expected) {
+            assertEquals("disk full", expected.getMessage());
+        }
+        assertEquals(0, downloader.failureCount());
+    }
+
+    @Test public void validatorsSurviveEncoding() {
+        ImageDownloader.Validators validators =
+                new ImageDownloader.Validators("\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT", 42);
+        ImageDownloader.Validators decoded = ImageDownloader.Validators.decode(validators.encode());
+        assertEquals(validators.eTag, decoded.eTag);
+        assertEquals(validators.lastModified, decoded.lastModified);
+        assertEquals(42, decoded.checkedAt);
+        assertTrue(decoded.canRevalidate());
+        assertNotNull(ImageDownloader.Validators.decode("garbage"));
+        assertTrue(!ImageDownloader.Validators.decode("garbage").canRevalidate());
+    }
+}
@@ -0,0 +1,344 @@
+package xiazhenjie.lrucache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ImagePipeline} with a {@link FakeImageCodec}, a temporary
+ * cache directory and an {@link ImageServer}.
+ */
+public final class ImagePipelineTest {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = WIDTH * ImageServer.HEIGHT / ImageServer.WIDTH;
+
+    private File directory;
+    private ImageServer server;
+    private ExecutorService callbackExecutor;
+    private FakeImageCodec codec;
+    private final List<ImagePipeline<FakeImageCodec.Image>> pipelines =
+            new ArrayList<ImagePipeline<FakeImageCodec.Image>>();
+
+    @Before public void setUp() throws Exception {
+        directory = Files.createTempDirectory("ImagePipelineTest").toFile();
+        server = new ImageServer();
+        callbackExecutor = Executors.newSingleThreadExecutor();
+        codec = new FakeImageCodec();
+    }
+
+    @After public void tearDown() throws Exception {
+        // background thumbnail writes must finish before the directory goes
+        for (ImagePipeline<FakeImageCodec.Image> pipeline : pipelines) {
+            pipeline.close();
+        }
+        server.stop();
+        callbackExecutor.shutdown();
+        DiskLruCache.deleteContents(directory);
+        directory.delete();
+    }
+
+    private ImagePipeline<FakeImageCodec.Image> newPipeline(ImagePipeline.Options options) {
+        CacheLocation location = new CacheLocation() {
+            @Override public File getDirectory(String name) {
+                return new File(directory, name);
+            }
+        };
+        ImagePipeline<FakeImageCodec.Image> pipeline =
+                new ImagePipeline<FakeImageCodec.Image>(codec, location, callbackExecutor, options);
+        pipelines.add(pipeline);
+        return pipeline;
+    }
+
+    private static ImagePipeline.Options options() {
+        ImagePipeline.Options options = new ImagePipeline.Options();
+        options.memoryCacheSize = 16 * 1024 * 1024;
+        return options;
+    }
+
+    /** Loads {@code url} and returns a handle of the caller's own, or null if the load failed. */
+    static ImageHandle<FakeImageCodec.Image> load(ImagePipeline<FakeImageCodec.Image> pipeline, String url,
+            int width) throws InterruptedException {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final AtomicReference<ImageHandle<FakeImageCodec.Image>> result =
+                new AtomicReference<ImageHandle<FakeImageCodec.Image>>();
+        pipeline.loadImageAsync(url, width, new SingleFlightLoader.Listener<ImageHandle<FakeImageCodec.Image>>() {
+            @Override public void onLoaded(ImageHandle<FakeImageCodec.Image> image) {
+                result.set(image != null ? image.duplicate() : null);
+                loaded.countDown();
+            }
+        });
+        assertTrue("load timed out", loaded.await(10, TimeUnit.SECONDS));
+        return result.get();
+    }
+
+    @Test public void concurrentLoadsOfOneImageDownloadItOnce() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        final int loads = 10;
+        final CountDownLatch loaded = new CountDownLatch(loads);
+        final List<ImageHandle<FakeImageCodec.Image>> images =
+                Collections.synchronizedList(new ArrayList<ImageHandle<FakeImageCodec.Image>>());
+        for (int i = 0; i < loads; i++) {
+            pipeline.loadImageAsync(url, WIDTH, new SingleFlightLoader.Listener<ImageHandle<FakeImageCodec.Image>>() {
+                @Override public void onLoaded(ImageHandle<FakeImageCodec.Image> image) {
+                    images.add(image.duplicate());
+                    loaded.countDown();
+                }
+            });
+        }
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        assertEquals(1, server.requests.get());
+        assertEquals(1, codec.decodes.get());
+        for (ImageHandle<FakeImageCodec.Image> image : images) {
+            assertTrue(image.isSameImage(images.get(0)));
+            image.close();
+        }
+    }
+
+    @Test public void secondLoadIsServedFromMemory() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        ImageHandle<FakeImageCodec.Image> first = load(pipeline, url, WIDTH);
+        ImageHandle<FakeImageCodec.Image> second = load(pipeline, url, WIDTH);
+        assertTrue(first.isSameImage(second));
+        assertTrue(pipeline.isImageInMemory(ImagePipeline.getMemoryCacheKey(url, WIDTH)));
+        assertEquals(1, server.requests.get());
+        assertEquals(1, codec.decodes.get());
+        first.close();
+        second.close();
+    }
+
+    @Test public void thumbnailOnDiskIsUsedWithoutTheNetwork() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        load(pipeline, url, WIDTH).close();
+        // waits for the thumbnail, written in the background, and writes the journal
+        pipeline.close();
+
+        server.stop();
+        int decodes = codec.decodes.get();
+        ImagePipeline<FakeImageCodec.Image> reopened = newPipeline(options());
+        ImageHandle<FakeImageCodec.Image> image = load(reopened, url, WIDTH);
+        assertNotNull(image);
+        assertEquals(WIDTH, image.get().width);
+        assertEquals(HEIGHT, image.get().height);
+        image.close();
+        assertEquals(decodes + 1, codec.decodes.get());
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test public void thumbnailMadeFromTheOriginalOnDiskKeepsItsValidators() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        load(pipeline, url, WIDTH).close();
+        // another width is decoded from the original on disk
+        load(pipeline, url, WIDTH / 2).close();
+        assertEquals(1, server.requests.get());
+
+        File validators = awaitThumbnail(url, WIDTH / 2);
+        String line = new String(Files.readAllBytes(validators.toPath()), "UTF-8");
+        assertTrue(line, ImageDownloader.Validators.decode(line).canRevalidate());
+    }
+
+    /** Waits for the thumbnail, written in the background, and returns the file of its validators. */
+    private File awaitThumbnail(String url, int width) throws InterruptedException {
+        File validators = new File(new File(directory, "image"), ImagePipeline.getDiskCacheKey(url, width) + ".1");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!validators.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(validators.exists());
+        return validators;
+    }
+
+    @Test public void originalInACacheWithoutValidatorsIsUsedWithoutTheNetwork() throws Exception {
+        String url = server.url("/img/1");
+        // the layout of caches written before validators were stored: one value, under the legacy key
+        File image = new File(directory, "image");
+        image.mkdirs();
+        DiskLruCache old = DiskLruCache.open(image, 1, 1, 1024 * 1024);
+        DiskLruCache.Editor editor = old.edit(CacheKeys.legacyMd5Key(url));
+        OutputStream out = editor.newOutputStream(0);
+        out.write(FakeImageCodec.encode(ImageServer.WIDTH, ImageServer.HEIGHT, 1000));
+        out.close();
+        editor.commit();
+        old.close();
+
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        ImageHandle<FakeImageCodec.Image> loaded = load(pipeline, url, WIDTH);
+        assertNotNull(loaded);
+        assertEquals(WIDTH, loaded.get().width);
+        loaded.close();
+        assertEquals(0, server.requests.get());
+    }
+
+    @Test public void evictedImageIsRecycledOnceTheLastHandleIsClosed() throws Exception {
+        ImagePipeline.Options options = options();
+        options.memoryCacheSize = 2 * 100 * 100 * 4;
+        // plain LRU: the admission filter of the default policy could turn the newer images away instead
+        options.memoryEvictionPolicy = EvictionPolicies.LRU;
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options);
+        pipeline.addImageToMemoryCache("a", new FakeImageCodec.Image(100, 100));
+        ImageHandle<FakeImageCodec.Image> held = pipeline.acquireImage("a");
+        pipeline.addImageToMemoryCache("b", new FakeImageCodec.Image(100, 100));
+        pipeline.addImageToMemoryCache("c", new FakeImageCodec.Image(100, 100));
+        pipeline.addImageToMemoryCache("d", new FakeImageCodec.Image(100, 100));
+        assertFalse(pipeline.isImageInMemory("a"));
+        assertFalse(held.get().recycled);
+        int recycled = codec.recycles.get();
+
+        FakeImageCodec.Image image = held.get();
+        held.close();
+        assertTrue(image.recycled);
+        assertEquals(recycled + 1, codec.recycles.get());
+        assertNull(pipeline.acquireImage("a"));
+    }
+
+    @Test public void originalIsNotDownloadedForFullSizeDecodes() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        assertNull(pipeline.decodeOriginalFromDisk(server.url("/img/1")));
+        assertNull(pipeline.openOriginal(server.url("/img/1")));
+        assertEquals(0, server.requests.get());
+    }
+
+    @Test public void previewIsDecodedOnceAndSharedByHandles() throws Exception {
+        codec.progressive = true;
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        PreviewListener first = new PreviewListener(true);
+        PreviewListener second = new PreviewListener(true);
+        pipeline.loadImageAsync(url, WIDTH, first);
+        pipeline.loadImageAsync(url, WIDTH, second);
+        assertTrue(first.loaded.await(10, TimeUnit.SECONDS));
+        assertTrue(second.loaded.await(10, TimeUnit.SECONDS));
+        assertEquals(1, codec.previews.get());
+        assertTrue(first.kept.isSameImage(second.kept));
+
+        FakeImageCodec.Image preview = first.kept.get();
+        first.kept.close();
+        assertFalse(preview.recycled);
+        second.kept.close();
+        assertTrue(preview.recycled);
+    }
+
+    @Test public void previewNobodyKeepsIsRecycled() throws Exception {
+        codec.progressive = true;
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        PreviewListener listener = new PreviewListener(false);
+        pipeline.loadImageAsync(server.url("/img/1"), WIDTH, listener);
+        assertTrue(listener.loaded.await(10, TimeUnit.SECONDS));
+        assertNotNull(listener.preview);
+        assertTrue(listener.preview.recycled);
+    }
+
+    /** Notes the preview it was given, keeps a handle to it if asked to, and waits for the load. */
+    private static final class PreviewListener implements SingleFlightLoader.Listener<ImageHandle<FakeImageCodec.Image>>,
+            ImagePipeline.ProgressListener<FakeImageCodec.Image> {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        private final boolean keep;
+        volatile FakeImageCodec.Image preview;
+        volatile ImageHandle<FakeImageCodec.Image> kept;
+
+        PreviewListener(boolean keep) {
+            this.keep = keep;
+        }
+
+        @Override public void onBoundsDecoded(int width, int height) {
+        }
+
+        @Override public void onPreviewDecoded(ImageHandle<FakeImageCodec.Image> preview) {
+            this.preview = preview.get();
+            if (keep) {
+                kept = preview.duplicate();
+            }
+        }
+
+        @Override public void onLoaded(ImageHandle<FakeImageCodec.Image> image) {
+            loaded.countDown();
+        }
+    }
+
+    @Test public void closeFinishesThumbnailWritesAndFailsLaterLoads() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        ImageHandle<FakeImageCodec.Image> image = load(pipeline, url, WIDTH);
+        pipeline.close();
+        assertTrue(new File(new File(directory, "image"), ImagePipeline.getDiskCacheKey(url, WIDTH) + ".0").exists());
+        // a handle taken before the close stays valid
+        assertFalse(image.get().recycled);
+        image.close();
+        assertTrue(codec.recycles.get() > 0);
+
+        assertNull(load(pipeline, server.url("/img/2"), WIDTH));
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test public void notModifiedKeepsTheCachedOriginal() throws Exception {
+        ImagePipeline.Options options = options();
+        options.revalidateAfterMillis = -1; // always revalidate
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options);
+        String url = server.url("/img/1");
+
+        ImageHandle<FakeImageCodec.Image> first = load(pipeline, url, WIDTH);
+        assertEquals(WIDTH, first.get().width);
+        first.close();
+
+        // another width misses memory and the thumbnail, and revalidates the original
+        ImageHandle<FakeImageCodec.Image> second = load(pipeline, url, WIDTH / 2);
+        assertEquals(WIDTH / 2, second.get().width);
+        assertEquals(HEIGHT / 2, second.get().height);
+        second.close();
+
+        assertEquals(1, server.notModified.get());
+        assertEquals(1, server.bodiesSent.get());
+        FakeImageCodec.Image original = pipeline.decodeOriginalFromDisk(url);
+        assertNotNull(original);
+        assertEquals(ImageServer.WIDTH, original.width);
+    }
+
+    @Test public void failedStatusAbortsTheEdit() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        server.setStatus("/img/1", 500);
+        assertNull(load(pipeline, url, WIDTH));
+        assertNull(pipeline.decodeOriginalFromDisk(url));
+
+        // an edit left open would make the next download skip the disk cache and fail
+        server.setStatus("/img/1", null);
+        ImageHandle<FakeImageCodec.Image> image = load(pipeline, url, WIDTH);
+        assertNotNull(image);
+        assertEquals(WIDTH, image.get().width);
+        image.close();
+        assertNotNull(pipeline.decodeOriginalFromDisk(url));
+    }
+
+    @Test public void exceptionDuringDownloadAbortsTheEdit() throws Exception {
+        ImagePipeline<FakeImageCodec.Image> pipeline = newPipeline(options());
+        String url = server.url("/img/1");
+        codec.boundsFailure.set(new IllegalStateException("corrupt header"));
+        assertNull(load(pipeline, url, WIDTH));
+
+        ImageHandle<FakeImageCodec.Image> image = load(pipeline, url, WIDTH);
+        assertNotNull(image);
+        image.close();
+        assertEquals(2, server.bodiesSent.get());
+    }
+}
@@ -0,0 +1,106 @@
+package xiazhenjie.lrucache.cache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An HTTP server on the loopback interface that stands in for an image host
+ * in tests. Every path is an image of {@link #WIDTH} by {@link #HEIGHT} whose
+ * ETag is derived from the path; a request carrying that ETag is answered
+ * with 304. {@link #setStatus} makes a path fail instead.
+ */
+final class ImageServer {
+    static final int WIDTH = 1080;
+    static final int HEIGHT = 720;
+    static final int BODY_LENGTH = 200 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final byte[] body = FakeImageCodec.encode(WIDTH, HEIGHT, BODY_LENGTH);
+    private final Map<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger conditionalRequests = new AtomicInteger();
+    final AtomicInteger notModified = new AtomicInteger();
+    final AtomicInteger bodiesSent = new AtomicInteger();
+    /** The client ports requests came from; one per connection. */
+    final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    ImageServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /** Returns the URL of the image at {@code path}, such as "/img/1". */
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /** Answers requests for {@code path} with {@code code} and no image, or serves it again if null. */
+    void setStatus(String path, Integer code) {
+        if (code == null) {
+            statuses.remove(path);
+        } else {
+            statuses.put(path, code);
+        }
+    }
+
+    static String eTagOf(String path) {
+        return "\"" + Integer.toHexString(path.hashCode()) + "\"";
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            String path = exchange.getRequestURI().getPath();
+            Integer status = statuses.get(path);
+            if (status != null) {
+                byte[] error = ("error " + status).getBytes("US-ASCII");
+                exchange.sendResponseHeaders(status, error.length);
+                exchange.getResponseBody().write(error);
+                return;
+            }
+            String eTag = eTagOf(path);
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                conditionalRequests.incrementAndGet();
+            }
+            exchange.getResponseHeaders().add("ETag", eTag);
+            if (eTag.equals(ifNoneMatch)) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            // counted first: the client may read the whole body and the test check it before this thread goes on
+            bodiesSent.incrementAndGet();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
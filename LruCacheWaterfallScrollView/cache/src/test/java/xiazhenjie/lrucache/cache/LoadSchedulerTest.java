@@ -0,0 +1,194 @@
+package xiazhenjie.lrucache.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the order in which {@link LoadScheduler} runs queued jobs and which
+ * ones it drops. Every test first occupies the single worker of a stage so
+ * that the jobs under test queue up behind it.
+ */
+public final class LoadSchedulerTest {
+    private static final int EVICT_DISTANCE = 1000;
+
+    private LoadScheduler scheduler;
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before public void setUp() {
+        scheduler = new LoadScheduler(1, 1, 1, EVICT_DISTANCE);
+        scheduler.setViewport(0, 100);
+    }
+
+    @After public void tearDown() throws Exception {
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void nearestJobRunsFirst() throws Exception {
+        CountDownLatch blocker = block(LoadScheduler.Stage.DISK);
+        submit(LoadScheduler.Stage.DISK, "far", 500, 600);
+        submit(LoadScheduler.Stage.DISK, "near", 150, 250);
+        submit(LoadScheduler.Stage.DISK, "visible", 50, 150);
+        submit(LoadScheduler.Stage.DISK, "above", -300, -200);
+        CountDownLatch done = submitLast(LoadScheduler.Stage.DISK, "end", 5000, 5000);
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new String[] {"visible", "near", "above", "far", "end"}, ranInOrder());
+    }
+
+    @Test public void equallyNearJobsRunInSubmissionOrder() throws Exception {
+        CountDownLatch blocker = block(LoadScheduler.Stage.DECODE);
+        for (int i = 0; i < 5; i++) {
+            submit(LoadScheduler.Stage.DECODE, "job" + i, 10, 20);
+        }
+        CountDownLatch done = submitLast(LoadScheduler.Stage.DECODE, "end", 10, 20);
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new String[] {"job0", "job1", "job2", "job3", "job4", "end"}, ranInOrder());
+    }
+
+    @Test public void movingTheViewportReordersQueuedJobs() throws Exception {
+        CountDownLatch blocker = block(LoadScheduler.Stage.NETWORK);
+        submit(LoadScheduler.Stage.NETWORK, "top", 0, 100);
+        submit(LoadScheduler.Stage.NETWORK, "lower", 400, 500);
+        CountDownLatch done = submitLast(LoadScheduler.Stage.NETWORK, "end", 900, 1000);
+        scheduler.setViewport(400, 500);
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new String[] {"lower", "top", "end"}, ranInOrder());
+    }
+
+    @Test public void movingTheViewportDropsFarJobs() throws Exception {
+        CountDownLatch blocker = block(LoadScheduler.Stage.DISK);
+        submit(LoadScheduler.Stage.DISK, "evicted", 0, 100);
+        submit(LoadScheduler.Stage.DISK, "nearer", 1500, 1600);
+        submit(LoadScheduler.Stage.DISK, "further", 3000, 3100);
+        scheduler.setViewport(2000, 2100);
+        assertEquals(Collections.singletonList("evicted"), dropped);
+        assertEquals(2, scheduler.queuedCount(LoadScheduler.Stage.DISK));
+
+        submit(LoadScheduler.Stage.DISK, "visible", 2000, 2100);
+        blocker.countDown();
+        awaitRun("further");
+        assertArrayEquals(new String[] {"visible", "nearer", "further"}, ranInOrder());
+    }
+
+    @Test public void cancelledJobIsDroppedInsteadOfRun() throws Exception {
+        CountDownLatch blocker = block(LoadScheduler.Stage.DISK);
+        LoadScheduler.Ticket ticket = submit(LoadScheduler.Stage.DISK, "cancelled", 0, 100);
+        CountDownLatch done = submitLast(LoadScheduler.Stage.DISK, "end", 0, 100);
+        assertTrue(ticket.cancel());
+        assertFalse(ticket.cancel());
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertArrayEquals(new String[] {"end"}, ranInOrder());
+        assertEquals(Collections.singletonList("cancelled"), dropped);
+    }
+
+    @Test public void shutdownDropsQueuedAndLaterJobsAndLetsRunningOnesFinish() throws Exception {
+        CountDownLatch blocker = block(LoadScheduler.Stage.DISK);
+        submit(LoadScheduler.Stage.DISK, "queued", 0, 100);
+        scheduler.shutdown();
+        assertEquals(Collections.singletonList("queued"), dropped);
+        submit(LoadScheduler.Stage.DECODE, "later", 0, 100);
+        assertEquals(2, dropped.size());
+
+        assertFalse(scheduler.awaitTermination(50, TimeUnit.MILLISECONDS));
+        blocker.countDown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, ranInOrder().length);
+    }
+
+    @Test public void distanceIsMeasuredToTheNearestEdge() {
+        assertEquals(0, LoadScheduler.distance(50, 150, 100, 200));
+        assertEquals(0, LoadScheduler.distance(0, 300, 100, 200));
+        assertEquals(50, LoadScheduler.distance(0, 50, 100, 200));
+        assertEquals(100, LoadScheduler.distance(300, 400, 100, 200));
+    }
+
+    /** Occupies the single worker of {@code stage} until the returned latch is counted down. */
+    private CountDownLatch block(LoadScheduler.Stage stage) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(stage, at(0, 100), new LoadScheduler.Job() {
+            @Override public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override public void dropped() {
+                started.countDown();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private LoadScheduler.Ticket submit(LoadScheduler.Stage stage, final String name, int top, int bottom) {
+        return scheduler.submit(stage, at(top, bottom), new LoadScheduler.Job() {
+            @Override public void run() {
+                ran.add(name);
+            }
+
+            @Override public void dropped() {
+                dropped.add(name);
+            }
+        });
+    }
+
+    /** Submits a job whose latch is counted down when it has run. */
+    private CountDownLatch submitLast(LoadScheduler.Stage stage, final String name, int top, int bottom) {
+        final CountDownLatch done = new CountDownLatch(1);
+        scheduler.submit(stage, at(top, bottom), new LoadScheduler.Job() {
+            @Override public void run() {
+                ran.add(name);
+                done.countDown();
+            }
+
+            @Override public void dropped() {
+                dropped.add(name);
+            }
+        });
+        return done;
+    }
+
+    private String[] ranInOrder() {
+        synchronized (ran) {
+            return ran.toArray(new String[ran.size()]);
+        }
+    }
+
+    /** Waits until the job named {@code name} has run. */
+    private void awaitRun(String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!ran.contains(name) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(name + " didn't run", ran.contains(name));
+    }
+
+    private static LoadScheduler.Prioritized at(final int top, final int bottom) {
+        return new LoadScheduler.Prioritized() {
+            @Override public int distanceTo(int viewportTop, int viewportBottom) {
+                return LoadScheduler.distance(top, bottom, viewportTop, viewportBottom);
+            }
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package xiazhenjie.lrucache.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how {@link SingleFlightLoader} coalesces and cancels loads. The
+ * fetcher only records flights, which the tests complete by hand, and
+ * listeners are called on the completing thread.
+ */
+public final class SingleFlightLoaderTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<String> fetched = new ArrayList<String>();
+    private final List<SingleFlightLoader.InFlight<String>> flights =
+            new ArrayList<SingleFlightLoader.InFlight<String>>();
+    private final List<String> released = new ArrayList<String>();
+    private final List<String> events = new ArrayList<String>();
+    private SingleFlightLoader<String, String> loader;
+
+    @Before public void setUp() {
+        loader = new SingleFlightLoader<String, String>(DIRECT, new SingleFlightLoader.Fetcher<String, String>() {
+            @Override public void fetch(String key, SingleFlightLoader.InFlight<String> flight) {
+                fetched.add(key);
+                flights.add(flight);
+            }
+
+            @Override public void release(String key, String value) {
+                released.add(key + "=" + value);
+                events.add("release");
+            }
+        });
+    }
+
+    @Test public void concurrentLoadsOfOneKeyShareAFlight() {
+        loader.load("a", listener("first"));
+        loader.load("a", listener("second"));
+        loader.load("b", listener("other"));
+        assertEquals(Arrays.asList("a", "b"), fetched);
+        assertEquals(2, loader.inFlightCount());
+        assertEquals(2, flights.get(0).listeners().size());
+
+        flights.get(0).complete("A");
+        assertEquals(Arrays.asList("first:A", "second:A", "release"), events);
+        assertEquals(Collections.singletonList("a=A"), released);
+        assertFalse(loader.isLoading("a"));
+        assertTrue(loader.isLoading("b"));
+    }
+
+    @Test public void loadAfterCompletionStartsANewFlight() {
+        loader.load("a", listener("first"));
+        flights.get(0).complete("A");
+        loader.load("a", listener("second"));
+        assertEquals(Arrays.asList("a", "a"), fetched);
+        assertNotSame(flights.get(0), flights.get(1));
+    }
+
+    @Test public void cancelledRequestIsNotNotified() {
+        SingleFlightLoader<String, String>.Request first = loader.load("a", listener("first"));
+        loader.load("a", listener("second"));
+        first.cancel();
+        assertTrue(first.isCancelled());
+        assertFalse(flights.get(0).isAbandoned());
+
+        flights.get(0).complete("A");
+        assertEquals(Arrays.asList("second:A", "release"), events);
+    }
+
+    @Test public void cancellingEveryRequestAbandonsTheFlight() {
+        SingleFlightLoader<String, String>.Request first = loader.load("a", listener("first"));
+        SingleFlightLoader<String, String>.Request second = loader.load("a", listener("second"));
+        first.cancel();
+        second.cancel();
+        second.cancel(); // cancelling twice does nothing
+        assertTrue(flights.get(0).isAbandoned());
+        assertFalse(loader.isLoading("a"));
+
+        // a new load doesn't join the abandoned flight
+        loader.load("a", listener("third"));
+        assertEquals(Arrays.asList("a", "a"), fetched);
+
+        // the abandoned flight still completes, notifies nobody and releases its value
+        flights.get(0).complete("stale");
+        assertEquals(Collections.singletonList("a=stale"), released);
+        assertTrue(loader.isLoading("a"));
+        flights.get(1).complete("A");
+        assertEquals(Arrays.asList("release", "third:A", "release"), events);
+    }
+
+    @Test public void listenerMayCancelAnotherRequestOfTheFlight() {
+        final List<SingleFlightLoader<String, String>.Request> requests =
+                new ArrayList<SingleFlightLoader<String, String>.Request>();
+        requests.add(loader.load("a", new SingleFlightLoader.Listener<String>() {
+            @Override public void onLoaded(String value) {
+                events.add("first:" + value);
+                requests.get(1).cancel();
+            }
+        }));
+        requests.add(loader.load("a", listener("second")));
+        flights.get(0).complete("A");
+        assertEquals(Arrays.asList("first:A", "release"), events);
+    }
+
+    @Test public void failedLoadNotifiesNull() {
+        loader.load("a", listener("first"));
+        flights.get(0).complete(null);
+        assertEquals(Arrays.asList("first:null", "release"), events);
+    }
+
+    @Test public void completingTwiceFails() {
+        loader.load("a", listener("first"));
+        flights.get(0).complete("A");
+        try {
+            flights.get(0).complete("B");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private SingleFlightLoader.Listener<String> listener(final String name) {
+        return new SingleFlightLoader.Listener<String>() {
+            @Override public void onLoaded(String value) {
+                events.add(name + ":" + value);
+            }
+        };
+    }
+}